@@ -0,0 +1,164 @@
+package org.pescuma.gitstats.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.pescuma.gitstats.Args;
+import org.pescuma.gitstats.Consts;
+import org.pescuma.gitstats.Metrics;
+import org.pescuma.gitstats.RepositoryProcessor;
+import org.pescuma.gitstats.Snapshot;
+import org.pescuma.gitstats.table.ColumnarTable;
+
+import com.google.common.io.Files;
+
+/**
+ * Compares the time of each blame engine and checks that they produce the same rows.
+ *
+ * The git engine uses the diff of the git command line, that sometimes matches repeated lines (usually empty ones)
+ * differently from the JGit diff, so a few lines can be given to another of the commits that added the same text. For
+ * it, the number of lines of each file, language and line type must be the same and at most 1% of the lines can have
+ * a different commit.
+ *
+ * Usage: BlameEngineBenchmark [files] [commits] or BlameEngineBenchmark path/to/repository
+ *
+ * Without a repository it creates a synthetic one in a temporary folder.
+ */
+public class BlameEngineBenchmark {
+	
+	private static final double GIT_MAX_DIFFERENT_LINES = 0.01;
+	
+	public static void main(String[] args) throws Exception {
+		File repository;
+		File tmp = null;
+		
+		if (args.length == 1 && new File(args[0]).isDirectory()) {
+			repository = new File(args[0]);
+			
+		} else {
+			int files = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+			int commits = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+			
+			tmp = Files.createTempDir();
+			repository = tmp;
+			
+			System.out.println("Creating repository with " + files + " files and " + commits + " commits in "
+					+ repository.getAbsolutePath() + " ...");
+			SyntheticRepository.create(repository, files, commits, 20, 42);
+		}
+		
+		try {
+			
+			Map<String, ColumnarTable> results = new HashMap<String, ColumnarTable>();
+			Map<String, Long> times = new HashMap<String, Long>();
+			
+			for (String engine : Args.BLAME_ENGINES) {
+				Args options = new Args();
+				options.blameEngine = engine;
+				options.noCache = true;
+				options.threads = Runtime.getRuntime().availableProcessors();
+				
+				ColumnarTable data = new ColumnarTable(Consts.NUM_COLUMNS);
+				
+				long start = System.currentTimeMillis();
+				RepositoryProcessor.process(data, options, Collections.singletonList(repository), new Snapshot(),
+						Metrics.DISABLED, null);
+				times.put(engine, System.currentTimeMillis() - start);
+				
+				results.put(engine, data);
+			}
+			
+			System.out.println();
+			for (String engine : Args.BLAME_ENGINES)
+				System.out.println(String.format("%-10s: %,d ms (%,.0f lines)", engine, times.get(engine),
+						results.get(engine).sum()));
+			
+			ColumnarTable expected = results.get(Args.BLAME_ENGINE_JGIT);
+			boolean same = true;
+			for (String engine : Args.BLAME_ENGINES) {
+				if (engine.equals(Args.BLAME_ENGINE_GIT))
+					same &= compareLines(expected, results.get(engine), engine);
+				else
+					same &= compare(expected, results.get(engine), engine);
+			}
+			
+			if (!same)
+				System.exit(1);
+			
+		} finally {
+			if (tmp != null)
+				FileUtils.deleteDirectory(tmp);
+		}
+	}
+	
+	private static boolean compare(ColumnarTable expected, ColumnarTable actual, String engine) {
+		Map<String, Double> expectedRows = toMap(expected);
+		Map<String, Double> actualRows = toMap(actual);
+		
+		if (expectedRows.equals(actualRows))
+			return true;
+		
+		Set<String> keys = new HashSet<String>(expectedRows.keySet());
+		keys.addAll(actualRows.keySet());
+		
+		List<String> differences = new ArrayList<String>();
+		for (String key : keys) {
+			Double e = expectedRows.get(key);
+			Double a = actualRows.get(key);
+			if (e == null || !e.equals(a))
+				differences.add(key + " : expected " + e + " got " + a);
+		}
+		
+		System.out.println(engine + " has " + differences.size() + " different rows, for example:");
+		for (String difference : differences.subList(0, Math.min(10, differences.size())))
+			System.out.println("  " + difference);
+		
+		return false;
+	}
+	
+	private static boolean compareLines(ColumnarTable expected, ColumnarTable actual, String engine) {
+		int[] fileColumns = { Consts.COL_FILE, Consts.COL_LANGUAGE, Consts.COL_LINE_TYPE };
+		if (!compare(expected.groupBy(fileColumns), actual.groupBy(fileColumns), engine + " (lines per file)"))
+			return false;
+		
+		Map<String, Double> expectedRows = toMap(expected);
+		Map<String, Double> actualRows = toMap(actual);
+		
+		Set<String> keys = new HashSet<String>(expectedRows.keySet());
+		keys.addAll(actualRows.keySet());
+		
+		double different = 0;
+		for (String key : keys) {
+			Double e = expectedRows.get(key);
+			Double a = actualRows.get(key);
+			different += Math.abs((e == null ? 0 : e) - (a == null ? 0 : a));
+		}
+		// Each line given to another commit is one less in a row and one more in another
+		different /= 2;
+		
+		double share = different / Math.max(expected.sum(), 1);
+		System.out.println(String.format("%s gave %,.0f lines (%.2f%%) to a different commit", engine, different,
+				share * 100));
+		
+		if (share <= GIT_MAX_DIFFERENT_LINES)
+			return true;
+		
+		return compare(expected, actual, engine);
+	}
+	
+	private static Map<String, Double> toMap(ColumnarTable table) {
+		Map<String, Double> result = new HashMap<String, Double>();
+		for (int row = 0; row < table.size(); row++)
+			result.put(StringUtils.join(Arrays.asList(table.getColumns(row)), " | "), table.getValue(row));
+		return result;
+	}
+}
@@ -0,0 +1,266 @@
+package org.pescuma.gitstats.bench;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.pescuma.gitstats.Args;
+import org.pescuma.gitstats.Consts;
+import org.pescuma.gitstats.HistoryProcessor;
+import org.pescuma.gitstats.Metrics;
+import org.pescuma.gitstats.RepositoryProcessor;
+import org.pescuma.gitstats.Snapshot;
+import org.pescuma.gitstats.table.ColumnarTable;
+
+import com.google.common.io.Files;
+
+/**
+ * Runs --history on a repository and compares it with running git-stats once for each snapshot, with HEAD at the
+ * commit of the snapshot, which is what it replaces.
+ *
+ * Both use the history engine, so the rows of each snapshot must be the same. Before running, a commit that changes a
+ * file and another that reverts it are added on top of HEAD, one month apart, so a version of a file appears again after
+ * it was changed and the snapshots before and after the change are checked.
+ *
+ * Usage: HistoryBenchmark [files [commits [history]]] or HistoryBenchmark path/to/repository [history]
+ *
+ * Without a repository it creates a synthetic one in a temporary folder. A repository is cloned (with git clone
+ * --shared) to a temporary folder, since HEAD is moved for each snapshot.
+ */
+public class HistoryBenchmark {
+	
+	public static void main(String[] args) throws Exception {
+		File tmp = Files.createTempDir();
+		File repository = new File(tmp, "repository");
+		String history;
+		
+		try {
+			
+			if (args.length > 0 && new File(args[0]).isDirectory()) {
+				history = args.length > 1 ? args[1] : HistoryProcessor.MONTHLY;
+				
+				System.out.println("Cloning " + args[0] + " ...");
+				Process clone = new ProcessBuilder("git", "clone", "--quiet", "--shared", "--no-checkout",
+						new File(args[0]).getAbsolutePath(), repository.getAbsolutePath()).inheritIO().start();
+				if (clone.waitFor() != 0)
+					throw new IllegalStateException("git clone failed");
+				
+			} else {
+				int files = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+				int commits = args.length > 1 ? Integer.parseInt(args[1]) : 1500;
+				history = args.length > 2 ? args[2] : HistoryProcessor.MONTHLY;
+				
+				System.out.println("Creating repository with " + files + " files and " + commits + " commits in "
+						+ repository.getAbsolutePath() + " ...");
+				SyntheticRepository.create(repository, files, commits, 20, 42);
+			}
+			
+			System.out.println("Changing and reverting " + addRevert(repository) + " ...");
+			
+			Map<String, RevCommit> snapshots;
+			Repository git = new FileRepositoryBuilder().findGitDir(repository).build();
+			try {
+				RevWalk walk = new RevWalk(git);
+				snapshots = HistoryProcessor.findSnapshots(history, git, walk,
+						walk.parseCommit(git.resolve(Constants.HEAD)), 0);
+				walk.release();
+			} finally {
+				git.close();
+			}
+			
+			// So the first measured run is not slowed down by the JIT
+			System.out.println("Warming up...");
+			run(repository, history);
+			
+			long start = System.currentTimeMillis();
+			ColumnarTable all = run(repository, history);
+			long historyTime = System.currentTimeMillis() - start;
+			
+			long separateTime = 0;
+			boolean ok = true;
+			for (Map.Entry<String, RevCommit> snapshot : snapshots.entrySet()) {
+				moveHead(repository, snapshot.getValue());
+				
+				start = System.currentTimeMillis();
+				ColumnarTable separate = run(repository, null);
+				separateTime += System.currentTimeMillis() - start;
+				
+				ok &= check(all, separate, snapshot.getKey());
+			}
+			
+			System.out.println();
+			System.out.println(String.format("%-24s %,10d ms", "--history " + history, historyTime));
+			System.out.println(String.format("%-24s %,10d ms %7.1fx slower", "One run per snapshot", separateTime,
+					separateTime / (double) Math.max(historyTime, 1)));
+			System.out.println(String.format("%d snapshots, %,.0f rows", snapshots.size(), (double) all.size()));
+			
+			if (!ok)
+				System.exit(1);
+			
+		} finally {
+			FileUtils.deleteDirectory(tmp);
+		}
+	}
+	
+	private static ColumnarTable run(File repository, String history) throws Exception {
+		Args args = new Args();
+		args.blameEngine = Args.BLAME_ENGINE_HISTORY;
+		args.history = history;
+		args.noCache = true;
+		args.threads = Runtime.getRuntime().availableProcessors();
+		
+		ColumnarTable data = new ColumnarTable(args.getNumColumns());
+		RepositoryProcessor.process(data, args, Collections.singletonList(repository), new Snapshot(),
+				Metrics.DISABLED, null);
+		return data;
+	}
+	
+	/**
+	 * @return the path of the file that was changed and reverted
+	 */
+	private static String addRevert(File repository) throws Exception {
+		Repository git = new FileRepositoryBuilder().findGitDir(repository).build();
+		ObjectInserter inserter = git.newObjectInserter();
+		RevWalk walk = new RevWalk(git);
+		try {
+			RevCommit head = walk.parseCommit(git.resolve(Constants.HEAD));
+			
+			TreeWalk tree = new TreeWalk(git);
+			tree.addTree(head.getTree());
+			tree.setRecursive(true);
+			String path = null;
+			ObjectId original = null;
+			while (path == null && tree.next()) {
+				if (tree.getFileMode(0) != FileMode.REGULAR_FILE)
+					continue;
+				
+				byte[] bytes = git.open(tree.getObjectId(0)).getCachedBytes();
+				if (!RawText.isBinary(bytes) && new RawText(bytes).size() > 1) {
+					path = tree.getPathString();
+					original = tree.getObjectId(0);
+				}
+			}
+			tree.release();
+			
+			if (path == null)
+				throw new IllegalStateException("No text file in HEAD to revert");
+			
+			// Every other line changes, so the revert brings back lines that were removed
+			RawText text = new RawText(git.open(original).getCachedBytes());
+			StringBuilder changed = new StringBuilder();
+			for (int i = 0; i < text.size(); i++)
+				changed.append(i % 2 == 0 ? "changed line " + i : text.getString(i)).append('\n');
+			ObjectId blob = inserter.insert(Constants.OBJ_BLOB, Constants.encode(changed.toString()));
+			
+			long month = 31L * 24 * 60 * 60 * 1000;
+			long time = head.getCommitterIdent().getWhen().getTime();
+			ObjectId change = commit(git, inserter, head, path, blob, time + month, "Change " + path);
+			ObjectId revert = commit(git, inserter, walk.parseCommit(change), path, original, time + 2 * month,
+					"Revert " + path);
+			inserter.flush();
+			
+			RefUpdate update = git.updateRef(Constants.HEAD);
+			update.setNewObjectId(revert);
+			update.forceUpdate();
+			
+			return path;
+			
+		} finally {
+			walk.release();
+			inserter.release();
+			git.close();
+		}
+	}
+	
+	private static ObjectId commit(Repository git, ObjectInserter inserter, RevCommit parent, final String path,
+			final ObjectId blob, long time, String message) throws Exception {
+		DirCache index = DirCache.newInCore();
+		DirCacheBuilder builder = index.builder();
+		ObjectReader reader = git.newObjectReader();
+		try {
+			builder.addTree(new byte[0], DirCacheEntry.STAGE_0, reader, parent.getTree());
+		} finally {
+			reader.release();
+		}
+		builder.finish();
+		
+		DirCacheEditor editor = index.editor();
+		editor.add(new DirCacheEditor.PathEdit(path) {
+			@Override
+			public void apply(DirCacheEntry entry) {
+				entry.setFileMode(FileMode.REGULAR_FILE);
+				entry.setObjectId(blob);
+			}
+		});
+		editor.finish();
+		
+		PersonIdent ident = new PersonIdent("Reverter", "reverter@example.com", new Date(time),
+				TimeZone.getTimeZone("UTC"));
+		
+		CommitBuilder commit = new CommitBuilder();
+		commit.setTreeId(index.writeTree(inserter));
+		commit.setParentId(parent);
+		commit.setAuthor(ident);
+		commit.setCommitter(ident);
+		commit.setMessage(message);
+		return inserter.insert(commit);
+	}
+	
+	private static void moveHead(File repository, ObjectId commit) throws Exception {
+		Repository git = new FileRepositoryBuilder().findGitDir(repository).build();
+		try {
+			RefUpdate update = git.updateRef(Constants.HEAD, true);
+			update.setNewObjectId(commit);
+			update.forceUpdate();
+		} finally {
+			git.close();
+		}
+	}
+	
+	private static boolean check(ColumnarTable all, ColumnarTable separate, String snapshot) {
+		Map<String, Double> expected = new HashMap<String, Double>();
+		for (int row = 0; row < separate.size(); row++)
+			expected.put(StringUtils.join(Arrays.asList(separate.getColumns(row)), " | "), separate.getValue(row));
+		
+		Map<String, Double> actual = new HashMap<String, Double>();
+		for (int row = 0; row < all.size(); row++) {
+			String[] columns = all.getColumns(row);
+			if (!columns[Consts.COL_SNAPSHOT].equals(snapshot))
+				continue;
+			
+			actual.put(StringUtils.join(Arrays.asList(columns).subList(0, Consts.NUM_COLUMNS), " | "),
+					all.getValue(row));
+		}
+		
+		if (expected.equals(actual))
+			return true;
+		
+		System.out.println("Snapshot " + snapshot + ": " + expected.size() + " rows expected, " + actual.size()
+				+ " rows found, and they are different");
+		return false;
+	}
+}
@@ -0,0 +1,225 @@
+package org.pescuma.gitstats.bench;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.pescuma.gitstats.Args;
+import org.pescuma.gitstats.Consts;
+import org.pescuma.gitstats.Metrics;
+import org.pescuma.gitstats.RepositoryProcessor;
+import org.pescuma.gitstats.Snapshot;
+import org.pescuma.gitstats.bench.SyntheticRepository.Shape;
+import org.pescuma.gitstats.table.ColumnarTable;
+import org.pescuma.gitstats.threads.ParallelLists.Utilization;
+
+import com.google.common.io.Files;
+
+/**
+ * Runs RepositoryProcessor.process on the same repository with an increasing number of threads, to show where adding
+ * threads stops helping.
+ *
+ * For each thread count it reports the files and lines per second, the speedup and efficiency relative to one thread,
+ * the peak heap and the share of the time at the end in which some threads were already idle.
+ */
+public class ScalingBenchmark {
+	
+	private static final double FLAT_EFFICIENCY = 0.7;
+	
+	public static class Options {
+		@Option(name = "--repository", usage = "Use an existing repository instead of creating a synthetic one")
+		public File repository;
+		
+		@Option(name = "--threads", usage = "Comma separated thread counts (by default powers of 2 up to the number of processors)")
+		public String threads;
+		
+		@Option(name = "--blame-engine", usage = "Blame engine to use")
+		public String blameEngine = Args.BLAME_ENGINE_JGIT;
+		
+		@Option(name = "--files", usage = "Synthetic repository: number of files")
+		public int files = 500;
+		
+		@Option(name = "--commits-per-file", usage = "Synthetic repository: average number of commits that change each file")
+		public double commitsPerFile = 12;
+		
+		@Option(name = "--authors", usage = "Synthetic repository: number of authors")
+		public int authors = 20;
+		
+		@Option(name = "--rename-rate", usage = "Synthetic repository: chance of a commit renaming a file")
+		public double renameRate = 1 / 30.;
+		
+		@Option(name = "--median-lines", usage = "Synthetic repository: median number of lines of the files")
+		public int medianLines = 100;
+		
+		@Option(name = "--lines-sigma", usage = "Synthetic repository: sigma of the log-normal distribution of the number of lines")
+		public double linesSigma = 1;
+		
+		@Option(name = "--seed", usage = "Synthetic repository: random seed")
+		public long seed = 42;
+		
+		@Option(name = "--keep", usage = "Don't delete the synthetic repository at the end")
+		public boolean keep = false;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+		CmdLineParser parser = new CmdLineParser(options);
+		try {
+			parser.parseArgument(args);
+		} catch (CmdLineException e) {
+			System.out.println(e.getMessage());
+			parser.printUsage(System.out);
+			System.exit(-1);
+		}
+		
+		File repository = options.repository;
+		boolean delete = false;
+		
+		if (repository == null) {
+			Shape shape = new Shape();
+			shape.files = options.files;
+			shape.commitsPerFile = options.commitsPerFile;
+			shape.authors = options.authors;
+			shape.renameRate = options.renameRate;
+			shape.medianLines = options.medianLines;
+			shape.linesSigma = options.linesSigma;
+			shape.seed = options.seed;
+			
+			repository = Files.createTempDir();
+			delete = !options.keep;
+			
+			System.out.println("Creating repository in " + repository.getAbsolutePath() + ": " + shape);
+			long start = System.currentTimeMillis();
+			SyntheticRepository.create(repository, shape);
+			System.out.println("Created in " + (System.currentTimeMillis() - start) / 1000 + " s");
+		}
+		
+		try {
+			
+			List<Integer> threadCounts = parseThreads(options.threads);
+			
+			// So the first measured run is not slowed down by the JIT
+			System.out.println("Warming up...");
+			run(repository, threadCounts.get(threadCounts.size() - 1), options.blameEngine);
+			
+			List<Result> results = new ArrayList<Result>();
+			for (int threads : threadCounts)
+				results.add(run(repository, threads, options.blameEngine));
+			
+			print(results);
+			
+		} finally {
+			if (delete)
+				FileUtils.deleteDirectory(repository);
+		}
+	}
+	
+	private static class Result {
+		int threads;
+		long wallMillis;
+		int files;
+		double lines;
+		long peakHeap;
+		double tailShare;
+	}
+	
+	private static Result run(File repository, int threads, String blameEngine) throws Exception {
+		Args args = new Args();
+		args.threads = threads;
+		args.noCache = true;
+		args.blameEngine = blameEngine;
+		
+		System.gc();
+		resetPeakHeap();
+		
+		ColumnarTable data = new ColumnarTable(Consts.NUM_COLUMNS);
+		
+		long start = System.nanoTime();
+		Utilization utilization = RepositoryProcessor.process(data, args, Collections.singletonList(repository),
+				new Snapshot(), Metrics.DISABLED, null);
+		long wall = System.nanoTime() - start;
+		
+		Result result = new Result();
+		result.threads = threads;
+		result.wallMillis = wall / 1000000;
+		result.files = data.getDistinct(Consts.COL_FILE).size();
+		result.lines = data.sum();
+		result.peakHeap = getPeakHeap();
+		if (utilization != null && wall > 0)
+			result.tailShare = utilization.getIdleTailNanos() / (double) wall;
+		return result;
+	}
+	
+	private static void print(List<Result> results) {
+		// All runs process the same files, so the speedup is the ratio of the times
+		Result base = results.get(0);
+		double baseSeconds = Math.max(base.wallMillis, 1) / 1000.;
+		
+		System.out.println();
+		System.out.println("Threads |   Wall s |  Files/s |   Lines/s | Speedup | Efficiency | Peak heap MB | Idle tail");
+		
+		Integer flattens = null;
+		for (Result result : results) {
+			double seconds = Math.max(result.wallMillis, 1) / 1000.;
+			double rate = result.files / seconds;
+			double speedup = baseSeconds / seconds;
+			double efficiency = speedup / (result.threads / (double) base.threads);
+			
+			if (flattens == null && efficiency < FLAT_EFFICIENCY)
+				flattens = result.threads;
+			
+			System.out.println(String.format("%7d | %8.1f | %8.1f | %9.0f | %6.2fx | %9.0f%% | %12d | %8.0f%%",
+					result.threads, seconds, rate, result.lines / seconds, speedup, efficiency * 100,
+					result.peakHeap >> 20, result.tailShare * 100));
+		}
+		
+		System.out.println();
+		if (flattens == null)
+			System.out.println("Scaling is still above " + Math.round(FLAT_EFFICIENCY * 100) + "% efficiency with "
+					+ results.get(results.size() - 1).threads + " threads");
+		else
+			System.out.println("Scaling flattens at " + flattens + " threads (efficiency below "
+					+ Math.round(FLAT_EFFICIENCY * 100) + "%)");
+	}
+	
+	private static List<Integer> parseThreads(String threads) {
+		List<Integer> result = new ArrayList<Integer>();
+		
+		if (threads != null) {
+			for (String t : threads.split(","))
+				result.add(Integer.parseInt(t.trim()));
+			return result;
+		}
+		
+		int processors = Runtime.getRuntime().availableProcessors();
+		for (int t = 1; t < processors; t *= 2)
+			result.add(t);
+		result.add(processors);
+		return result;
+	}
+	
+	private static void resetPeakHeap() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP)
+				pool.resetPeakUsage();
+	}
+	
+	/**
+	 * The sum of the peaks of the heap pools. They don't happen at the same time, so it is an upper bound.
+	 */
+	private static long getPeakHeap() {
+		long result = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP)
+				result += pool.getPeakUsage().getUsed();
+		return result;
+	}
+}
@@ -0,0 +1,175 @@
+package org.pescuma.gitstats.bench;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.pescuma.gitstats.Args;
+import org.pescuma.gitstats.Consts;
+import org.pescuma.gitstats.Metrics;
+import org.pescuma.gitstats.RepositoryProcessor;
+import org.pescuma.gitstats.Snapshot;
+import org.pescuma.gitstats.table.ColumnarTable;
+
+import com.google.common.io.Files;
+
+/**
+ * Runs the same repository with --since at the start of the last 50%, 25%, 10% and 5% of its history, to show how the
+ * time falls as the window shrinks.
+ *
+ * Each run is checked against the run without --since: the total of lines must be the same, and the lines of the
+ * commits after the cutoff must have the same rows.
+ *
+ * Usage: SinceBenchmark [files [commits [engine]]] or SinceBenchmark path/to/repository [engine]
+ *
+ * Without a repository it creates a synthetic one in a temporary folder.
+ */
+public class SinceBenchmark {
+	
+	private static final double[] WINDOWS = { 1, 0.5, 0.25, 0.1, 0.05 };
+	private static final String DATE_FORMAT = "yyyy-MM-dd";
+	
+	public static void main(String[] args) throws Exception {
+		File repository;
+		File tmp = null;
+		String engine;
+		
+		if (args.length > 0 && new File(args[0]).isDirectory()) {
+			repository = new File(args[0]);
+			engine = args.length > 1 ? args[1] : Args.BLAME_ENGINE_JGIT;
+			
+		} else {
+			int files = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+			int commits = args.length > 1 ? Integer.parseInt(args[1]) : 3000;
+			engine = args.length > 2 ? args[2] : Args.BLAME_ENGINE_JGIT;
+			
+			tmp = Files.createTempDir();
+			repository = tmp;
+			
+			System.out.println("Creating repository with " + files + " files and " + commits + " commits in "
+					+ repository.getAbsolutePath() + " ...");
+			SyntheticRepository.create(repository, files, commits, 20, 42);
+		}
+		
+		try {
+			
+			Map<String, Integer> commitTimes = new HashMap<String, Integer>();
+			int first = Integer.MAX_VALUE;
+			int last = 0;
+			
+			Repository git = new FileRepositoryBuilder().findGitDir(repository).build();
+			try {
+				RevWalk walk = new RevWalk(git);
+				walk.markStart(walk.parseCommit(git.resolve(Constants.HEAD)));
+				for (RevCommit commit : walk) {
+					commitTimes.put(commit.getName(), commit.getCommitTime());
+					first = Math.min(first, commit.getCommitTime());
+					last = Math.max(last, commit.getCommitTime());
+				}
+				walk.release();
+			} finally {
+				git.close();
+			}
+			
+			// So the first measured run is not slowed down by the JIT
+			System.out.println("Warming up...");
+			run(repository, engine, null);
+			
+			SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT);
+			
+			String[] sinces = new String[WINDOWS.length];
+			long[] times = new long[WINDOWS.length];
+			ColumnarTable[] results = new ColumnarTable[WINDOWS.length];
+			
+			for (int i = 0; i < WINDOWS.length; i++) {
+				if (WINDOWS[i] < 1)
+					sinces[i] = format.format(new Date((last - (long) ((last - first) * WINDOWS[i])) * 1000L));
+				
+				long start = System.currentTimeMillis();
+				results[i] = run(repository, engine, sinces[i]);
+				times[i] = System.currentTimeMillis() - start;
+			}
+			
+			System.out.println();
+			System.out.println(String.format("%-8s %-12s %10s %8s %14s %14s", "Window", "Since", "Time", "Speedup",
+					"Lines after", "Lines before"));
+			
+			boolean ok = true;
+			for (int i = 0; i < WINDOWS.length; i++) {
+				double before = 0;
+				for (int row = 0; row < results[i].size(); row++)
+					if (results[i].getColumn(row, Consts.COL_AUTHOR).startsWith(Consts.BEFORE_PREFIX))
+						before += results[i].getValue(row);
+				
+				System.out.println(String.format("%7.0f%% %-12s %,8d ms %7.1fx %,14.0f %,14.0f", WINDOWS[i] * 100,
+						sinces[i] == null ? "-" : sinces[i], times[i], times[0] / (double) Math.max(times[i], 1),
+						results[i].sum() - before, before));
+				
+				if (sinces[i] != null) {
+					int sinceTime = (int) (format.parse(sinces[i]).getTime() / 1000);
+					ok &= check(results[0], results[i], commitTimes, sinceTime, sinces[i]);
+				}
+			}
+			
+			if (!ok)
+				System.exit(1);
+			
+		} finally {
+			if (tmp != null)
+				FileUtils.deleteDirectory(tmp);
+		}
+	}
+	
+	private static ColumnarTable run(File repository, String engine, String since) throws Exception {
+		Args args = new Args();
+		args.blameEngine = engine;
+		args.since = since;
+		args.noCache = true;
+		args.threads = Runtime.getRuntime().availableProcessors();
+		
+		ColumnarTable data = new ColumnarTable(Consts.NUM_COLUMNS);
+		RepositoryProcessor.process(data, args, Collections.singletonList(repository), new Snapshot(),
+				Metrics.DISABLED, null);
+		return data;
+	}
+	
+	private static boolean check(ColumnarTable full, ColumnarTable window, Map<String, Integer> commitTimes,
+			int sinceTime, String since) {
+		if (full.sum() != window.sum()) {
+			System.out.println("--since " + since + ": expected " + full.sum() + " lines, got " + window.sum());
+			return false;
+		}
+		
+		Map<String, Double> expected = rowsAfter(full, commitTimes, sinceTime);
+		Map<String, Double> actual = rowsAfter(window, commitTimes, sinceTime);
+		if (expected.equals(actual))
+			return true;
+		
+		System.out.println("--since " + since + ": the lines after the cutoff are different (" + expected.size()
+				+ " rows expected, " + actual.size() + " rows found)");
+		return false;
+	}
+	
+	private static Map<String, Double> rowsAfter(ColumnarTable table, Map<String, Integer> commitTimes, int sinceTime) {
+		Map<String, Double> result = new HashMap<String, Double>();
+		for (int row = 0; row < table.size(); row++) {
+			Integer time = commitTimes.get(table.getColumn(row, Consts.COL_COMMIT));
+			if (time == null || time < sinceTime)
+				continue;
+			
+			result.put(StringUtils.join(Arrays.asList(table.getColumns(row)), " | "), table.getValue(row));
+		}
+		return result;
+	}
+}
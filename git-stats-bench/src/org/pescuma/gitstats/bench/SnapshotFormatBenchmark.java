@@ -0,0 +1,128 @@
+package org.pescuma.gitstats.bench;
+
+import java.io.File;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.pescuma.datatable.DataTable;
+import org.pescuma.datatable.DataTableSerialization;
+import org.pescuma.datatable.MemoryDataTable;
+import org.pescuma.gitstats.Consts;
+import org.pescuma.gitstats.export.CSVExporter;
+import org.pescuma.gitstats.table.ColumnarTable;
+import org.pescuma.gitstats.table.ColumnarTableSerialization;
+
+import com.google.common.io.Files;
+
+/**
+ * Saves the same table as CSV, .gstats and compressed .gstats, checks that each one loads back to the same rows and
+ * compares the size of the files and the time to load them.
+ *
+ * Usage: SnapshotFormatBenchmark [snapshot.csv]
+ */
+public class SnapshotFormatBenchmark {
+	
+	private static final int RUNS = 3;
+	
+	public static void main(String[] args) throws Exception {
+		ColumnarTable table;
+		if (args.length > 0) {
+			System.out.println("Loading " + args[0] + "...");
+			table = loadCSV(new File(args[0]));
+		} else {
+			table = createSynthetic(40000, 100, 20000, 500);
+		}
+		
+		File tmp = Files.createTempDir();
+		try {
+			
+			File csv = new File(tmp, "snapshot.csv");
+			File gstats = new File(tmp, "snapshot.gstats");
+			File compressed = new File(tmp, "compressed.gstats");
+			
+			CSVExporter.export(table, csv);
+			ColumnarTableSerialization.saveAsGStats(table, gstats, false);
+			ColumnarTableSerialization.saveAsGStats(table, compressed, true);
+			
+			System.out.println();
+			System.out.println(String.format("Rows               : %,d", table.size()));
+			
+			boolean same = true;
+			same &= run("CSV", csv, table);
+			same &= run(".gstats", gstats, table);
+			same &= run(".gstats compressed", compressed, table);
+			
+			if (!same)
+				System.exit(1);
+			
+		} finally {
+			FileUtils.deleteDirectory(tmp);
+		}
+	}
+	
+	private static boolean run(String name, File file, ColumnarTable expected) throws Exception {
+		long best = Long.MAX_VALUE;
+		ColumnarTable loaded = null;
+		for (int i = 0; i < RUNS; i++) {
+			System.gc();
+			
+			long start = System.nanoTime();
+			loaded = load(file);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		
+		boolean same = isSame(expected, loaded);
+		
+		System.out.println(String.format("%-19s: %,d KB, loaded in %,d ms%s", name, file.length() >> 10,
+				best / 1000000, same ? "" : " - DIFFERENT ROWS"));
+		
+		return same;
+	}
+	
+	private static ColumnarTable load(File file) throws Exception {
+		if (ColumnarTableSerialization.isGStats(file)) {
+			ColumnarTable result = new ColumnarTable(Consts.NUM_COLUMNS);
+			ColumnarTableSerialization.loadFromGStats(result, file);
+			return result;
+		}
+		
+		return loadCSV(file);
+	}
+	
+	private static ColumnarTable loadCSV(File file) {
+		DataTable csv = new MemoryDataTable();
+		DataTableSerialization.loadFromCSV(csv, file);
+		return ColumnarTable.fromDataTable(csv, Consts.NUM_COLUMNS);
+	}
+	
+	private static boolean isSame(ColumnarTable expected, ColumnarTable actual) {
+		if (expected.size() != actual.size())
+			return false;
+		
+		for (int row = 0; row < expected.size(); row++)
+			if (actual.get(expected.getColumns(row)) != expected.getValue(row))
+				return false;
+		
+		return true;
+	}
+	
+	private static ColumnarTable createSynthetic(int files, int linesPerFile, int commits, int authors) {
+		Random random = new Random(42);
+		String[] lineTypes = { Consts.CODE, Consts.COMMENT, Consts.EMPTY };
+		
+		ColumnarTable result = new ColumnarTable(Consts.NUM_COLUMNS);
+		for (int f = 0; f < files; f++) {
+			String file = "src/module" + (f % 100) + "/File" + f + ".java";
+			
+			for (int l = 0; l < linesPerFile; l++) {
+				int commit = random.nextInt(commits);
+				String sha = String.format("%040x", commit * 2654435761L);
+				String month = String.format("%04d-%02d", 2005 + commit % 10, 1 + commit % 12);
+				
+				result.inc(1, "Java", lineTypes[random.nextInt(lineTypes.length)], month, sha, "Author "
+						+ (commit % authors), file);
+			}
+		}
+		return result;
+	}
+}
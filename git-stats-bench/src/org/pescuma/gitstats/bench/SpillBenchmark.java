@@ -0,0 +1,154 @@
+package org.pescuma.gitstats.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.pescuma.datatable.DataTable;
+import org.pescuma.datatable.DataTableSerialization;
+import org.pescuma.datatable.MemoryDataTable;
+import org.pescuma.gitstats.Consts;
+import org.pescuma.gitstats.export.CSVExporter;
+import org.pescuma.gitstats.table.ColumnarTable;
+import org.pescuma.gitstats.table.SortedRuns;
+
+import com.google.common.io.Files;
+
+/**
+ * Aggregates the same rows the way the blame threads do, once keeping the partial table of each thread in memory and
+ * once spilling them to {@link SortedRuns} when they reach the limit. Checks that both give the same rows (also when
+ * the CSV is written directly from the merge) and shows the memory kept by the partial tables, the files written and
+ * the time of each step.
+ *
+ * Usage: SpillBenchmark [files [spill MB [threads]]]
+ */
+public class SpillBenchmark {
+	
+	private static final int LINES_PER_FILE = 100;
+	private static final int COMMITS = 20000;
+	private static final int AUTHORS = 500;
+	
+	public static void main(String[] args) throws Exception {
+		int files = args.length > 0 ? Integer.parseInt(args[0]) : 40000;
+		int spillMB = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+		long spillBytes = spillMB * 1024L * 1024L / threads;
+		
+		File tmp = Files.createTempDir();
+		try {
+			
+			// In memory: one partial table per thread, merged at the end
+			long start = System.nanoTime();
+			List<ColumnarTable> partials = new ArrayList<ColumnarTable>();
+			for (int t = 0; t < threads; t++)
+				partials.add(new ColumnarTable(Consts.NUM_COLUMNS));
+			for (int f = 0; f < files; f++)
+				addFile(partials.get(f % threads), f);
+			
+			long partialBytes = 0;
+			for (ColumnarTable partial : partials)
+				partialBytes += partial.estimateBytes();
+			
+			ColumnarTable expected = new ColumnarTable(Consts.NUM_COLUMNS);
+			for (ColumnarTable partial : partials)
+				expected.inc(partial);
+			partials = null;
+			long inMemoryNanos = System.nanoTime() - start;
+			
+			// Spilling: each thread writes its table when it gets over the limit
+			start = System.nanoTime();
+			SortedRuns runs = new SortedRuns(tmp, Consts.NUM_COLUMNS);
+			ColumnarTable[] current = new ColumnarTable[threads];
+			for (int t = 0; t < threads; t++)
+				current[t] = new ColumnarTable(Consts.NUM_COLUMNS);
+			
+			long maxSpillingBytes = 0;
+			for (int f = 0; f < files; f++) {
+				int t = f % threads;
+				addFile(current[t], f);
+				
+				if (current[t].estimateBytes() > spillBytes) {
+					runs.add(current[t]);
+					current[t] = new ColumnarTable(Consts.NUM_COLUMNS);
+				}
+				
+				long bytes = 0;
+				for (ColumnarTable table : current)
+					bytes += table.estimateBytes();
+				maxSpillingBytes = Math.max(maxSpillingBytes, bytes);
+			}
+			for (ColumnarTable table : current)
+				runs.add(table);
+			current = null;
+			long spillNanos = System.nanoTime() - start;
+			int runCount = runs.getRunCount();
+			long runBytes = runs.getBytes();
+			
+			start = System.nanoTime();
+			ColumnarTable merged = new ColumnarTable(Consts.NUM_COLUMNS);
+			runs.mergeInto(merged);
+			long mergeNanos = System.nanoTime() - start;
+			
+			File csv = new File(tmp, "streamed.csv");
+			start = System.nanoTime();
+			CSVExporter.export(runs, csv);
+			long streamNanos = System.nanoTime() - start;
+			
+			boolean sameMerged = isSame(expected, merged);
+			boolean sameCSV = isSame(expected, loadCSV(csv));
+			
+			System.out.println();
+			System.out.println(String.format("Rows                   : %,d", expected.size()));
+			System.out.println(String.format("Partial tables, memory : %,d MB, aggregated in %,d ms",
+					partialBytes >> 20, inMemoryNanos / 1000000));
+			System.out.println(String.format("Partial tables, spill  : %,d MB at most, %d files with %,d KB written in %,d ms",
+					maxSpillingBytes >> 20, runCount, runBytes >> 10, spillNanos / 1000000));
+			System.out.println(String.format("Merge into a table     : %,d ms%s", mergeNanos / 1000000,
+					sameMerged ? "" : " - DIFFERENT ROWS"));
+			System.out.println(String.format("Merge into a CSV file  : %,d ms%s", streamNanos / 1000000,
+					sameCSV ? "" : " - DIFFERENT ROWS"));
+			
+			runs.delete();
+			
+			if (!sameMerged || !sameCSV)
+				System.exit(1);
+			
+		} finally {
+			FileUtils.deleteDirectory(tmp);
+		}
+	}
+	
+	private static void addFile(ColumnarTable table, int f) {
+		Random random = new Random(f);
+		String[] lineTypes = { Consts.CODE, Consts.COMMENT, Consts.EMPTY };
+		String file = "src/module" + (f % 100) + "/File" + f + ".java";
+		
+		for (int l = 0; l < LINES_PER_FILE; l++) {
+			int commit = random.nextInt(COMMITS);
+			String sha = String.format("%040x", commit * 2654435761L);
+			String month = String.format("%04d-%02d", 2005 + commit % 10, 1 + commit % 12);
+			
+			table.inc(1, "Java", lineTypes[random.nextInt(lineTypes.length)], month, sha, "Author "
+					+ (commit % AUTHORS), file);
+		}
+	}
+	
+	private static ColumnarTable loadCSV(File file) {
+		DataTable csv = new MemoryDataTable();
+		DataTableSerialization.loadFromCSV(csv, file);
+		return ColumnarTable.fromDataTable(csv, Consts.NUM_COLUMNS);
+	}
+	
+	private static boolean isSame(ColumnarTable expected, ColumnarTable actual) {
+		if (expected.size() != actual.size())
+			return false;
+		
+		for (int row = 0; row < expected.size(); row++)
+			if (actual.get(expected.getColumns(row)) != expected.getValue(row))
+				return false;
+		
+		return true;
+	}
+}
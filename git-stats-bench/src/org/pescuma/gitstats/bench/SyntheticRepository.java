@@ -0,0 +1,291 @@
+package org.pescuma.gitstats.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import org.apache.commons.lang3.StringUtils;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+
+/**
+ * Creates a git repository with random history, writing the objects directly (there is no working tree checkout).
+ *
+ * Each commit edits a few files (adding, removing and changing lines, sometimes only the indentation), and some
+ * commits add or rename files. From time to time a branch is created and merged back, so the merge handling is also
+ * exercised. The same shape (including the seed) always creates the same repository.
+ */
+public class SyntheticRepository {
+	
+	/**
+	 * The knobs of the generated repository.
+	 */
+	public static class Shape {
+		/** Number of files in the first commit */
+		public int files = 500;
+		/** Average number of commits that change each file. Ignored if commits is set */
+		public double commitsPerFile = 12;
+		/** Total number of commits, if set */
+		public int commits;
+		/** Average number of files changed by each commit */
+		public int filesPerCommit = 3;
+		public int authors = 20;
+		/** Chance of a commit renaming a file */
+		public double renameRate = 1 / 30.;
+		/** Chance of a commit adding a file */
+		public double addRate = 1 / 10.;
+		/** Chance of a commit being a branch that is merged back */
+		public double mergeRate = 1 / 20.;
+		/** The sizes of the files follow a log-normal distribution, with this median and sigma */
+		public int medianLines = 100;
+		public double linesSigma = 1;
+		public long seed = 42;
+		
+		public int getCommits() {
+			if (commits > 0)
+				return commits;
+			return (int) Math.max(Math.round(files * commitsPerFile / filesPerCommit), 1);
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("%d files, %d commits, %d authors, %d files per commit, rename rate %.3f, "
+					+ "add rate %.3f, merge rate %.3f, median %d lines (sigma %.1f), seed %d", files, getCommits(),
+					authors, filesPerCommit, renameRate, addRate, mergeRate, medianLines, linesSigma, seed);
+		}
+	}
+	
+	private static final int MAX_LINES = 50000;
+	
+	private final Shape shape;
+	private final Random random;
+	private final Repository repository;
+	private final ObjectInserter inserter;
+	private final Map<String, List<String>> files = new TreeMap<String, List<String>>();
+	private final Map<String, ObjectId> blobs = new HashMap<String, ObjectId>();
+	private long time = 1262304000000L;
+	private int nextFile;
+	
+	private SyntheticRepository(Repository repository, Shape shape) {
+		this.repository = repository;
+		this.shape = shape;
+		random = new Random(shape.seed);
+		inserter = repository.newObjectInserter();
+	}
+	
+	public static void create(File dir, int files, int commits, int authors, long seed) throws IOException {
+		Shape shape = new Shape();
+		shape.files = files;
+		shape.commits = commits;
+		shape.authors = authors;
+		shape.seed = seed;
+		create(dir, shape);
+	}
+	
+	public static void create(File dir, Shape shape) throws IOException {
+		Repository repository = FileRepositoryBuilder.create(new File(dir, Constants.DOT_GIT));
+		repository.create();
+		
+		try {
+			
+			new SyntheticRepository(repository, shape).createHistory(shape.files, shape.getCommits());
+			
+		} finally {
+			repository.close();
+		}
+	}
+	
+	private void createHistory(int fileCount, int commitCount) throws IOException {
+		for (int i = 0; i < fileCount; i++)
+			addFile();
+		
+		ObjectId head = commit();
+		
+		int created = 1;
+		while (created < commitCount) {
+			if (commitCount - created > 5 && random.nextDouble() < shape.mergeRate) {
+				head = createMerge(head, 2 + random.nextInt(3));
+				created += 4;
+				continue;
+			}
+			
+			changeFiles();
+			head = commit(head);
+			created++;
+		}
+		
+		inserter.flush();
+		inserter.release();
+		
+		RefUpdate ref = repository.updateRef(Constants.R_HEADS + Constants.MASTER);
+		ref.setNewObjectId(head);
+		ref.forceUpdate();
+	}
+	
+	/**
+	 * A side branch with some commits that is merged back after one commit in the main line. When both change the same
+	 * file the merge keeps the main line version.
+	 */
+	private ObjectId createMerge(ObjectId fork, int sideCommits) throws IOException {
+		Map<String, List<String>> forkFiles = copy(files);
+		
+		ObjectId side = fork;
+		for (int i = 0; i < sideCommits; i++) {
+			changeFiles();
+			side = commit(side);
+		}
+		Map<String, List<String>> sideFiles = copy(files);
+		
+		files.clear();
+		files.putAll(forkFiles);
+		blobs.clear();
+		changeFiles();
+		ObjectId main = commit(fork);
+		
+		for (Map.Entry<String, List<String>> entry : sideFiles.entrySet()) {
+			String path = entry.getKey();
+			if (!files.containsKey(path) || files.get(path).equals(forkFiles.get(path)))
+				files.put(path, entry.getValue());
+		}
+		blobs.clear();
+		
+		return commit(main, side);
+	}
+	
+	private void changeFiles() {
+		if (random.nextDouble() < shape.addRate)
+			addFile();
+		
+		if (random.nextDouble() < shape.renameRate)
+			renameFile();
+		
+		int count = 1 + random.nextInt(2 * shape.filesPerCommit - 1);
+		for (int i = 0; i < count; i++)
+			changeFile(randomFile());
+	}
+	
+	private void addFile() {
+		int index = nextFile++;
+		String path = "src/module" + (index % 10) + "/File" + index + ".java";
+		
+		List<String> lines = new ArrayList<String>();
+		int size = (int) Math.round(shape.medianLines * Math.exp(shape.linesSigma * random.nextGaussian()));
+		size = Math.min(Math.max(size, 1), MAX_LINES);
+		for (int i = 0; i < size; i++)
+			lines.add(randomLine());
+		
+		files.put(path, lines);
+	}
+	
+	private void renameFile() {
+		String path = randomFile();
+		List<String> lines = files.remove(path);
+		blobs.remove(path);
+		files.put(path.replace(".java", "Renamed.java"), lines);
+	}
+	
+	private void changeFile(String path) {
+		List<String> lines = new ArrayList<String>(files.get(path));
+		
+		int edits = 1 + random.nextInt(4);
+		for (int i = 0; i < edits; i++) {
+			int pos = random.nextInt(lines.size() + 1);
+			
+			switch (random.nextInt(4)) {
+				case 0:
+					int count = 1 + random.nextInt(10);
+					for (int j = 0; j < count; j++)
+						lines.add(pos, randomLine());
+					break;
+				case 1:
+					if (pos < lines.size() && lines.size() > 1)
+						lines.remove(pos);
+					break;
+				case 2:
+					if (pos < lines.size())
+						lines.set(pos, randomLine());
+					break;
+				case 3:
+					// Only whitespace, ignored by the blame
+					if (pos < lines.size())
+						lines.set(pos, "\t" + lines.get(pos));
+					break;
+			}
+		}
+		
+		files.put(path, lines);
+		blobs.remove(path);
+	}
+	
+	private String randomFile() {
+		List<String> paths = new ArrayList<String>(files.keySet());
+		return paths.get(random.nextInt(paths.size()));
+	}
+	
+	private String randomLine() {
+		switch (random.nextInt(6)) {
+			case 0:
+				return "";
+			case 1:
+				return "\t// Comment " + random.nextInt(1000);
+			default:
+				return "\tint value" + random.nextInt(100) + " = compute(" + random.nextInt(100000) + ");";
+		}
+	}
+	
+	private ObjectId commit(ObjectId... parents) throws IOException {
+		DirCache index = DirCache.newInCore();
+		DirCacheBuilder builder = index.builder();
+		for (Map.Entry<String, List<String>> file : files.entrySet()) {
+			DirCacheEntry entry = new DirCacheEntry(file.getKey());
+			entry.setFileMode(FileMode.REGULAR_FILE);
+			entry.setObjectId(insertBlob(file.getKey(), file.getValue()));
+			builder.add(entry);
+		}
+		builder.finish();
+		
+		time += random.nextInt(2 * 24 * 60 * 60 * 1000);
+		int author = random.nextInt(shape.authors);
+		PersonIdent ident = new PersonIdent("Author " + author, "author" + author + "@example.com", new Date(time),
+				TimeZone.getTimeZone("UTC"));
+		
+		CommitBuilder commit = new CommitBuilder();
+		commit.setTreeId(index.writeTree(inserter));
+		if (parents.length > 0)
+			commit.setParentIds(parents);
+		commit.setAuthor(ident);
+		commit.setCommitter(ident);
+		commit.setMessage("Change " + time);
+		return inserter.insert(commit);
+	}
+	
+	private ObjectId insertBlob(String path, List<String> lines) throws IOException {
+		ObjectId result = blobs.get(path);
+		if (result == null) {
+			result = inserter.insert(Constants.OBJ_BLOB, Constants.encode(StringUtils.join(lines, "\n") + "\n"));
+			blobs.put(path, result);
+		}
+		return result;
+	}
+	
+	private static Map<String, List<String>> copy(Map<String, List<String>> files) {
+		return new TreeMap<String, List<String>>(files);
+	}
+}
@@ -0,0 +1,86 @@
+package org.pescuma.gitstats.bench;
+
+import java.io.File;
+import java.util.Random;
+
+import org.pescuma.datatable.DataTable;
+import org.pescuma.datatable.DataTableSerialization;
+import org.pescuma.datatable.MemoryDataTable;
+import org.pescuma.gitstats.Consts;
+import org.pescuma.gitstats.table.ColumnarTable;
+
+/**
+ * Compares the heap used by {@link MemoryDataTable} and {@link ColumnarTable} with the same rows.
+ *
+ * Usage: TableMemoryBenchmark [snapshot.csv]
+ *
+ * Without a file it creates synthetic rows, allocating new strings for the commit and month of each row, as
+ * AuthorsProcessor does.
+ */
+public class TableMemoryBenchmark {
+	
+	public static void main(String[] args) {
+		System.out.println("Creating MemoryDataTable...");
+		long before = usedMemory();
+		DataTable memory = args.length > 0 ? load(new File(args[0])) : createSynthetic(40000, 100, 20000, 500);
+		long memoryBytes = usedMemory() - before;
+		int rows = memory.size();
+		
+		System.out.println("Creating ColumnarTable...");
+		before = usedMemory();
+		ColumnarTable columnar = ColumnarTable.fromDataTable(memory, Consts.NUM_COLUMNS);
+		long columnarBytes = usedMemory() - before;
+		
+		if (columnar.size() != rows || columnar.sum() != memory.sum())
+			throw new IllegalStateException("Tables are different");
+		
+		System.out.println();
+		System.out.println(String.format("Rows             : %,d", rows));
+		System.out.println(String.format("MemoryDataTable  : %,d MB (%.0f bytes/row)", memoryBytes >> 20,
+				memoryBytes / (double) rows));
+		System.out.println(String.format("ColumnarTable    : %,d MB (%.0f bytes/row)", columnarBytes >> 20,
+				columnarBytes / (double) rows));
+		System.out.println(String.format("Ratio            : %.1fx", memoryBytes / (double) columnarBytes));
+	}
+	
+	private static DataTable load(File file) {
+		System.out.println("Loading " + file.getAbsolutePath() + "...");
+		
+		DataTable result = new MemoryDataTable();
+		DataTableSerialization.loadFromCSV(result, file);
+		return result;
+	}
+	
+	private static DataTable createSynthetic(int files, int linesPerFile, int commits, int authors) {
+		Random random = new Random(42);
+		String[] lineTypes = { Consts.CODE, Consts.COMMENT, Consts.EMPTY };
+		
+		DataTable result = new MemoryDataTable();
+		for (int f = 0; f < files; f++) {
+			String file = "src/module" + (f % 100) + "/File" + f + ".java";
+			
+			for (int l = 0; l < linesPerFile; l++) {
+				int commit = random.nextInt(commits);
+				String sha = String.format("%040x", commit * 2654435761L);
+				String month = String.format("%04d-%02d", 2005 + commit % 10, 1 + commit % 12);
+				
+				result.inc(1, "Java", lineTypes[random.nextInt(lineTypes.length)], month, sha, "Author "
+						+ (commit % authors), file);
+			}
+		}
+		return result;
+	}
+	
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,117 @@
+package org.pescuma.gitstats.bench.jmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pescuma.gitstats.AuthorsProcessor;
+import org.pescuma.gitstats.CommitDictionary;
+import org.pescuma.gitstats.Consts;
+import org.pescuma.gitstats.bench.SyntheticRepository;
+import org.pescuma.gitstats.blame.BlameBudget;
+import org.pescuma.gitstats.blame.Blamer;
+import org.pescuma.gitstats.blame.GitBlamer;
+import org.pescuma.gitstats.blame.HistoryBlamer;
+import org.pescuma.gitstats.blame.JGitBlamer;
+import org.pescuma.gitstats.table.ColumnarTable;
+import org.pescuma.programminglanguagedetector.FilenameToLanguage;
+
+import com.google.common.io.Files;
+
+/**
+ * {@link AuthorsProcessor#computeAuthors} over all the files of a synthetic repository, in one thread, with each blame
+ * engine. For the history engine the walk is included, since it is done once per run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BlameBenchmark {
+	
+	@Param({ "jgit", "history", "git" })
+	public String engine;
+	
+	@Param({ "200" })
+	public int files;
+	
+	@Param({ "1000" })
+	public int commits;
+	
+	private File tmp;
+	private Repository repository;
+	private RevCommit head;
+	private List<String> paths;
+	
+	@Setup
+	public void setup() throws IOException {
+		tmp = Files.createTempDir();
+		SyntheticRepository.create(tmp, files, commits, 20, 42);
+		
+		repository = new FileRepositoryBuilder().setWorkTree(tmp).build();
+		
+		RevWalk walk = new RevWalk(repository);
+		head = walk.parseCommit(repository.resolve(Constants.HEAD));
+		
+		paths = new ArrayList<String>();
+		TreeWalk tree = new TreeWalk(repository);
+		tree.addTree(head.getTree());
+		tree.setRecursive(true);
+		while (tree.next())
+			if (FilenameToLanguage.isKnownFileType(tree.getPathString()))
+				paths.add(tree.getPathString());
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException {
+		repository.close();
+		FileUtils.deleteDirectory(tmp);
+	}
+	
+	@Benchmark
+	public ColumnarTable computeAuthors() throws IOException, GitAPIException {
+		CommitDictionary commits = new CommitDictionary(new HashSet<ObjectId>(),
+				Collections.<String, String> emptyMap());
+		
+		Blamer blamer;
+		if (engine.equals("history"))
+			blamer = HistoryBlamer.compute(repository, head, commits);
+		else if (engine.equals("git"))
+			blamer = new GitBlamer(repository, head, commits, BlameBudget.UNLIMITED, 1);
+		else
+			blamer = new JGitBlamer(repository, commits);
+		
+		AuthorsProcessor processor = new AuthorsProcessor(blamer, Collections.<String, String> emptyMap(), null);
+		
+		ColumnarTable result = new ColumnarTable(Consts.NUM_COLUMNS);
+		for (String path : paths)
+			processor.computeAuthors(result, path);
+		return result;
+	}
+}
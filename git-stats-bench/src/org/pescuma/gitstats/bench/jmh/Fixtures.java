@@ -0,0 +1,68 @@
+package org.pescuma.gitstats.bench.jmh;
+
+import java.util.Random;
+
+import org.pescuma.gitstats.Consts;
+import org.pescuma.gitstats.table.ColumnarTable;
+
+/**
+ * Synthetic rows with the shape of real data: few languages, many commits and files, each file with lines from
+ * several commits.
+ */
+class Fixtures {
+	
+	static final String[] LINE_TYPES = { Consts.CODE, Consts.COMMENT, Consts.EMPTY };
+	
+	final String[] languages = { "Java", "JavaScript", "XML", "C", "Python" };
+	final String[] commits;
+	final String[] months;
+	final String[] authors;
+	final String[] files;
+	private final int linesPerFile;
+	private final Random random = new Random(42);
+	
+	Fixtures(int rows) {
+		int commitCount = Math.max(rows / 50, 10);
+		linesPerFile = 10;
+		
+		commits = new String[commitCount];
+		months = new String[commitCount];
+		for (int i = 0; i < commitCount; i++) {
+			commits[i] = String.format("%040x", i * 2654435761L);
+			months[i] = String.format("%04d-%02d", 2005 + i % 10, 1 + i % 12);
+		}
+		
+		authors = new String[Math.max(commitCount / 40, 1)];
+		for (int i = 0; i < authors.length; i++)
+			authors[i] = "Author " + i;
+		
+		files = new String[Math.max(rows / linesPerFile, 1)];
+		for (int i = 0; i < files.length; i++)
+			files[i] = "src/module" + (i % 100) + "/File" + i + ".java";
+	}
+	
+	/**
+	 * Fills the columns of the row (in the Consts.COL_* order). The same row number always gives the same row.
+	 */
+	void fillRow(int row, String[] columns) {
+		random.setSeed(row);
+		int commit = random.nextInt(commits.length);
+		
+		columns[Consts.COL_LANGUAGE] = languages[row % languages.length];
+		columns[Consts.COL_LINE_TYPE] = LINE_TYPES[random.nextInt(LINE_TYPES.length)];
+		columns[Consts.COL_MONTH] = months[commit];
+		columns[Consts.COL_COMMIT] = commits[commit];
+		columns[Consts.COL_AUTHOR] = authors[commit % authors.length];
+		columns[Consts.COL_FILE] = files[(row / linesPerFile) % files.length];
+	}
+	
+	ColumnarTable createTable(int rows) {
+		ColumnarTable result = new ColumnarTable(Consts.NUM_COLUMNS);
+		String[] columns = new String[Consts.NUM_COLUMNS];
+		for (int row = 0; row < rows; row++) {
+			fillRow(row, columns);
+			result.inc(1, columns);
+		}
+		return result;
+	}
+}
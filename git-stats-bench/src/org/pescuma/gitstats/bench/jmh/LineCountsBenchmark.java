@@ -0,0 +1,128 @@
+package org.pescuma.gitstats.bench.jmh;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pescuma.gitstats.CommitDictionary;
+import org.pescuma.gitstats.CommitDictionary.CommitInfo;
+import org.pescuma.gitstats.Consts;
+import org.pescuma.gitstats.LineCounts;
+import org.pescuma.gitstats.table.ColumnarTable;
+import org.pescuma.programminglanguagedetector.SimpleFileParser.LineType;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Adding the blamed lines of the files to the table one line at a time against counting them per commit and line type
+ * with {@link LineCounts} and adding only the totals, as AuthorsProcessor does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LineCountsBenchmark {
+	
+	private static final int FILES = 100;
+	
+	@Param({ "100", "2000" })
+	public int linesPerFile;
+	
+	@Param({ "5", "50" })
+	public int commitsPerFile;
+	
+	private String[] files;
+	private CommitInfo[][] commits;
+	private LineType[][] lineTypes;
+	
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		CommitDictionary dictionary = new CommitDictionary(new HashSet<ObjectId>(),
+				Collections.<String, String> emptyMap());
+		
+		CommitInfo[] pool = new CommitInfo[FILES * commitsPerFile / 2 + 1];
+		for (int i = 0; i < pool.length; i++)
+			pool[i] = dictionary.get(createCommit(i));
+		
+		files = new String[FILES];
+		commits = new CommitInfo[FILES][linesPerFile];
+		lineTypes = new LineType[FILES][linesPerFile];
+		
+		for (int f = 0; f < FILES; f++) {
+			files[f] = "src/module" + (f % 10) + "/File" + f + ".java";
+			
+			// Lines come in blocks from the same commit
+			CommitInfo commit = null;
+			for (int l = 0; l < linesPerFile; l++) {
+				if (commit == null || random.nextInt(linesPerFile) < commitsPerFile)
+					commit = pool[random.nextInt(pool.length)];
+				
+				commits[f][l] = commit;
+				lineTypes[f][l] = LineType.values()[random.nextInt(LineType.values().length)];
+			}
+		}
+	}
+	
+	private static RevCommit createCommit(int i) {
+		String time = Long.toString(1262304000L + i * 3600L);
+		String text = "tree " + ObjectId.zeroId().name() + "\n" //
+				+ "author Author " + (i % 20) + " <a" + (i % 20) + "@example.com> " + time + " +0000\n" //
+				+ "committer Author " + (i % 20) + " <a" + (i % 20) + "@example.com> " + time + " +0000\n" //
+				+ "\n" //
+				+ "Commit " + i + "\n";
+		return RevCommit.parse(text.getBytes(Charsets.UTF_8));
+	}
+	
+	@Benchmark
+	public ColumnarTable perLine() {
+		ColumnarTable result = new ColumnarTable(Consts.NUM_COLUMNS);
+		for (int f = 0; f < FILES; f++) {
+			for (int l = 0; l < linesPerFile; l++) {
+				CommitInfo commit = commits[f][l];
+				result.inc(1, "Java", toName(lineTypes[f][l]), commit.month, commit.hex, commit.author, files[f]);
+			}
+		}
+		return result;
+	}
+	
+	@Benchmark
+	public ColumnarTable lineCounts() {
+		ColumnarTable result = new ColumnarTable(Consts.NUM_COLUMNS);
+		LineCounts counts = new LineCounts();
+		for (int f = 0; f < FILES; f++) {
+			for (int l = 0; l < linesPerFile; l++)
+				counts.add(commits[f][l], lineTypes[f][l]);
+			
+			counts.flush("Java", files[f], result);
+		}
+		return result;
+	}
+	
+	private static String toName(LineType lineType) {
+		switch (lineType) {
+			case Empty:
+				return Consts.EMPTY;
+			case Code:
+				return Consts.CODE;
+			default:
+				return Consts.COMMENT;
+		}
+	}
+}
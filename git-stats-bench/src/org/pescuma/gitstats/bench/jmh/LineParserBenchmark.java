@@ -0,0 +1,66 @@
+package org.pescuma.gitstats.bench.jmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.pescuma.programminglanguagedetector.FilenameToLanguage;
+import org.pescuma.programminglanguagedetector.SimpleFileParser;
+
+/**
+ * Classifying the lines of real source files (by default the sources of git-stats itself).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LineParserBenchmark {
+	
+	@Param("../git-stats/src")
+	public String sources;
+	
+	private final List<String> languages = new ArrayList<String>();
+	private final List<List<String>> files = new ArrayList<List<String>>();
+	
+	@Setup
+	public void setup() throws IOException {
+		Collection<File> all = FileUtils.listFiles(new File(sources), null, true);
+		for (File file : all) {
+			if (!FilenameToLanguage.isKnownFileType(file.getName()))
+				continue;
+			
+			languages.add(FilenameToLanguage.detectLanguage(file.getName()));
+			files.add(FileUtils.readLines(file, "UTF-8"));
+		}
+		
+		if (files.isEmpty())
+			throw new IllegalStateException("No source files found in " + new File(sources).getAbsolutePath());
+	}
+	
+	@Benchmark
+	public void feedNextLine(Blackhole blackhole) {
+		for (int i = 0; i < files.size(); i++) {
+			SimpleFileParser parser = new SimpleFileParser(languages.get(i));
+			for (String line : files.get(i))
+				blackhole.consume(parser.feedNextLine(line));
+		}
+	}
+}
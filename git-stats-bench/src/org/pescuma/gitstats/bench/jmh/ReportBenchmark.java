@@ -0,0 +1,44 @@
+package org.pescuma.gitstats.bench.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pescuma.gitstats.ReportCube;
+import org.pescuma.gitstats.table.ColumnarTable;
+
+/**
+ * The aggregation behind the console output.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class ReportBenchmark {
+	
+	@Param({ "100000", "1000000" })
+	public int rows;
+	
+	private ColumnarTable data;
+	
+	@Setup
+	public void setup() {
+		data = new Fixtures(rows).createTable(rows);
+	}
+	
+	@Benchmark
+	public ReportCube build() {
+		return ReportCube.build(data);
+	}
+}
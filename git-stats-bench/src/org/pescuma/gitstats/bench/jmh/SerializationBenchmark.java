@@ -0,0 +1,108 @@
+package org.pescuma.gitstats.bench.jmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pescuma.datatable.DataTable;
+import org.pescuma.datatable.DataTableSerialization;
+import org.pescuma.datatable.MemoryDataTable;
+import org.pescuma.gitstats.Consts;
+import org.pescuma.gitstats.export.CSVExporter;
+import org.pescuma.gitstats.export.HTMLExporter;
+import org.pescuma.gitstats.table.ColumnarTable;
+import org.pescuma.gitstats.table.ColumnarTableSerialization;
+
+import com.google.common.io.Files;
+
+/**
+ * Saving and loading snapshots: CSV through DataTableSerialization (as in older versions), the streaming CSV exporter
+ * and the .gstats format.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class SerializationBenchmark {
+	
+	@Param({ "100000", "1000000" })
+	public int rows;
+	
+	private File tmp;
+	private ColumnarTable table;
+	private DataTable dataTable;
+	private File csv;
+	private File gstats;
+	
+	@Setup
+	public void setup() throws IOException {
+		tmp = Files.createTempDir();
+		table = new Fixtures(rows).createTable(rows);
+		dataTable = table.toDataTable();
+		
+		csv = new File(tmp, "data.csv");
+		CSVExporter.export(table, csv);
+		gstats = new File(tmp, "data.gstats");
+		ColumnarTableSerialization.saveAsGStats(table, gstats, false);
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(tmp);
+	}
+	
+	@Benchmark
+	public void saveCSV() {
+		DataTableSerialization.saveAsCSV(dataTable, new File(tmp, "save.csv"), false);
+	}
+	
+	@Benchmark
+	public void exportCSV() throws IOException {
+		CSVExporter.export(table, new File(tmp, "export.csv"));
+	}
+	
+	@Benchmark
+	public void exportHTML() throws IOException {
+		HTMLExporter.export(table, Collections.<String, String> emptyMap(), new File(tmp, "export.html"), false);
+	}
+	
+	@Benchmark
+	public void exportCompressedHTML() throws IOException {
+		HTMLExporter.export(table, Collections.<String, String> emptyMap(), new File(tmp, "export.html"), true);
+	}
+	
+	@Benchmark
+	public void saveGStats() throws IOException {
+		ColumnarTableSerialization.saveAsGStats(table, new File(tmp, "save.gstats"), false);
+	}
+	
+	@Benchmark
+	public DataTable loadCSV() {
+		DataTable result = new MemoryDataTable();
+		DataTableSerialization.loadFromCSV(result, csv);
+		return result;
+	}
+	
+	@Benchmark
+	public ColumnarTable loadGStats() throws IOException {
+		ColumnarTable result = new ColumnarTable(Consts.NUM_COLUMNS);
+		ColumnarTableSerialization.loadFromGStats(result, gstats);
+		return result;
+	}
+}
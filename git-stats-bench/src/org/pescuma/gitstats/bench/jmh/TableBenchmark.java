@@ -0,0 +1,86 @@
+package org.pescuma.gitstats.bench.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pescuma.datatable.DataTable;
+import org.pescuma.datatable.MemoryDataTable;
+import org.pescuma.gitstats.Consts;
+import org.pescuma.gitstats.table.ColumnarTable;
+
+import com.google.common.base.Predicate;
+
+/**
+ * Adding, filtering and grouping rows in {@link MemoryDataTable} and in {@link ColumnarTable}, that replaced it while
+ * processing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class TableBenchmark {
+	
+	@Param({ "100000", "1000000", "10000000" })
+	public int rows;
+	
+	private Fixtures fixtures;
+	private DataTable memory;
+	private ColumnarTable columnar;
+	private Predicate<String> javaOnly;
+	
+	@Setup
+	public void setup() {
+		fixtures = new Fixtures(rows);
+		memory = memoryInc();
+		columnar = columnarInc();
+		javaOnly = new Predicate<String>() {
+			@Override
+			public boolean apply(String language) {
+				return language.equals("Java");
+			}
+		};
+	}
+	
+	@Benchmark
+	public DataTable memoryInc() {
+		DataTable result = new MemoryDataTable();
+		String[] columns = new String[Consts.NUM_COLUMNS];
+		for (int row = 0; row < rows; row++) {
+			fixtures.fillRow(row, columns);
+			result.inc(1, columns);
+		}
+		return result;
+	}
+	
+	@Benchmark
+	public ColumnarTable columnarInc() {
+		return fixtures.createTable(rows);
+	}
+	
+	@Benchmark
+	public DataTable memoryFilter() {
+		return memory.filter(Consts.COL_LANGUAGE, javaOnly);
+	}
+	
+	@Benchmark
+	public ColumnarTable columnarFilter() {
+		return columnar.filter(Consts.COL_LANGUAGE, javaOnly);
+	}
+	
+	@Benchmark
+	public ColumnarTable columnarGroupBy() {
+		return columnar.groupBy(Consts.COL_AUTHOR, Consts.COL_LANGUAGE);
+	}
+}
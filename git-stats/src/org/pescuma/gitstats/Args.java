@@ -3,6 +3,7 @@ package org.pescuma.gitstats;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -12,6 +13,12 @@ import org.kohsuke.args4j.Option;
 
 public class Args {
 	
+	public static final String BLAME_ENGINE_JGIT = "jgit";
+	public static final String BLAME_ENGINE_HISTORY = "history";
+	public static final String BLAME_ENGINE_GIT = "git";
+	public static final List<String> BLAME_ENGINES = Arrays.asList(BLAME_ENGINE_JGIT, BLAME_ENGINE_HISTORY,
+			BLAME_ENGINE_GIT);
+	
 	@Option(name = "--help", aliases = { "-h" }, help = true, hidden = true)
 	public boolean showHelp = false;
 	
@@ -21,13 +28,16 @@ public class Args {
 	@Option(name = "--threads", aliases = { "-t" }, usage = "Number of threads (by default it creates one thread per processor)")
 	public int threads;
 	
+	@Option(name = "--load-threads", usage = "Number of snapshot files loaded at the same time (by default the same as --threads)")
+	public int loadThreads;
+	
 	@Option(name = "--ignore-rev", aliases = { "-i" }, usage = "Revision to ignore (can be used multiple times)")
 	public List<String> ignoredRevisions = new ArrayList<String>();
 	
 	@Option(name = "--author", aliases = { "-a" }, usage = "Authors mapping, in the format loginname=Joe User (can be used multiple times)")
 	public List<String> authors = new ArrayList<String>();
 	
-	@Option(name = "--output", aliases = { "-o" }, usage = "How to show output. It can be console or a file name. The format is based on its extension. Supported extensions: csv (can be used multiple times)")
+	@Option(name = "--output", aliases = { "-o" }, usage = "How to show output. It can be console or a file name. The format is based on its extension. Supported extensions: csv, gstats, html (can be used multiple times)")
 	public List<String> outputs = new ArrayList<String>();
 	
 	@Option(name = "--exclude-path", aliases = { "-ep" }, usage = "Exclude from process all files inside this path (can be used multiple times)")
@@ -36,6 +46,75 @@ public class Args {
 	@Option(name = "--add-language", usage = "Add a language, based on a file extension, in the format ext=Language (can be used multiple times)")
 	public List<String> languages = new ArrayList<String>();
 	
+	@Option(name = "--incremental", usage = "A previously saved CSV file. Only the files that changed since it was saved are processed again and the result is merged with it")
+	public File incremental;
+	
+	@Option(name = "--cache-dir", usage = "Folder to store the blame cache (by default it is stored inside the .git folder of each repository)")
+	public File cacheDir;
+	
+	@Option(name = "--no-cache", usage = "Don't use the blame cache")
+	public boolean noCache = false;
+	
+	@Option(name = "--compress", usage = "Compress .gstats and .html outputs (the files are smaller, but they take longer to load)")
+	public boolean compress = false;
+	
+	@Option(name = "--serve", usage = "Keep running and answer queries over HTTP (on localhost only), updating the data when the repositories change")
+	public boolean serve = false;
+	
+	@Option(name = "--port", usage = "Port used by --serve (default 8421)")
+	public int port = 8421;
+	
+	@Option(name = "--refresh-interval", usage = "Seconds between checks for changes in the repositories when using --serve (default 60)")
+	public int refreshInterval = 60;
+	
+	@Option(name = "--spill-mb", usage = "Keep at most about this many MB of partial results in memory while blaming, writing the rest to sorted files that are merged at the end. The rows of the blame cache are also not kept in memory. If all the outputs are CSV files, they are written directly from the merge (by default everything is kept in memory)")
+	public int spillMB;
+	
+	@Option(name = "--spill-dir", usage = "Folder for the files written by --spill-mb (by default the system temporary folder)")
+	public File spillDir;
+	
+	@Option(name = "--metrics", usage = "Save to this file, as JSON, where the time was spent: each phase, each blamed file and each thread")
+	public File metrics;
+	
+	@Option(name = "--since", usage = "Only look at the history after this date (yyyy-MM-dd) or revision. The older lines are counted with the month and author " + Consts.BEFORE_PREFIX + "<date>), and their history is not walked")
+	public String since;
+	
+	@Option(name = "--history", usage = "Compute the lines at several points of the history, instead of only at HEAD: monthly, weekly (at the end of each month or week, after --since if given) or a list of revisions separated by commas. The results get an extra column with the snapshot of each line. Keeps the blame of every version of every file of the history in memory, around 200 bytes each")
+	public String history;
+	
+	@Option(name = "--blame-engine", usage = "How to find the authors of the lines: jgit (one blame per file), history (a single walk over the history for all the files, faster on repositories with many files, but it keeps the blame of every version of every file of the history in memory during the walk, around 200 bytes each) or git (one git blame process per file, needs git in the PATH)")
+	public String blameEngine = BLAME_ENGINE_JGIT;
+	
+	@Option(name = "--git-processes", usage = "Maximum number of git blame processes running at the same time with --blame-engine git (by default the same as --threads)")
+	public int gitProcesses;
+	
+	@Option(name = "--blame-max-seconds", usage = "Stop the blame of a file after this many seconds, giving the remaining lines to the oldest commit found (jgit and git engines). The jgit engine checks the time before each diff of the file, so it can go over the limit while walking commits that don't change it; the git engine kills git when the time is over")
+	public int blameMaxSeconds;
+	
+	@Option(name = "--blame-max-commits", usage = "Stop the blame of a file after finding lines from this many commits, giving the remaining lines to the oldest one (jgit and git engines)")
+	public int blameMaxCommits;
+	
+	@Option(name = "--max-file-kb", usage = "Don't process files bigger than this (by default there is no limit)")
+	public int maxFileKB;
+	
+	@Option(name = "--skip-pattern", usage = "Don't process files that match this pattern, in the .gitignore format (can be used multiple times)")
+	public List<String> skipPatterns = new ArrayList<String>();
+	
+	@Option(name = "--file-filter", usage = "Don't process the files that look generated, vendored, binary or minified")
+	public boolean fileFilter = false;
+	
+	@Option(name = "--pack-cache-mb", usage = "Memory for the windows of the pack files, shared by all the threads (by default up to a quarter of the max heap, but not more than the size of the packs)")
+	public int packCacheMB;
+	
+	@Option(name = "--pack-window-kb", usage = "Size of each window of the pack files, must be a power of 2 of at least 4 (by default 8, or 1024 when they are memory mapped)")
+	public int packWindowKB;
+	
+	@Option(name = "--pack-mmap", usage = "Memory map the pack files: yes, no or auto (the default, maps them when they don't fit in a quarter of the max heap)")
+	public String packMmap = PackCache.MMAP_AUTO;
+	
+	@Option(name = "--delta-cache-mb", usage = "Memory to keep the bases of the deltas of each thread (by default a tenth of the max heap divided by the threads)")
+	public int deltaCacheMB;
+	
 	void applyDefaults() {
 		if (paths.isEmpty())
 			paths.add(new File("."));
@@ -43,6 +122,20 @@ public class Args {
 		for (int i = 0; i < paths.size(); i++)
 			paths.set(i, getCanonical(paths.get(i)));
 		
+		if (cacheDir != null)
+			cacheDir = getCanonical(cacheDir);
+		
+		if (incremental != null)
+			incremental = getCanonical(incremental);
+		
+		if (metrics != null)
+			metrics = getCanonical(metrics);
+		
+		if (spillDir != null)
+			spillDir = getCanonical(spillDir);
+		else
+			spillDir = new File(System.getProperty("java.io.tmpdir"));
+		
 		if (outputs.isEmpty())
 			outputs.add("console");
 		
@@ -58,6 +151,12 @@ public class Args {
 				// Some room for breathing
 				threads--;
 		}
+		
+		if (loadThreads < 1)
+			loadThreads = threads;
+		
+		if (gitProcesses < 1)
+			gitProcesses = threads;
 	}
 	
 	public Map<String, String> getAuthorMappings() {
@@ -99,4 +198,18 @@ public class Args {
 		return output.equalsIgnoreCase("console");
 	}
 	
+	/**
+	 * @return the number of columns of the results: --history adds one
+	 */
+	public int getNumColumns() {
+		return history == null ? Consts.NUM_COLUMNS : Consts.NUM_COLUMNS_WITH_SNAPSHOT;
+	}
+	
+	public boolean isOnlyCSVOutputs() {
+		for (String output : outputs)
+			if (!output.endsWith(".csv"))
+				return false;
+		return true;
+	}
+	
 }
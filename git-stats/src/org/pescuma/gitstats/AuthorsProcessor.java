@@ -1,90 +1,96 @@
 package org.pescuma.gitstats;
 
-import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.Map;
-import java.util.Set;
 
 import org.apache.commons.io.FilenameUtils;
 import org.eclipse.jgit.api.errors.GitAPIException;
-import org.eclipse.jgit.api.errors.JGitInternalException;
-import org.eclipse.jgit.blame.BlameGenerator;
-import org.eclipse.jgit.blame.BlameResult;
 import org.eclipse.jgit.diff.RawText;
-import org.eclipse.jgit.diff.RawTextComparator;
-import org.eclipse.jgit.lib.Constants;
-import org.eclipse.jgit.lib.ObjectId;
-import org.eclipse.jgit.lib.Repository;
-import org.eclipse.jgit.revwalk.RevCommit;
-import org.pescuma.datatable.DataTable;
-import org.pescuma.datatable.MemoryDataTable;
+import org.pescuma.gitstats.CommitDictionary.CommitInfo;
+import org.pescuma.gitstats.blame.Blamer;
+import org.pescuma.gitstats.blame.FileBlame;
+import org.pescuma.gitstats.table.ColumnarTable;
 import org.pescuma.programminglanguagedetector.FilenameToLanguage;
 import org.pescuma.programminglanguagedetector.SimpleFileParser;
 import org.pescuma.programminglanguagedetector.SimpleFileParser.LineType;
 
 public class AuthorsProcessor {
 	
-	private final Repository repository;
-	private final Set<ObjectId> ignored;
-	private final Map<String, String> authorMappings;
+	private final Blamer blamer;
 	private final Map<String, String> languageMappings;
+	private final BlameCache cache;
+	private final Metrics metrics;
+	private final LineCounts counts = new LineCounts();
 	
-	public AuthorsProcessor(Repository repository, Set<ObjectId> ignored, Map<String, String> authorMappings,
-			Map<String, String> languageMappings) {
-		this.repository = repository;
-		this.authorMappings = authorMappings;
-		this.ignored = ignored;
+	public AuthorsProcessor(Blamer blamer, Map<String, String> languageMappings, BlameCache cache) {
+		this(blamer, languageMappings, cache, Metrics.DISABLED);
+	}
+	
+	public AuthorsProcessor(Blamer blamer, Map<String, String> languageMappings, BlameCache cache, Metrics metrics) {
+		this.blamer = blamer;
 		this.languageMappings = languageMappings;
+		this.cache = cache;
+		this.metrics = metrics;
 	}
 	
-	public DataTable computeAuthors(Iterable<String> files, Progress progress) throws GitAPIException {
-		DataTable data = new MemoryDataTable();
-		
-		for (String file : files) {
-			try {
-				computeAuthors(data, file);
-			} finally {
-				progress.step();
-			}
+	/**
+	 * Adds the lines of the file to the table, and to the blame cache if there is one. Files whose blame was truncated
+	 * are not cached, so they are blamed again in the next run.
+	 */
+	public void computeAuthors(ColumnarTable data, String file) throws GitAPIException {
+		if (cache == null) {
+			blameFile(data, file);
+			
+		} else {
+			long start = System.currentTimeMillis();
+			ColumnarTable fileData = new ColumnarTable(Consts.NUM_COLUMNS);
+			boolean complete = blameFile(fileData, file);
+			if (complete)
+				cache.store(file, fileData, System.currentTimeMillis() - start);
+			data.inc(fileData);
 		}
+	}
+	
+	/**
+	 * @return false if the blame was truncated
+	 */
+	private boolean blameFile(ColumnarTable data, String file) throws GitAPIException {
+		long start = metrics.isEnabled() ? System.nanoTime() : 0;
 		
-		return data;
+		FileBlame blame = blamer.blame(file);
+		
+		addLines(data, file, blame, metrics.isEnabled() ? System.nanoTime() - start : 0);
+		
+		return !blame.isTruncated();
 	}
 	
-	private void computeAuthors(DataTable data, String file) throws GitAPIException {
+	/**
+	 * Adds the lines of a file that was already blamed to the table, without using the blamer or the blame cache
+	 *
+	 * @param blameNanos time it took to blame the file, for the metrics
+	 */
+	public void addLines(ColumnarTable data, String file, FileBlame blame, long blameNanos) {
 		String language = detectLanguage(file);
 		
 		SimpleFileParser parser = new SimpleFileParser(language);
 		
-		BlameResult blame = blame(file);
+		long blamed = metrics.isEnabled() ? System.nanoTime() : 0;
 		
-		RawText contents = blame.getResultContents();
+		RawText contents = blame.getContents();
 		for (int i = 0; i < contents.size(); i++) {
 			String line = contents.getString(i);
-			String lineType = toLineTypeName(parser.feedNextLine(line));
+			LineType lineType = parser.feedNextLine(line);
 			
-			RevCommit commit = blame.getSourceCommit(i);
-			if (commit == null) {
-				data.inc(1, language, lineType, "", "", "", file);
+			CommitInfo info = blame.getCommit(i);
+			if (info != null && info.ignored)
 				continue;
-			}
-			
-			if (ignored.contains(commit.getId()))
-				continue;
-			
-			int time = commit.getCommitTime();
-			String month = new SimpleDateFormat("yyyy-MM").format(new Date(time * 1000L));
 			
-			String authorName = blame.getSourceAuthor(i).getName();
-			if (authorName != null) {
-				String alternateName = authorMappings.get(authorName);
-				if (alternateName != null)
-					authorName = alternateName;
-			}
-			
-			data.inc(1, language, lineType, month, commit.getId().getName(), authorName, file);
+			counts.add(info, lineType);
 		}
+		
+		counts.flush(language, file, data);
+		
+		if (metrics.isEnabled())
+			metrics.fileBlamed(file, blameNanos, System.nanoTime() - blamed, contents.size());
 	}
 	
 	private String detectLanguage(String file) {
@@ -94,33 +100,4 @@ public class AuthorsProcessor {
 		
 		return FilenameToLanguage.detectLanguage(file);
 	}
-	
-	private static String toLineTypeName(LineType lineType) {
-		switch (lineType) {
-			case Empty:
-				return Consts.EMPTY;
-			case Code:
-				return Consts.CODE;
-			case Comment:
-				return Consts.COMMENT;
-			default:
-				throw new IllegalArgumentException();
-		}
-	}
-	
-	private BlameResult blame(String file) throws GitAPIException {
-		BlameGenerator blame = new BlameGenerator(repository, file);
-		try {
-			
-			blame.setTextComparator(RawTextComparator.WS_IGNORE_ALL);
-			blame.setFollowFileRenames(true);
-			blame.push(null, repository.resolve(Constants.HEAD));
-			return blame.computeBlameResult();
-			
-		} catch (IOException e) {
-			throw new JGitInternalException(e.getMessage(), e);
-		} finally {
-			blame.release();
-		}
-	}
 }
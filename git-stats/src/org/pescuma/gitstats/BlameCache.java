@@ -0,0 +1,434 @@
+package org.pescuma.gitstats;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.pescuma.gitstats.table.ColumnarTable;
+import org.pescuma.gitstats.table.RowSink;
+import org.pescuma.gitstats.table.SortedRuns;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+/**
+ * Stores the blame results of each file, keyed by its path and blob id, so a new run can skip files that did not
+ * change since the last one.
+ *
+ * The cache is invalidated as a whole if the settings that affect the results (ignored revisions, mappings, etc.)
+ * change. Only a hash of the settings is stored, since they can be big (long author mappings or lists of ignored
+ * revisions). Only the entries used in a run are written back, so the entries for old blobs are dropped.
+ *
+ * With --spill-mb the cache is streamed, so its rows are never all in memory: only the keys are loaded when it is
+ * opened, the rows of the hits are read again from the file by {@link #spillHits}, the new entries are written to a
+ * temporary file as they are stored, and {@link #save} copies both to the new cache.
+ */
+public class BlameCache {
+	
+	private static final int FORMAT_VERSION = 3;
+	private static final int NUM_COLUMNS = Consts.NUM_COLUMNS;
+	
+	private final File file;
+	private final String settingsHash;
+	private final boolean streamed;
+	private final Map<String, Entry> loaded;
+	private final Map<String, Long> previousMillis = new HashMap<String, Long>();
+	private final Map<String, Entry> used = new ConcurrentHashMap<String, Entry>();
+	private final Map<String, ObjectId> pending = new ConcurrentHashMap<String, ObjectId>();
+	private final AtomicInteger hits = new AtomicInteger();
+	private final AtomicInteger misses = new AtomicInteger();
+	private DataOutputStream stored;
+	private int storedCount;
+	
+	private BlameCache(File file, String settingsHash, boolean streamed, Map<String, Entry> loaded) {
+		this.file = file;
+		this.settingsHash = settingsHash;
+		this.streamed = streamed;
+		this.loaded = loaded;
+		
+		for (Entry entry : loaded.values())
+			previousMillis.put(entry.path, entry.millis);
+	}
+	
+	/**
+	 * @param streamed don't keep the rows in memory (for --spill-mb)
+	 */
+	public static BlameCache open(Repository repository, Args args, String settings, boolean streamed) {
+		File file;
+		if (args.cacheDir != null) {
+			String worktree = repository.getWorkTree().getAbsolutePath();
+			String hash = Hashing.sha1().hashString(worktree, Charsets.UTF_8).toString().substring(0, 8);
+			file = new File(args.cacheDir, repository.getWorkTree().getName() + "-" + hash + ".blame-cache");
+		} else {
+			file = new File(repository.getDirectory(), "git-stats/blame-cache");
+		}
+		
+		String settingsHash = Hashing.sha1().hashString(settings, Charsets.UTF_8).toString();
+		
+		Map<String, Entry> loaded;
+		try {
+			loaded = load(file, settingsHash, streamed);
+		} catch (IOException e) {
+			System.out.println("Ignoring invalid blame cache " + file.getAbsolutePath() + ": " + e.getMessage());
+			loaded = Collections.emptyMap();
+		}
+		
+		return new BlameCache(file, settingsHash, streamed, loaded);
+	}
+	
+	/**
+	 * @return true if the file was found in the cache. In this case its lines were added to data or, if the cache is
+	 *         streamed, they are added by {@link #spillHits}.
+	 */
+	public boolean load(String path, ObjectId blob, ColumnarTable data) {
+		String key = toKey(path, blob);
+		
+		Entry entry = loaded.get(key);
+		if (entry == null) {
+			misses.incrementAndGet();
+			pending.put(path, blob.copy());
+			return false;
+		}
+		
+		hits.incrementAndGet();
+		used.put(key, entry);
+		if (!streamed)
+			entry.addTo(data);
+		return true;
+	}
+	
+	/**
+	 * Reads the rows of the files found by {@link #load} from the file of a streamed cache and writes them to the
+	 * spill, in tables of about maxBytes. Does nothing if the cache is not streamed.
+	 */
+	public void spillHits(SortedRuns spill, long maxBytes) throws IOException {
+		if (!streamed || used.isEmpty())
+			return;
+		
+		ColumnarTable rows = new ColumnarTable(NUM_COLUMNS);
+		
+		DataInputStream in = openStream(file, settingsHash);
+		if (in == null)
+			throw new IOException(file.getAbsolutePath() + " was changed by another process");
+		
+		try {
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				Entry entry = Entry.read(in, null, used.keySet());
+				if (entry.values == null)
+					continue;
+				
+				entry.addTo(rows);
+				if (rows.estimateBytes() > maxBytes) {
+					spill.add(rows);
+					rows = new ColumnarTable(NUM_COLUMNS);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		
+		spill.add(rows);
+	}
+	
+	/**
+	 * Stores the result of a file that was not found by {@link #load}.
+	 * 
+	 * @param millis the time it took to blame the file
+	 */
+	public void store(String path, ColumnarTable rows, long millis) {
+		ObjectId blob = pending.remove(path);
+		if (blob == null)
+			return;
+		
+		Entry entry = new Entry(path, blob, millis, rows);
+		if (!streamed) {
+			used.put(toKey(path, blob), entry);
+			return;
+		}
+		
+		try {
+			synchronized (this) {
+				if (stored == null) {
+					createParent();
+					stored = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getStoredFile())));
+				}
+				
+				entry.write(stored);
+				storedCount++;
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not write to the blame cache: " + e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * @return the time it took to blame any version of the file in the last run, or -1 if unknown
+	 */
+	public long getPreviousMillis(String path) {
+		Long result = previousMillis.get(path);
+		if (result == null)
+			return -1;
+		return result;
+	}
+	
+	public int getHits() {
+		return hits.get();
+	}
+	
+	public int getMisses() {
+		return misses.get();
+	}
+	
+	public double getHitRate() {
+		int total = hits.get() + misses.get();
+		if (total < 1)
+			return 0;
+		return hits.get() * 100. / total;
+	}
+	
+	public synchronized void save() throws IOException {
+		createParent();
+		
+		File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+		
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(
+				new FileOutputStream(tmp))));
+		try {
+			out.writeInt(FORMAT_VERSION);
+			out.writeUTF(settingsHash);
+			
+			if (streamed) {
+				out.writeInt(used.size() + storedCount);
+				copyHits(out);
+				copyStored(out);
+			} else {
+				out.writeInt(used.size());
+				for (Entry entry : used.values())
+					entry.write(out);
+			}
+			
+		} finally {
+			out.close();
+		}
+		
+		if (file.exists() && !file.delete())
+			throw new IOException("Could not replace " + file.getAbsolutePath());
+		if (!tmp.renameTo(file))
+			throw new IOException("Could not rename " + tmp.getAbsolutePath() + " to " + file.getAbsolutePath());
+	}
+	
+	/**
+	 * The entries used from the old cache are read again from it, one at a time
+	 */
+	private void copyHits(DataOutputStream out) throws IOException {
+		if (used.isEmpty())
+			return;
+		
+		DataInputStream in = openStream(file, settingsHash);
+		if (in == null)
+			throw new IOException(file.getAbsolutePath() + " was changed by another process");
+		
+		try {
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				Entry entry = Entry.read(in, null, used.keySet());
+				if (entry.values != null)
+					entry.write(out);
+			}
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * The new entries were written in the same format, so they are copied as bytes
+	 */
+	private void copyStored(DataOutputStream out) throws IOException {
+		if (stored == null)
+			return;
+		
+		stored.close();
+		stored = null;
+		
+		File storedFile = getStoredFile();
+		Files.copy(storedFile, out);
+		if (!storedFile.delete())
+			throw new IOException("Could not delete " + storedFile.getAbsolutePath());
+	}
+	
+	private File getStoredFile() {
+		return new File(file.getParentFile(), file.getName() + ".new");
+	}
+	
+	private void createParent() throws IOException {
+		File parent = file.getParentFile();
+		if (!parent.exists() && !parent.mkdirs())
+			throw new IOException("Could not create folder " + parent.getAbsolutePath());
+	}
+	
+	/**
+	 * @param streamed only keep the keys, not the rows
+	 */
+	private static Map<String, Entry> load(File file, String settingsHash, boolean streamed) throws IOException {
+		Map<String, Entry> result = new HashMap<String, Entry>();
+		
+		if (!file.exists())
+			return result;
+		
+		DataInputStream in = openStream(file, settingsHash);
+		if (in == null)
+			return result;
+		
+		try {
+			Map<String, String> strings = new HashMap<String, String>();
+			Set<String> none = Collections.emptySet();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				Entry entry = Entry.read(in, strings, streamed ? none : null);
+				result.put(toKey(entry.path, entry.blob), entry);
+			}
+			
+		} finally {
+			in.close();
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * @return the stream positioned at the number of entries, or null if the cache is from another version or other
+	 *         settings
+	 */
+	private static DataInputStream openStream(File file, String settingsHash) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(
+				file))));
+		
+		boolean ok = false;
+		try {
+			// Any change in the settings can change the results, so the cache is useless
+			ok = in.readInt() == FORMAT_VERSION && settingsHash.equals(in.readUTF());
+			return ok ? in : null;
+		} finally {
+			if (!ok)
+				in.close();
+		}
+	}
+	
+	private static String toKey(String path, ObjectId blob) {
+		return blob.getName() + ":" + path;
+	}
+	
+	private static class Entry {
+		final String path;
+		final ObjectId blob;
+		final long millis;
+		final double[] values;
+		final String[][] columns;
+		
+		Entry(String path, ObjectId blob, long millis, double[] values, String[][] columns) {
+			this.path = path;
+			this.blob = blob;
+			this.millis = millis;
+			this.values = values;
+			this.columns = columns;
+		}
+		
+		Entry(String path, ObjectId blob, long millis, ColumnarTable rows) {
+			this.path = path;
+			this.blob = blob;
+			this.millis = millis;
+			
+			values = new double[rows.size()];
+			columns = new String[rows.size()][];
+			for (int i = 0; i < rows.size(); i++) {
+				values[i] = rows.getValue(i);
+				columns[i] = rows.getColumns(i);
+			}
+		}
+		
+		void addTo(RowSink data) {
+			for (int i = 0; i < values.length; i++)
+				data.inc(values[i], columns[i]);
+		}
+		
+		void write(DataOutputStream out) throws IOException {
+			out.writeUTF(path);
+			blob.copyRawTo(out);
+			out.writeLong(millis);
+			out.writeInt(values.length);
+			for (int i = 0; i < values.length; i++) {
+				out.writeDouble(values[i]);
+				for (int j = 0; j < NUM_COLUMNS; j++)
+					out.writeUTF(columns[i][j]);
+			}
+		}
+		
+		/**
+		 * @param strings to share the equal strings of the entries, or null
+		 * @param keep the keys of the entries whose rows are read, or null to read all of them. The other entries are
+		 *            returned without rows.
+		 */
+		static Entry read(DataInputStream in, Map<String, String> strings, Set<String> keep) throws IOException {
+			String path = in.readUTF();
+			
+			byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+			in.readFully(raw);
+			ObjectId blob = ObjectId.fromRaw(raw);
+			
+			long millis = in.readLong();
+			
+			int count = in.readInt();
+			
+			if (keep != null && !keep.contains(toKey(path, blob))) {
+				for (int i = 0; i < count; i++) {
+					ByteStreams.skipFully(in, 8);
+					for (int j = 0; j < NUM_COLUMNS; j++)
+						ByteStreams.skipFully(in, in.readUnsignedShort());
+				}
+				return new Entry(path, blob, millis, null, null);
+			}
+			
+			double[] values = new double[count];
+			String[][] columns = new String[count][];
+			for (int i = 0; i < count; i++) {
+				values[i] = in.readDouble();
+				columns[i] = new String[NUM_COLUMNS];
+				for (int j = 0; j < NUM_COLUMNS; j++)
+					columns[i][j] = intern(strings, in.readUTF());
+			}
+			
+			return new Entry(path, blob, millis, values, columns);
+		}
+		
+		private static String intern(Map<String, String> strings, String str) {
+			if (strings == null)
+				return str;
+			
+			String result = strings.get(str);
+			if (result == null) {
+				strings.put(str, str);
+				result = str;
+			}
+			return result;
+		}
+	}
+}
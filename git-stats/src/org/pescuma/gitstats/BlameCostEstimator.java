@@ -0,0 +1,95 @@
+package org.pescuma.gitstats;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.pescuma.gitstats.threads.ParallelLists;
+
+/**
+ * Estimates how long it takes to blame a file, in microseconds.
+ *
+ * The time it took to blame the file in the last run is used if it is in the blame cache. Otherwise the estimate is
+ * based on the blob size, using the median time per byte of the files with known times. When the files of several
+ * repositories are blamed together, {@link #shareMicrosPerByte} makes all of them use the same time per byte.
+ */
+public class BlameCostEstimator implements ParallelLists.CostEstimator<String> {
+	
+	private final Map<String, Long> sizes = new HashMap<String, Long>();
+	private final BlameCache cache;
+	private double microsPerByte = -1;
+	
+	public BlameCostEstimator(BlameCache cache) {
+		this.cache = cache;
+	}
+	
+	public void addFile(String file, long size) {
+		sizes.put(file, size);
+		microsPerByte = -1;
+	}
+	
+	@Override
+	public long estimate(String file) {
+		long millis = getPreviousMillis(file);
+		if (millis >= 0)
+			return (millis + 1) * 1000;
+		
+		Long size = sizes.get(file);
+		if (size == null)
+			return 0;
+		
+		return (long) (size * getMicrosPerByte());
+	}
+	
+	private long getPreviousMillis(String file) {
+		if (cache == null)
+			return -1;
+		return cache.getPreviousMillis(file);
+	}
+	
+	/**
+	 * Computes the time per byte from the files with known times of all the estimators and uses it in all of them, so
+	 * the estimates of files from different repositories are in the same unit. Otherwise a repository without known
+	 * times would estimate its files in bytes, while the others use microseconds.
+	 */
+	public static void shareMicrosPerByte(Collection<BlameCostEstimator> estimators) {
+		List<Double> ratios = new ArrayList<Double>();
+		for (BlameCostEstimator estimator : estimators)
+			estimator.addRatios(ratios);
+		
+		double microsPerByte = median(ratios);
+		for (BlameCostEstimator estimator : estimators)
+			estimator.microsPerByte = microsPerByte;
+	}
+	
+	private double getMicrosPerByte() {
+		if (microsPerByte >= 0)
+			return microsPerByte;
+		
+		List<Double> ratios = new ArrayList<Double>();
+		addRatios(ratios);
+		microsPerByte = median(ratios);
+		
+		return microsPerByte;
+	}
+	
+	private void addRatios(List<Double> ratios) {
+		for (Map.Entry<String, Long> entry : sizes.entrySet()) {
+			long millis = getPreviousMillis(entry.getKey());
+			if (millis >= 0 && entry.getValue() > 0)
+				ratios.add((millis + 1) * 1000. / entry.getValue());
+		}
+	}
+	
+	private static double median(List<Double> ratios) {
+		// Nothing to compare with, so any unit will do, as long as all the estimates use it
+		if (ratios.isEmpty())
+			return 1;
+		
+		Collections.sort(ratios);
+		return ratios.get(ratios.size() / 2);
+	}
+}
@@ -0,0 +1,262 @@
+package org.pescuma.gitstats;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.attributes.Attribute;
+import org.eclipse.jgit.attributes.AttributesNode;
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.ignore.FastIgnoreRule;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.PathSuffixFilter;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Finds the files that are not worth blaming, before blaming them: generated or vendored files (by name or by the
+ * linguist-generated and linguist-vendored attributes in .gitattributes), files that are too big, and binary or
+ * minified files. Only the patterns and the size limit given by the user are used by default; the other checks are
+ * enabled by --file-filter.
+ *
+ * The checks go from the cheapest to the most expensive: the names first, then the size of the blob (that is read
+ * without loading its contents) and only for the files that are big enough to matter the first bytes of the content.
+ *
+ * Not thread safe.
+ */
+public class BlobFilter {
+	
+	/**
+	 * Patterns, in the .gitignore format, of files that are usually generated or vendored
+	 */
+	public static final List<String> DEFAULT_PATTERNS = Arrays.asList("*.min.js", "*-min.js", "*.min.css",
+			"*.bundle.js", "*.map", "package-lock.json", "yarn.lock", "npm-shrinkwrap.json", "composer.lock",
+			"Gemfile.lock", "Cargo.lock", "*.pb.go", "*.pb.h", "*.pb.cc", "*_pb2.py", "*.designer.cs",
+			"node_modules/", "bower_components/");
+	
+	private static final int SNIFF_BYTES = 8000;
+	private static final long SNIFF_MIN_BYTES = 16 * 1024;
+	private static final int MINIFIED_LINE_LENGTH = 500;
+	
+	public static enum Reason {
+		Pattern("generated or vendored"), Size("too big"), Binary("binary"), Minified("minified");
+		
+		private final String description;
+		
+		private Reason(String description) {
+			this.description = description;
+		}
+		
+		@Override
+		public String toString() {
+			return description;
+		}
+	}
+	
+	private final ObjectReader reader;
+	private final List<FastIgnoreRule> patterns = new ArrayList<FastIgnoreRule>();
+	private final Map<String, AttributesNode> attributes = new HashMap<String, AttributesNode>();
+	private final long maxBytes;
+	private final boolean sniff;
+	private final byte[] buffer = new byte[SNIFF_BYTES];
+	private final Map<Reason, long[]> skipped = new LinkedHashMap<Reason, long[]>();
+	
+	/**
+	 * @param patterns in the .gitignore format
+	 * @param maxBytes 0 means no limit
+	 * @param sniff look at the first bytes of the bigger files to find binary and minified ones
+	 */
+	public BlobFilter(ObjectReader reader, List<String> patterns, long maxBytes, boolean sniff) {
+		this.reader = reader;
+		this.maxBytes = maxBytes;
+		this.sniff = sniff;
+		
+		for (String pattern : patterns)
+			this.patterns.add(new FastIgnoreRule(pattern));
+		
+		for (Reason reason : Reason.values())
+			skipped.put(reason, new long[2]);
+	}
+	
+	public static BlobFilter create(Args args, ObjectReader reader, RevTree tree) throws IOException {
+		List<String> patterns = new ArrayList<String>();
+		if (args.fileFilter)
+			patterns.addAll(DEFAULT_PATTERNS);
+		patterns.addAll(args.skipPatterns);
+		
+		BlobFilter result = new BlobFilter(reader, patterns, args.maxFileKB * 1024L, args.fileFilter);
+		
+		if (args.fileFilter)
+			result.loadAttributes(tree);
+		
+		return result;
+	}
+	
+	/**
+	 * Reads all the .gitattributes files of the tree
+	 */
+	public void loadAttributes(RevTree tree) throws IOException {
+		TreeWalk walk = new TreeWalk(reader);
+		walk.addTree(tree);
+		walk.setRecursive(true);
+		walk.setFilter(PathSuffixFilter.create(Constants.DOT_GIT_ATTRIBUTES));
+		
+		while (walk.next()) {
+			String path = walk.getPathString();
+			if (!path.equals(Constants.DOT_GIT_ATTRIBUTES) && !path.endsWith("/" + Constants.DOT_GIT_ATTRIBUTES))
+				continue;
+			
+			AttributesNode node = new AttributesNode();
+			InputStream in = reader.open(walk.getObjectId(0), Constants.OBJ_BLOB).openStream();
+			try {
+				node.parse(in);
+			} finally {
+				in.close();
+			}
+			
+			attributes.put(path.substring(0, path.length() - Constants.DOT_GIT_ATTRIBUTES.length()), node);
+		}
+	}
+	
+	/**
+	 * @return why the file should not be blamed or null if it should
+	 */
+	public Reason check(String file, ObjectId blob) throws IOException {
+		Reason reason = findReason(file, blob);
+		
+		if (reason != null) {
+			long[] counts = skipped.get(reason);
+			counts[0]++;
+			counts[1] += reader.getObjectSize(blob, Constants.OBJ_BLOB);
+		}
+		
+		return reason;
+	}
+	
+	private Reason findReason(String file, ObjectId blob) throws IOException {
+		if (isGeneratedOrVendored(file))
+			return Reason.Pattern;
+		
+		if (maxBytes <= 0 && !sniff)
+			return null;
+		
+		long size = reader.getObjectSize(blob, Constants.OBJ_BLOB);
+		
+		if (maxBytes > 0 && size > maxBytes)
+			return Reason.Size;
+		
+		if (!sniff || size < SNIFF_MIN_BYTES)
+			return null;
+		
+		int length;
+		InputStream in = reader.open(blob, Constants.OBJ_BLOB).openStream();
+		try {
+			length = ByteStreams.read(in, buffer, 0, buffer.length);
+		} finally {
+			in.close();
+		}
+		
+		if (RawText.isBinary(buffer, length))
+			return Reason.Binary;
+		
+		if (isMinified(buffer, length))
+			return Reason.Minified;
+		
+		return null;
+	}
+	
+	private boolean isGeneratedOrVendored(String file) {
+		for (FastIgnoreRule pattern : patterns)
+			if (pattern.isMatch(file, false))
+				return true;
+		
+		if (attributes.isEmpty())
+			return false;
+		
+		// The .gitattributes of the deepest folder wins, and getAttributes does not replace the ones already found
+		Map<String, Attribute> found = new HashMap<String, Attribute>();
+		String dir = file;
+		do {
+			dir = dir.substring(0, dir.lastIndexOf('/', dir.length() - 2) + 1);
+			
+			AttributesNode node = attributes.get(dir);
+			if (node != null)
+				node.getAttributes(file.substring(dir.length()), false, found);
+		} while (!dir.isEmpty());
+		
+		return isSet(found.get("linguist-generated")) || isSet(found.get("linguist-vendored"));
+	}
+	
+	private static boolean isSet(Attribute attribute) {
+		if (attribute == null)
+			return false;
+		
+		switch (attribute.getState()) {
+			case SET:
+				return true;
+			case CUSTOM:
+				return "true".equalsIgnoreCase(attribute.getValue());
+			default:
+				return false;
+		}
+	}
+	
+	/**
+	 * Minified files have few and very long lines
+	 */
+	private static boolean isMinified(byte[] bytes, int length) {
+		int lines = 1;
+		for (int i = 0; i < length; i++)
+			if (bytes[i] == '\n')
+				lines++;
+		
+		return length / lines > MINIFIED_LINE_LENGTH;
+	}
+	
+	public int getSkippedFiles() {
+		int result = 0;
+		for (long[] counts : skipped.values())
+			result += counts[0];
+		return result;
+	}
+	
+	public long getSkippedBytes() {
+		long result = 0;
+		for (long[] counts : skipped.values())
+			result += counts[1];
+		return result;
+	}
+	
+	/**
+	 * @return something like "Skipped 12 files (3.4 MB) before blaming: 10 generated or vendored, 2 minified" or null
+	 *         if no file was skipped
+	 */
+	public String getSummary() {
+		if (getSkippedFiles() < 1)
+			return null;
+		
+		StringBuilder result = new StringBuilder();
+		result.append(String.format("Skipped %d files (%.1f MB) before blaming:", getSkippedFiles(),
+				getSkippedBytes() / 1024. / 1024.));
+		
+		String separator = " ";
+		for (Map.Entry<Reason, long[]> entry : skipped.entrySet()) {
+			if (entry.getValue()[0] < 1)
+				continue;
+			
+			result.append(separator).append(entry.getValue()[0]).append(" ").append(entry.getKey());
+			separator = ", ";
+		}
+		
+		return result.toString();
+	}
+}
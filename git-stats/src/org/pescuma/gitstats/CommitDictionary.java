@@ -0,0 +1,140 @@
+package org.pescuma.gitstats;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+
+/**
+ * Information about the commits, computed only once per commit and shared by all threads. Each commit also gets a
+ * small sequential id.
+ *
+ * With a cutoff time all the commits older than it are replaced by a single one, whose month and author are a label
+ * like "(before 2020-01-01)". It also has an id, so it can be used as any other commit.
+ *
+ * Thread safe.
+ */
+public class CommitDictionary {
+	
+	public static class CommitInfo {
+		public final int id;
+		public final String hex;
+		public final String month;
+		public final String author;
+		public final boolean ignored;
+		
+		CommitInfo(int id, String hex, String month, String author, boolean ignored) {
+			this.id = id;
+			this.hex = hex;
+			this.month = month;
+			this.author = author;
+			this.ignored = ignored;
+		}
+	}
+	
+	/**
+	 * Used for the lines whose blame was stopped by the {@link org.pescuma.gitstats.blame.BlameBudget}.
+	 */
+	public static final CommitInfo TRUNCATED = new CommitInfo(-1, "", "", Consts.TRUNCATED, false);
+	
+	private final Set<ObjectId> ignored;
+	private final Map<String, String> authorMappings;
+	private final int sinceTime;
+	private final CommitInfo beforeCutoff;
+	private final Map<ObjectId, CommitInfo> commits = new ConcurrentHashMap<ObjectId, CommitInfo>();
+	private volatile CommitInfo[] byId = new CommitInfo[1024];
+	private int size;
+	
+	public CommitDictionary(Set<ObjectId> ignored, Map<String, String> authorMappings) {
+		this(ignored, authorMappings, 0, null);
+	}
+	
+	/**
+	 * @param sinceTime in seconds, as {@link RevCommit#getCommitTime()}, or 0 to keep all the commits
+	 * @param beforeLabel month and author of the commits older than sinceTime
+	 */
+	public CommitDictionary(Set<ObjectId> ignored, Map<String, String> authorMappings, int sinceTime,
+			String beforeLabel) {
+		this.ignored = ignored;
+		this.authorMappings = authorMappings;
+		this.sinceTime = sinceTime;
+		
+		if (sinceTime > 0) {
+			beforeCutoff = new CommitInfo(size, "", beforeLabel, beforeLabel, false);
+			byId[size] = beforeCutoff;
+			size++;
+		} else {
+			beforeCutoff = null;
+		}
+	}
+	
+	/**
+	 * @return in seconds, or 0 if there is no cutoff
+	 */
+	public int getSinceTime() {
+		return sinceTime;
+	}
+	
+	public boolean isBeforeCutoff(RevCommit commit) {
+		return beforeCutoff != null && commit.getCommitTime() < sinceTime;
+	}
+	
+	/**
+	 * @return the commit that replaces all the ones before the cutoff or null if there is no cutoff
+	 */
+	public CommitInfo getBeforeCutoff() {
+		return beforeCutoff;
+	}
+	
+	public CommitInfo get(RevCommit commit) {
+		if (isBeforeCutoff(commit))
+			return beforeCutoff;
+		
+		CommitInfo result = commits.get(commit);
+		if (result != null)
+			return result;
+		
+		return add(commit);
+	}
+	
+	public CommitInfo get(int id) {
+		return byId[id];
+	}
+	
+	public synchronized int size() {
+		return size;
+	}
+	
+	private synchronized CommitInfo add(RevCommit commit) {
+		CommitInfo result = commits.get(commit);
+		if (result != null)
+			return result;
+		
+		ObjectId id = commit.getId().copy();
+		
+		String month = new SimpleDateFormat("yyyy-MM").format(new Date(commit.getCommitTime() * 1000L));
+		
+		String authorName = commit.getAuthorIdent().getName();
+		if (authorName != null) {
+			String alternateName = authorMappings.get(authorName);
+			if (alternateName != null)
+				authorName = alternateName;
+		}
+		
+		result = new CommitInfo(size, id.getName(), month, authorName, ignored.contains(id));
+		
+		if (size == byId.length)
+			byId = Arrays.copyOf(byId, size * 2);
+		byId[size] = result;
+		size++;
+		
+		commits.put(id, result);
+		
+		return result;
+	}
+}
@@ -7,8 +7,19 @@ public class Consts {
 	public static final int COL_COMMIT = 3;
 	public static final int COL_AUTHOR = 4;
 	public static final int COL_FILE = 5;
+	public static final int NUM_COLUMNS = 6;
+	
+	/** Only in the results of --history, after the other columns: the point of the history the lines are from */
+	public static final int COL_SNAPSHOT = 6;
+	public static final int NUM_COLUMNS_WITH_SNAPSHOT = 7;
 	
 	public static final String EMPTY = "Empty";
 	public static final String CODE = "Code";
 	public static final String COMMENT = "Comment";
+	
+	/** Author of the lines of files that went over the blame budget before any commit was found */
+	public static final String TRUNCATED = "(truncated)";
+	
+	/** Start of the month and author of the lines older than --since, for example "(before 2020-01-01)" */
+	public static final String BEFORE_PREFIX = "(before ";
 }
@@ -0,0 +1,426 @@
+package org.pescuma.gitstats;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.pescuma.gitstats.blame.FileBlame;
+import org.pescuma.gitstats.blame.HistoryBlamer;
+import org.pescuma.gitstats.blame.HistoryBlamer.Version;
+import org.pescuma.gitstats.table.ColumnarTable;
+import org.pescuma.gitstats.table.SortedRuns;
+import org.pescuma.gitstats.threads.ParallelLists;
+import org.pescuma.gitstats.threads.ParallelLists.Utilization;
+import org.pescuma.programminglanguagedetector.FilenameToLanguage;
+
+/**
+ * Computes the lines at several points of the history (--history): at the end of each month or week of the first
+ * parent history of HEAD, or at a list of revisions. Each row gets the name of its snapshot in
+ * {@link Consts#COL_SNAPSHOT}.
+ *
+ * Blaming each snapshot would repeat almost all the work for each of them. Instead, a single walk over the history
+ * (the one of --blame-engine history) finds the owners of the lines of every version of every file, diffing each
+ * change only once, so the lines that did not change keep their owners and only the changed ranges get new ones. Then
+ * the lines of each version (path + blob) are counted once, and its rows are copied to all the snapshots that have it.
+ */
+public class HistoryProcessor {
+	
+	public static final String MONTHLY = "monthly";
+	public static final String WEEKLY = "weekly";
+	
+	private static final String MONTH_FORMAT = "yyyy-MM";
+	private static final String DAY_FORMAT = "yyyy-MM-dd";
+	
+	/**
+	 * @return the utilization of the threads while counting the lines or null if there was nothing to count
+	 */
+	public static Utilization process(ColumnarTable data, Args args, List<File> paths, Metrics metrics,
+			SortedRuns spill) throws IOException, GitAPIException {
+		List<HistoryJob> jobs = new ArrayList<HistoryJob>();
+		List<VersionFile> files = new ArrayList<VersionFile>();
+		
+		try {
+			
+			for (File path : paths) {
+				HistoryJob job = prepare(args, path, metrics);
+				if (job == null)
+					continue;
+				
+				jobs.add(job);
+				for (Version version : job.versions)
+					files.add(new VersionFile(job, version));
+			}
+			
+			Utilization result = countLines(args, files, metrics);
+			
+			Metrics.Phase phase = metrics.startPhase("add snapshots");
+			for (HistoryJob job : jobs)
+				addSnapshots(data, job, spill);
+			phase.finish();
+			
+			return result;
+			
+		} finally {
+			for (HistoryJob job : jobs)
+				job.repository.close();
+		}
+	}
+	
+	/**
+	 * Finds the snapshots and the versions of the files in them, and walks the history up to them.
+	 *
+	 * @return null if it is not a repository or there is no snapshot
+	 */
+	private static HistoryJob prepare(Args args, File path, Metrics metrics) throws IOException, GitAPIException {
+		Metrics.Phase phase = metrics.startPhase("list snapshots");
+		
+		final Repository repository;
+		
+		try {
+			repository = new FileRepositoryBuilder() //
+					.readEnvironment() // scan environment GIT_* variables
+					.findGitDir(path) // scan up the file system tree
+					.build();
+			
+		} catch (RuntimeException e) {
+			System.out.println(path.getAbsolutePath() + " is not a git repository");
+			phase.finish();
+			return null;
+		}
+		
+		System.out.println("Processing " + repository.getWorkTree().getAbsolutePath() + " ...");
+		
+		RevWalk walk = new RevWalk(repository);
+		RevCommit head = walk.parseCommit(repository.resolve(Constants.HEAD));
+		
+		Set<ObjectId> ignored = RepositoryProcessor.preProcessIgnored(args, repository);
+		int sinceTime = RepositoryProcessor.preProcessSince(args, repository, walk);
+		CommitDictionary commits = new CommitDictionary(ignored, args.getAuthorMappings(), sinceTime,
+				RepositoryProcessor.getBeforeLabel(args));
+		
+		Map<String, RevCommit> snapshots = findSnapshots(args.history, repository, walk, head, sinceTime);
+		walk.release();
+		
+		if (snapshots.isEmpty()) {
+			System.out.println("No snapshot found for --history " + args.history);
+			repository.close();
+			phase.finish();
+			return null;
+		}
+		
+		List<String> labels = new ArrayList<String>(snapshots.keySet());
+		System.out.println(String.format("%d snapshots, from %s to %s", labels.size(), labels.get(0),
+				labels.get(labels.size() - 1)));
+		
+		List<String> excludedPaths = RepositoryProcessor.preProcessExcludedPaths(args);
+		
+		// Months without commits have the same commit as the month before, so their files are listed only once
+		Map<RevCommit, List<Version>> filesByCommit = new HashMap<RevCommit, List<Version>>();
+		Set<Version> versions = new LinkedHashSet<Version>();
+		Map<Version, Boolean> accepted = new HashMap<Version, Boolean>();
+		
+		ObjectReader reader = repository.newObjectReader();
+		// The .gitattributes of the last snapshot are used for all of them
+		BlobFilter filter = BlobFilter.create(args, reader, snapshots.get(labels.get(labels.size() - 1)).getTree());
+		
+		HistoryJob job = new HistoryJob(repository, args.getLanguageMappings());
+		
+		for (Map.Entry<String, RevCommit> snapshot : snapshots.entrySet()) {
+			RevCommit commit = snapshot.getValue();
+			
+			List<Version> files = filesByCommit.get(commit);
+			if (files == null) {
+				files = new ArrayList<Version>();
+				
+				TreeWalk tree = new TreeWalk(reader);
+				tree.addTree(commit.getTree());
+				tree.setRecursive(true);
+				
+				while (tree.next()) {
+					String file = tree.getPathString();
+					
+					if (RepositoryProcessor.isInExcludedPath(repository, file, excludedPaths))
+						continue;
+					
+					if (!FilenameToLanguage.isKnownFileType(file))
+						continue;
+					
+					Version version = new Version(file, tree.getObjectId(0));
+					
+					Boolean blamed = accepted.get(version);
+					if (blamed == null) {
+						blamed = filter.check(file, version.blob) == null;
+						accepted.put(version, blamed);
+					}
+					
+					if (blamed)
+						files.add(version);
+				}
+				
+				filesByCommit.put(commit, files);
+				versions.addAll(files);
+			}
+			
+			job.snapshots.put(snapshot.getKey(), files);
+		}
+		
+		reader.release();
+		
+		String skipped = filter.getSummary();
+		if (skipped != null)
+			System.out.println(skipped);
+		
+		job.versions.addAll(versions);
+		
+		phase.finish();
+		
+		phase = metrics.startPhase("walk history");
+		job.blamer = HistoryBlamer.computeAll(repository, filesByCommit.keySet(), commits);
+		phase.finish();
+		
+		return job;
+	}
+	
+	/**
+	 * @return the commit of each snapshot, by its name, from the oldest to the newest
+	 */
+	public static Map<String, RevCommit> findSnapshots(String history, Repository repository, RevWalk walk, RevCommit head,
+			int sinceTime) throws IOException {
+		if (history.equals(MONTHLY))
+			return findPeriodSnapshots(walk, head, sinceTime, true);
+		
+		if (history.equals(WEEKLY))
+			return findPeriodSnapshots(walk, head, sinceTime, false);
+		
+		List<RevCommit> commits = new ArrayList<RevCommit>();
+		List<String> revisions = new ArrayList<String>();
+		for (String revision : history.split(",")) {
+			revision = revision.trim();
+			if (revision.isEmpty())
+				continue;
+			
+			ObjectId id = repository.resolve(revision);
+			if (id == null) {
+				System.out.println("Could not find revision " + revision);
+				continue;
+			}
+			
+			commits.add(walk.parseCommit(id));
+			revisions.add(revision);
+		}
+		
+		// The date first, so the names sort in the order of the history
+		final Map<String, RevCommit> found = new HashMap<String, RevCommit>();
+		SimpleDateFormat format = new SimpleDateFormat(DAY_FORMAT);
+		for (int i = 0; i < commits.size(); i++) {
+			RevCommit commit = commits.get(i);
+			found.put(format.format(new Date(commit.getCommitTime() * 1000L)) + " " + revisions.get(i), commit);
+		}
+		
+		List<String> names = new ArrayList<String>(found.keySet());
+		Collections.sort(names, new Comparator<String>() {
+			@Override
+			public int compare(String o1, String o2) {
+				int result = found.get(o1).getCommitTime() - found.get(o2).getCommitTime();
+				if (result != 0)
+					return result;
+				return o1.compareTo(o2);
+			}
+		});
+		
+		Map<String, RevCommit> result = new LinkedHashMap<String, RevCommit>();
+		for (String name : names)
+			result.put(name, found.get(name));
+		return result;
+	}
+	
+	/**
+	 * The snapshot of each period is the newest commit of the first parent history of HEAD (the branch itself, without
+	 * the commits merged into it) from before its end. Monthly snapshots are named by the month and weekly ones by
+	 * the last day of the week.
+	 */
+	private static Map<String, RevCommit> findPeriodSnapshots(RevWalk walk, RevCommit head, int sinceTime,
+			boolean monthly) throws IOException {
+		List<RevCommit> chain = new ArrayList<RevCommit>();
+		for (RevCommit commit = head; commit != null; commit = commit.getParentCount() > 0 ? commit.getParent(0)
+				: null) {
+			walk.parseHeaders(commit);
+			chain.add(commit);
+		}
+		
+		RevCommit first = chain.get(chain.size() - 1);
+		
+		Calendar period = Calendar.getInstance();
+		period.setTimeInMillis(Math.max(first.getCommitTime(), sinceTime) * 1000L);
+		startPeriod(period, monthly);
+		
+		SimpleDateFormat format = new SimpleDateFormat(monthly ? MONTH_FORMAT : DAY_FORMAT);
+		List<String> names = new ArrayList<String>();
+		List<Long> ends = new ArrayList<Long>();
+		
+		while (period.getTimeInMillis() <= head.getCommitTime() * 1000L) {
+			Calendar end = (Calendar) period.clone();
+			end.add(monthly ? Calendar.MONTH : Calendar.DAY_OF_MONTH, monthly ? 1 : 7);
+			
+			if (monthly) {
+				names.add(format.format(period.getTime()));
+			} else {
+				Calendar last = (Calendar) end.clone();
+				last.add(Calendar.DAY_OF_MONTH, -1);
+				names.add(format.format(last.getTime()));
+			}
+			
+			ends.add(end.getTimeInMillis() / 1000);
+			period = end;
+		}
+		
+		// From the newest period to the oldest, so the chain is only walked once
+		RevCommit[] commits = new RevCommit[ends.size()];
+		int pos = 0;
+		for (int i = ends.size() - 1; i >= 0; i--) {
+			while (pos < chain.size() && chain.get(pos).getCommitTime() >= ends.get(i))
+				pos++;
+			
+			if (pos < chain.size())
+				commits[i] = chain.get(pos);
+		}
+		
+		Map<String, RevCommit> result = new LinkedHashMap<String, RevCommit>();
+		for (int i = 0; i < commits.length; i++)
+			if (commits[i] != null)
+				result.put(names.get(i), commits[i]);
+		return result;
+	}
+	
+	/**
+	 * Moves the calendar to the start of the month or of the week (weeks start on Monday)
+	 */
+	private static void startPeriod(Calendar calendar, boolean monthly) {
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		
+		if (monthly)
+			calendar.set(Calendar.DAY_OF_MONTH, 1);
+		else
+			calendar.add(Calendar.DAY_OF_MONTH, -((calendar.get(Calendar.DAY_OF_WEEK) - Calendar.MONDAY + 7) % 7));
+	}
+	
+	private static Utilization countLines(Args args, List<VersionFile> files, final Metrics metrics) {
+		final Progress progress = new Progress(files.size());
+		
+		Metrics.Phase phase = metrics.startPhase("count lines");
+		
+		ParallelLists parallel = new ParallelLists(args.threads);
+		parallel.splitInThreads(files, new ParallelLists.Callback<VersionFile>() {
+			@Override
+			public void run(Iterable<VersionFile> files) throws Exception {
+				Map<HistoryJob, AuthorsProcessor> processors = new HashMap<HistoryJob, AuthorsProcessor>();
+				
+				for (VersionFile file : files) {
+					try {
+						
+						AuthorsProcessor processor = processors.get(file.job);
+						if (processor == null) {
+							processor = new AuthorsProcessor(file.job.blamer, file.job.languageMappings, null, metrics);
+							processors.put(file.job, processor);
+						}
+						
+						long start = metrics.isEnabled() ? System.nanoTime() : 0;
+						FileBlame blame = file.job.blamer.blame(file.version);
+						long blameNanos = metrics.isEnabled() ? System.nanoTime() - start : 0;
+						
+						ColumnarTable lines = new ColumnarTable(Consts.NUM_COLUMNS);
+						processor.addLines(lines, file.version.path, blame, blameNanos);
+						file.job.lines.put(file.version, lines);
+						
+					} finally {
+						progress.step();
+					}
+				}
+			}
+		});
+		
+		phase.finish();
+		metrics.threadsUsed("count lines", parallel.getUtilization());
+		
+		progress.finish();
+		
+		if (files.isEmpty())
+			return null;
+		
+		System.out.println(parallel.getUtilization());
+		return parallel.getUtilization();
+	}
+	
+	/**
+	 * Copies the rows of the versions of the files of each snapshot, adding its name
+	 */
+	private static void addSnapshots(ColumnarTable data, HistoryJob job, SortedRuns spill) throws IOException {
+		String[] columns = new String[Consts.NUM_COLUMNS_WITH_SNAPSHOT];
+		
+		for (Map.Entry<String, List<Version>> snapshot : job.snapshots.entrySet()) {
+			ColumnarTable table = (spill == null ? data : new ColumnarTable(Consts.NUM_COLUMNS_WITH_SNAPSHOT));
+			columns[Consts.COL_SNAPSHOT] = snapshot.getKey();
+			
+			for (Version version : snapshot.getValue()) {
+				ColumnarTable lines = job.lines.get(version);
+				for (int row = 0; row < lines.size(); row++) {
+					for (int col = 0; col < Consts.NUM_COLUMNS; col++)
+						columns[col] = lines.getColumn(row, col);
+					
+					table.inc(lines.getValue(row), columns);
+				}
+			}
+			
+			if (spill != null)
+				spill.add(table);
+		}
+	}
+	
+	private static class HistoryJob {
+		final Repository repository;
+		final Map<String, String> languageMappings;
+		final Map<String, List<Version>> snapshots = new LinkedHashMap<String, List<Version>>();
+		final List<Version> versions = new ArrayList<Version>();
+		final Map<Version, ColumnarTable> lines = new ConcurrentHashMap<Version, ColumnarTable>();
+		HistoryBlamer blamer;
+		
+		HistoryJob(Repository repository, Map<String, String> languageMappings) {
+			this.repository = repository;
+			this.languageMappings = languageMappings;
+		}
+	}
+	
+	private static class VersionFile {
+		final HistoryJob job;
+		final Version version;
+		
+		VersionFile(HistoryJob job, Version version) {
+			this.job = job;
+			this.version = version;
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package org.pescuma.gitstats;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.pescuma.gitstats.table.ColumnarTable;
+import org.pescuma.gitstats.table.Dictionary;
+
+/**
+ * Removes from the data of a previous run the rows of the files that were processed again, so the new data replaces
+ * them.
+ *
+ * The rows don't say which repository they came from, and different repositories can have files with the same path, so
+ * each row is given to the repositories that have its commit. The rows without a commit (lines that could not be
+ * blamed, were truncated or are older than --since) are given to the repositories of the other rows of the same file
+ * or, if there are none, to the repositories that had the file in their previous commit. A row is removed if its file
+ * changed in one of its repositories, or if one of them was processed again from scratch. The rows of the repositories
+ * that were not processed again are kept.
+ */
+public class IncrementalFilter {
+	
+	private final Snapshot snapshot;
+	private final List<File> worktrees;
+	private final List<Repository> repositories;
+	private final RevTree[] previousTrees;
+	
+	private IncrementalFilter(Snapshot snapshot, List<File> worktrees, List<Repository> repositories) {
+		this.snapshot = snapshot;
+		this.worktrees = worktrees;
+		this.repositories = repositories;
+		previousTrees = new RevTree[repositories.size()];
+	}
+	
+	public static ColumnarTable removeChanged(ColumnarTable previous, Snapshot snapshot) throws IOException {
+		List<File> worktrees = snapshot.getChangedRepositories();
+		if (worktrees.isEmpty() || previous.isEmpty())
+			return previous;
+		
+		List<Repository> repositories = new ArrayList<Repository>();
+		try {
+			
+			for (File worktree : worktrees)
+				repositories.add(new FileRepositoryBuilder().readEnvironment().findGitDir(worktree).build());
+			
+			return new IncrementalFilter(snapshot, worktrees, repositories).filter(previous);
+			
+		} finally {
+			for (Repository repository : repositories)
+				repository.close();
+		}
+	}
+	
+	private ColumnarTable filter(ColumnarTable previous) throws IOException {
+		Dictionary commits = previous.getDictionary(Consts.COL_COMMIT);
+		BitSet[] commitOwners = new BitSet[commits.size()];
+		
+		for (int code = 0; code < commitOwners.length; code++) {
+			String commit = commits.decode(code);
+			if (ObjectId.isId(commit))
+				commitOwners[code] = findCommitOwners(ObjectId.fromString(commit));
+		}
+		
+		Map<String, BitSet> fileOwners = new HashMap<String, BitSet>();
+		for (int row = 0; row < previous.size(); row++) {
+			// An empty set is kept too: the file is from repositories that did not change
+			BitSet owners = commitOwners[previous.getCode(row, Consts.COL_COMMIT)];
+			if (owners == null)
+				continue;
+			
+			String file = previous.getColumn(row, Consts.COL_FILE);
+			BitSet result = fileOwners.get(file);
+			if (result == null) {
+				result = new BitSet();
+				fileOwners.put(file, result);
+			}
+			result.or(owners);
+		}
+		
+		BitSet keep = new BitSet(previous.size());
+		for (int row = 0; row < previous.size(); row++) {
+			String file = previous.getColumn(row, Consts.COL_FILE);
+			
+			BitSet owners = commitOwners[previous.getCode(row, Consts.COL_COMMIT)];
+			if (owners == null) {
+				owners = fileOwners.get(file);
+				if (owners == null) {
+					owners = findPathOwners(file);
+					fileOwners.put(file, owners);
+				}
+			}
+			
+			if (!isChanged(owners, file))
+				keep.set(row);
+		}
+		
+		return previous.filterRows(keep);
+	}
+	
+	private boolean isChanged(BitSet owners, String file) {
+		for (int i = owners.nextSetBit(0); i >= 0; i = owners.nextSetBit(i + 1))
+			if (snapshot.isChanged(worktrees.get(i), file))
+				return true;
+		return false;
+	}
+	
+	private BitSet findCommitOwners(ObjectId commit) {
+		BitSet result = new BitSet();
+		for (int i = 0; i < repositories.size(); i++)
+			if (repositories.get(i).hasObject(commit))
+				result.set(i);
+		return result;
+	}
+	
+	private BitSet findPathOwners(String file) throws IOException {
+		BitSet result = new BitSet();
+		for (int i = 0; i < repositories.size(); i++) {
+			// There is nothing to compare with, so it may be the owner
+			if (snapshot.isAllFilesChanged(worktrees.get(i))) {
+				result.set(i);
+				continue;
+			}
+			
+			RevTree tree = getPreviousTree(i);
+			if (tree != null && TreeWalk.forPath(repositories.get(i), file, tree) != null)
+				result.set(i);
+		}
+		return result;
+	}
+	
+	private RevTree getPreviousTree(int i) throws IOException {
+		if (previousTrees[i] != null)
+			return previousTrees[i];
+		
+		ObjectId commit = snapshot.getPreviousCommit(worktrees.get(i));
+		if (commit == null)
+			return null;
+		
+		RevWalk walk = new RevWalk(repositories.get(i));
+		try {
+			previousTrees[i] = walk.parseCommit(commit).getTree();
+		} catch (MissingObjectException e) {
+			return null;
+		} finally {
+			walk.release();
+		}
+		
+		return previousTrees[i];
+	}
+}
@@ -0,0 +1,39 @@
+package org.pescuma.gitstats;
+
+public class Json {
+	
+	private Json() {
+	}
+	
+	public static String quote(String text) {
+		StringBuilder result = new StringBuilder(text.length() + 2);
+		result.append('"');
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (c) {
+				case '"':
+					result.append("\\\"");
+					break;
+				case '\\':
+					result.append("\\\\");
+					break;
+				case '\n':
+					result.append("\\n");
+					break;
+				case '\r':
+					result.append("\\r");
+					break;
+				case '\t':
+					result.append("\\t");
+					break;
+				default:
+					if (c < 0x20)
+						result.append(String.format("\\u%04x", (int) c));
+					else
+						result.append(c);
+			}
+		}
+		result.append('"');
+		return result.toString();
+	}
+}
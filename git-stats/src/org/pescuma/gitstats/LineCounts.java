@@ -0,0 +1,102 @@
+package org.pescuma.gitstats;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.pescuma.gitstats.CommitDictionary.CommitInfo;
+import org.pescuma.gitstats.table.RowSink;
+import org.pescuma.programminglanguagedetector.SimpleFileParser.LineType;
+
+/**
+ * Counts the lines of a single file by commit and line type, so the table gets one row per commit and line type
+ * instead of one call per line. Each commit gets a slot, in the order they are first seen, with one counter per line
+ * type.
+ *
+ * Not thread safe. After {@link #flush} it can be used for the next file.
+ */
+public class LineCounts {
+	
+	private static final LineType[] LINE_TYPES = LineType.values();
+	private static final String[] LINE_TYPE_NAMES = new String[LINE_TYPES.length];
+	static {
+		for (LineType lineType : LINE_TYPES)
+			LINE_TYPE_NAMES[lineType.ordinal()] = toLineTypeName(lineType);
+	}
+	
+	// The commits come from a CommitDictionary, so the same commit is always the same instance
+	private final Map<CommitInfo, Integer> slots = new IdentityHashMap<CommitInfo, Integer>();
+	private CommitInfo[] commits = new CommitInfo[16];
+	private int[] counts = new int[commits.length * LINE_TYPES.length];
+	private int size;
+	private CommitInfo lastCommit;
+	private int lastSlot = -1;
+	
+	/**
+	 * @param commit null if the line could not be blamed
+	 */
+	public void add(CommitInfo commit, LineType lineType) {
+		// Consecutive lines usually come from the same commit
+		if (lastSlot < 0 || commit != lastCommit) {
+			lastSlot = findSlot(commit);
+			lastCommit = commit;
+		}
+		
+		counts[lastSlot * LINE_TYPES.length + lineType.ordinal()]++;
+	}
+	
+	private int findSlot(CommitInfo commit) {
+		Integer slot = slots.get(commit);
+		if (slot != null)
+			return slot;
+		
+		if (size == commits.length) {
+			commits = Arrays.copyOf(commits, size * 2);
+			counts = Arrays.copyOf(counts, commits.length * LINE_TYPES.length);
+		}
+		
+		commits[size] = commit;
+		slots.put(commit, size);
+		return size++;
+	}
+	
+	/**
+	 * Adds the counts to the sink, with the same columns used by {@link Consts}, and clears them.
+	 */
+	public void flush(String language, String file, RowSink sink) {
+		for (int slot = 0; slot < size; slot++) {
+			CommitInfo commit = commits[slot];
+			
+			for (int type = 0; type < LINE_TYPES.length; type++) {
+				int count = counts[slot * LINE_TYPES.length + type];
+				if (count == 0)
+					continue;
+				
+				if (commit == null)
+					sink.inc(count, language, LINE_TYPE_NAMES[type], "", "", "", file);
+				else
+					sink.inc(count, language, LINE_TYPE_NAMES[type], commit.month, commit.hex, commit.author, file);
+			}
+		}
+		
+		Arrays.fill(commits, 0, size, null);
+		Arrays.fill(counts, 0, size * LINE_TYPES.length, 0);
+		slots.clear();
+		size = 0;
+		lastCommit = null;
+		lastSlot = -1;
+	}
+	
+	private static String toLineTypeName(LineType lineType) {
+		switch (lineType) {
+			case Empty:
+				return Consts.EMPTY;
+			case Code:
+				return Consts.CODE;
+			case Comment:
+				return Consts.COMMENT;
+			default:
+				throw new IllegalArgumentException();
+		}
+	}
+}
@@ -4,34 +4,28 @@ import static java.lang.Math.*;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.charset.Charset;
 import java.text.DateFormat;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.LogManager;
 
-import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.StringUtils;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
-import org.pescuma.datatable.DataTable;
-import org.pescuma.datatable.DataTable.Line;
-import org.pescuma.datatable.DataTableSerialization;
-import org.pescuma.datatable.MemoryDataTable;
-import org.pescuma.datatable.func.Function2;
 import org.pescuma.gitstats.ColumnsOutput.Align;
-
-import com.google.common.base.Function;
-import com.google.common.base.Predicate;
-import com.google.common.io.Files;
+import org.pescuma.gitstats.ReportCube.Stats;
+import org.pescuma.gitstats.export.CSVExporter;
+import org.pescuma.gitstats.export.HTMLExporter;
+import org.pescuma.gitstats.server.StatsServer;
+import org.pescuma.gitstats.table.ColumnarTable;
+import org.pescuma.gitstats.table.ColumnarTableSerialization;
+import org.pescuma.gitstats.table.SortedRuns;
 
 public class Main {
 	
@@ -68,135 +62,185 @@ public class Main {
 	private static int run(Args args) throws IOException, GitAPIException, InterruptedException {
 		args.applyDefaults();
 		
-		DataTable data = new MemoryDataTable();
+		if (!Args.BLAME_ENGINES.contains(args.blameEngine)) {
+			System.out.println("Unknown blame engine: " + args.blameEngine + " (should be one of " + Args.BLAME_ENGINES
+					+ ")");
+			return -1;
+		}
+		
+		if (!Arrays.asList(PackCache.MMAP_AUTO, PackCache.MMAP_YES, PackCache.MMAP_NO).contains(args.packMmap)) {
+			System.out.println("Unknown --pack-mmap: " + args.packMmap + " (should be " + PackCache.MMAP_AUTO + ", "
+					+ PackCache.MMAP_YES + " or " + PackCache.MMAP_NO + ")");
+			return -1;
+		}
+		
+		// JGit doesn't accept windows smaller than 4 KB
+		if (args.packWindowKB != 0 && (args.packWindowKB < 4 || Integer.bitCount(args.packWindowKB) != 1)) {
+			System.out.println("--pack-window-kb must be a power of 2 of at least 4: " + args.packWindowKB);
+			return -1;
+		}
+		
+		if (args.history != null && (args.incremental != null || args.serve)) {
+			System.out.println("--history can't be used with --incremental or --serve");
+			return -1;
+		}
+		
+		ColumnarTable data = new ColumnarTable(args.getNumColumns());
+		Snapshot snapshot = new Snapshot();
+		
+		SnapshotLoader loader = new SnapshotLoader(args);
+		Metrics metrics = args.metrics == null ? Metrics.DISABLED : new Metrics();
+		
+		ColumnarTable previous = null;
+		if (args.incremental != null) {
+			if (!args.incremental.exists()) {
+				System.out.println("File not found: " + args.incremental + " - processing all files");
+			} else {
+				Metrics.Phase phase = metrics.startPhase("load incremental");
+				previous = new ColumnarTable(Consts.NUM_COLUMNS);
+				loader.load(previous, args.incremental);
+				snapshot.loadPrevious(args.incremental);
+				phase.finish();
+			}
+		}
+		
+		List<File> snapshotFiles = new ArrayList<File>();
+		List<File> repositories = new ArrayList<File>();
 		
 		for (File path : args.paths) {
 			if (!path.exists())
 				System.err.println("File/folder not found: " + path);
 			
-			else if (path.isFile() && path.getName().endsWith(".csv"))
-				loadFromCSV(data, args, path);
+			else if (path.isFile() && SnapshotLoader.isSnapshot(path))
+				snapshotFiles.add(path);
 			
 			else
-				RepositoryProcessor.process(data, args, path);
+				repositories.add(path);
+		}
+		
+		if (args.history != null && !snapshotFiles.isEmpty()) {
+			System.out.println("--history only works with repositories: " + snapshotFiles.get(0));
+			return -1;
+		}
+		
+		if (args.serve)
+			return StatsServer.serve(args, repositories, snapshotFiles);
+		
+		SortedRuns spill = null;
+		if (args.spillMB > 0)
+			spill = new SortedRuns(args.spillDir, args.getNumColumns());
+		
+		RepositoryProcessor.process(data, args, repositories, snapshot, metrics, spill);
+		
+		Metrics.Phase phase = metrics.startPhase("load snapshots");
+		loader.loadAll(data, snapshotFiles, snapshot);
+		phase.finish();
+		
+		if (previous != null) {
+			phase = metrics.startPhase("merge incremental");
+			data.inc(IncrementalFilter.removeChanged(previous, snapshot));
+			phase.finish();
+		}
+		
+		// If only CSV is needed, the rows are written while the spilled files are merged, without loading them
+		boolean streamCSV = false;
+		if (spill != null && !spill.isEmpty()) {
+			if (args.isOnlyCSVOutputs()) {
+				spill.add(data);
+				streamCSV = true;
+			} else {
+				phase = metrics.startPhase("merge spilled results");
+				spill.mergeInto(data);
+				spill.delete();
+				phase.finish();
+			}
 		}
 		
 		System.out.println();
 		
-		if (data.isEmpty()) {
+		if (data.isEmpty() && !streamCSV) {
 			System.out.println("No data available");
 			return -1;
 		}
 		
 		for (String output : args.outputs) {
+			phase = metrics.startPhase("output " + getOutputName(output));
+			
 			if (Args.isConsole(output))
 				outputStatsToConsole(data, args);
 			
+			else if (output.endsWith(".csv") && streamCSV)
+				outputStatsToCSV(spill, snapshot, output);
+			
 			else if (output.endsWith(".csv"))
-				outputStatsToCSV(data, output);
+				outputStatsToCSV(data, snapshot, output);
+			
+			else if (ColumnarTableSerialization.isGStats(new File(output)))
+				outputStatsToGStats(data, snapshot, output, args.compress);
 			
 			else if (output.endsWith(".htm") || output.endsWith(".html"))
-				outputStatsToHTML(data, output);
+				outputStatsToHTML(data, output, args.compress);
 			
 			else
 				System.out.println("Unknown output format: " + output);
+			
+			phase.finish();
+		}
+		
+		if (spill != null)
+			spill.delete();
+		
+		if (args.metrics != null) {
+			System.out.println("Writing metrics to " + args.metrics);
+			metrics.save(args.metrics);
+			System.out.println();
 		}
 		
 		return 0;
 	}
 	
-	private static void loadFromCSV(DataTable data, final Args args, File file) {
-		System.out.println("Loading " + file.getAbsolutePath() + "...");
-		
-		DataTable loaded = new MemoryDataTable();
-		DataTableSerialization.loadFromCSV(loaded, file);
-		
-		if (!args.excludedPaths.isEmpty()) {
-			final List<String> excludedPaths = preProcessExcludedPaths(args);
-			loaded = loaded.filter(Consts.COL_FILE, new Predicate<String>() {
-				@Override
-				public boolean apply(String file) {
-					for (String excluded : excludedPaths) {
-						if (file.startsWith(excluded))
-							return false;
-					}
-					return true;
-				}
-			});
-		}
+	private static String getOutputName(String output) {
+		if (Args.isConsole(output))
+			return output;
+		return new File(output).getName();
+	}
+	
+	private static void outputStatsToCSV(ColumnarTable data, Snapshot snapshot, String output) throws IOException {
+		System.out.println("Writing CSV output to " + output);
 		
-		if (!args.ignoredRevisions.isEmpty()) {
-			loaded = loaded.filter(Consts.COL_COMMIT, new Predicate<String>() {
-				@Override
-				public boolean apply(String commit) {
-					for (String rev : args.ignoredRevisions) {
-						if (StringUtils.startsWithIgnoreCase(commit, rev))
-							return false;
-					}
-					return true;
-				}
-			});
-		}
+		CSVExporter.export(data, new File(output));
+		snapshot.save(new File(output));
 		
-		if (!args.authors.isEmpty()) {
-			final Map<String, String> authorMappings = args.getAuthorMappings();
-			loaded = loaded.mapColumn(Consts.COL_AUTHOR, new Function<String, String>() {
-				@Override
-				public String apply(String author) {
-					String newAuthor = authorMappings.get(author);
-					
-					if (newAuthor != null)
-						return newAuthor;
-					else
-						return author;
-				}
-			});
-		}
+		System.out.println();
+	}
+	
+	private static void outputStatsToCSV(SortedRuns spill, Snapshot snapshot, String output) throws IOException {
+		System.out.println("Writing CSV output to " + output);
 		
-		if (!args.languages.isEmpty()) {
-			final Map<String, String> languageMappings = args.getLanguageMappings();
-			loaded = loaded.mapColumn(Consts.COL_LANGUAGE, new Function2<String, String, Line>() {
-				@Override
-				public String apply(String language, Line line) {
-					String extension = FilenameUtils.getExtension(line.getColumn(Consts.COL_FILE));
-					String newLanguage = languageMappings.get(extension);
-					
-					if (newLanguage != null)
-						return newLanguage;
-					else
-						return language;
-				}
-			});
-		}
+		CSVExporter.export(spill, new File(output));
+		snapshot.save(new File(output));
 		
-		data.inc(loaded);
+		System.out.println();
 	}
 	
-	private static void outputStatsToCSV(DataTable data, String output) {
-		System.out.println("Writing CSV output to " + output);
+	private static void outputStatsToGStats(ColumnarTable data, Snapshot snapshot, String output, boolean compress)
+			throws IOException {
+		System.out.println("Writing .gstats output to " + output);
 		
-		DataTableSerialization.saveAsCSV(data, new File(output), false);
+		ColumnarTableSerialization.saveAsGStats(data, new File(output), compress);
+		snapshot.save(new File(output));
 		
 		System.out.println();
 	}
 	
-	private static void outputStatsToHTML(DataTable data, String output) throws IOException {
+	private static void outputStatsToHTML(ColumnarTable data, String output, boolean compress) throws IOException {
 		System.out.println("Writing HTML output to " + output);
 		
-		StringBuilder lines = new StringBuilder();
-		for (Line line : data.getLines()) {
-			lines.append("        data.add(").append(line.getValue());
-			for (String col : line.getColumns())
-				lines.append(", '").append(col.replace("'", "\\'")).append("'");
-			lines.append(");\n");
-		}
-		
-		String html = readIndexHtml();
-		html = html.replace("$$$date$$$", DateFormat.getDateTimeInstance().format(new Date()));
-		html = html.replace("$$$version$$$", getVersion());
-		html = html.replace("$$$data$$$", lines.toString());
+		Map<String, String> variables = new HashMap<String, String>();
+		variables.put("date", DateFormat.getDateTimeInstance().format(new Date()));
+		variables.put("version", getVersion());
 		
-		Files.write(html, new File(output), Charset.forName("UTF-8"));
+		HTMLExporter.export(data, variables, new File(output), compress);
 		
 		System.out.println();
 	}
@@ -208,65 +252,63 @@ public class Main {
 		return version;
 	}
 	
-	private static String readIndexHtml() throws IOException {
-		InputStream in = Main.class.getResourceAsStream("/org/pescuma/gitstats/export/index.html");
-		try {
-			return IOUtils.toString(in, "UTF-8");
-		} finally {
-			in.close();
+	private static void outputStatsToConsole(ColumnarTable data, final Args args) {
+		if (args.history != null) {
+			List<String> snapshots = outputHistoryToConsole(data);
+			String last = snapshots.get(snapshots.size() - 1);
+			
+			System.out.println("Last snapshot (" + last + "):");
+			System.out.println();
+			data = data.filter(Consts.COL_SNAPSHOT, last);
 		}
-	}
-	
-	private static void outputStatsToConsole(DataTable data, final Args args) {
 		
-		double totalLines = data.sum();
+		ReportCube cube = ReportCube.build(data);
+		
+		Stats total = cube.getTotal();
+		double totalLines = total.lines;
 		
 		System.out.println("Total:");
 		ColumnsOutput out = new ColumnsOutput();
 		{
 			out.appendColumn("   ");
-			appendLines(out, data);
-			appendFiles(out, data);
-			appendLanguages(out, data);
-			appendCommits(out, data);
-			appendAuthors(out, data);
-			appendMonths(out, data);
-			appendUnblamable(out, data);
+			appendLines(out, total);
+			appendFiles(out, total);
+			appendLanguages(out, total);
+			appendCommits(out, total);
+			appendAuthors(out, total);
+			appendMonths(out, total);
+			appendUnblamable(out, total);
 		}
 		out.print(System.out);
 		System.out.println();
 		
 		System.out.println("Authors:");
 		out = new ColumnsOutput();
-		for (String author : sortByLines(data, Consts.COL_AUTHOR)) {
-			if (author.isEmpty())
+		for (Stats author : sort(cube.getGroups(Consts.COL_AUTHOR), ReportCube.byLinesDescending())) {
+			if (author.name.isEmpty())
 				continue;
 			
-			DataTable authorData = data.filter(Consts.COL_AUTHOR, author);
-			double authorLines = authorData.sum();
-			
-			out.appendColumn("   ").appendColumn(author).appendColumn(" : ")
-					.appendColumn(Align.Right, "%.1f%%", percent(authorLines, totalLines))
+			out.appendColumn("   ").appendColumn(author.name).appendColumn(" : ")
+					.appendColumn(Align.Right, "%.1f%%", percent(author.lines, totalLines))
 					.appendColumn(" of the lines: ");
-			appendLines(out, authorData, authorLines);
-			appendFiles(out, authorData);
-			appendLanguages(out, authorData);
-			appendCommits(out, authorData);
-			appendMonths(out, authorData);
+			appendLines(out, author);
+			appendFiles(out, author);
+			appendLanguages(out, author);
+			appendCommits(out, author);
+			appendMonths(out, author);
 			
 			out.newLine();
 		}
 		{
-			DataTable unblamableData = data.filter(Consts.COL_AUTHOR, "");
-			double unblamableLines = unblamableData.sum();
-			if (unblamableLines > 0) {
+			Stats unblamable = cube.getGroup(Consts.COL_AUTHOR, "");
+			if (unblamable != null && unblamable.lines > 0) {
 				out.appendColumn("   ").appendColumn("Unblamable lines").appendColumn(" : ")
-						.appendColumn(Align.Right, "%.1f%%", percent(unblamableLines, totalLines))
+						.appendColumn(Align.Right, "%.1f%%", percent(unblamable.lines, totalLines))
 						.appendColumn(" of the lines: ");
 				
-				appendLines(out, unblamableData, unblamableLines);
-				appendFiles(out, unblamableData);
-				appendLanguages(out, unblamableData);
+				appendLines(out, unblamable);
+				appendFiles(out, unblamable);
+				appendLanguages(out, unblamable);
 				
 				out.newLine();
 			}
@@ -277,23 +319,22 @@ public class Main {
 		System.out.print("Months: ");
 		out = new ColumnsOutput();
 		List<Double> perMonthLines = new ArrayList<Double>();
-		for (String month : sortByText(data.getDistinct(Consts.COL_MONTH))) {
-			if (month.isEmpty()) {
+		for (Stats month : sort(cube.getGroups(Consts.COL_MONTH), ReportCube.byName())) {
+			if (month.name.isEmpty()) {
 				perMonthLines.add(0d);
 				continue;
 			}
 			
-			DataTable monthData = data.filter(Consts.COL_MONTH, month);
-			double monthLines = monthData.sum();
+			// Not a month, so it is not in the sparkline
+			if (!month.name.startsWith(Consts.BEFORE_PREFIX))
+				perMonthLines.add(month.lines);
 			
-			perMonthLines.add(monthLines);
-			
-			out.appendColumn("   ").appendColumn(month).appendColumn(" : ");
-			appendLines(out, monthData, monthLines);
-			appendFiles(out, monthData);
-			appendLanguages(out, monthData);
-			appendCommits(out, monthData);
-			appendAuthors(out, monthData);
+			out.appendColumn("   ").appendColumn(month.name).appendColumn(" : ");
+			appendLines(out, month);
+			appendFiles(out, month);
+			appendLanguages(out, month);
+			appendCommits(out, month);
+			appendAuthors(out, month);
 			
 			out.newLine();
 		}
@@ -303,58 +344,124 @@ public class Main {
 		
 		System.out.println("Languages:");
 		out = new ColumnsOutput();
-		for (String language : sortByLines(data, Consts.COL_LANGUAGE)) {
-			DataTable languageData = data.filter(Consts.COL_LANGUAGE, language);
+		for (Stats language : sort(cube.getGroups(Consts.COL_LANGUAGE), ReportCube.byLinesDescending())) {
+			out.appendColumn("   ").appendColumn(language.name).appendColumn(" : ");
+			appendLines(out, language);
+			appendFiles(out, language);
+			appendCommits(out, language);
+			appendAuthors(out, language);
+			appendMonths(out, language);
+			appendUnblamable(out, language);
 			
-			out.appendColumn("   ").appendColumn(language).appendColumn(" : ");
-			appendLines(out, languageData);
-			appendFiles(out, languageData);
-			appendCommits(out, languageData);
-			appendAuthors(out, languageData);
-			appendMonths(out, languageData);
-			appendUnblamable(out, languageData);
+			out.newLine();
+		}
+		out.print(System.out);
+		System.out.println();
+	}
+	
+	/**
+	 * @return the names of the snapshots, from the oldest to the newest
+	 */
+	private static List<String> outputHistoryToConsole(ColumnarTable data) {
+		List<String> snapshots = new ArrayList<String>(data.getDistinct(Consts.COL_SNAPSHOT));
+		Collections.sort(snapshots);
+		
+		// Grouping is a single pass over the rows, filtering each snapshot would be one pass per snapshot
+		ColumnarTable byType = data.groupBy(Consts.COL_SNAPSHOT, Consts.COL_LINE_TYPE);
+		final ColumnarTable byAuthor = data.groupBy(Consts.COL_SNAPSHOT, Consts.COL_AUTHOR);
+		Map<String, Integer> files = countDistinct(data.groupBy(Consts.COL_SNAPSHOT, Consts.COL_FILE));
+		Map<String, Integer> authors = countDistinct(byAuthor);
+		
+		System.out.print("Snapshots: ");
+		ColumnsOutput out = new ColumnsOutput();
+		List<Double> totals = new ArrayList<Double>();
+		for (String snapshot : snapshots) {
+			double code = byType.get(snapshot, Consts.CODE);
+			double comment = byType.get(snapshot, Consts.COMMENT);
+			double empty = byType.get(snapshot, Consts.EMPTY);
+			totals.add(code + comment + empty);
 			
+			out.appendColumn("   ").appendColumn(snapshot).appendColumn(" : ");
+			out.appendColumn((int) (code + comment + empty)).appendColumn(" lines (").appendColumn((int) code)
+					.appendColumn(" code, ").appendColumn((int) comment).appendColumn(" comment, ")
+					.appendColumn((int) empty).appendColumn(" empty)");
+			out.appendColumn(" in ").appendColumn(files.get(snapshot)).appendColumn(" files");
+			out.appendColumn(" by ").appendColumn(authors.get(snapshot)).appendColumn(" authors");
 			out.newLine();
 		}
+		System.out.println(Sparkline.getSparkline(totals));
 		out.print(System.out);
 		System.out.println();
+		
+		final String last = snapshots.get(snapshots.size() - 1);
+		// The columns of byAuthor are the snapshot and the author
+		List<String> names = new ArrayList<String>(byAuthor.getDistinct(1));
+		Collections.sort(names, new Comparator<String>() {
+			@Override
+			public int compare(String o1, String o2) {
+				return Double.compare(byAuthor.get(last, o2), byAuthor.get(last, o1));
+			}
+		});
+		
+		System.out.println("Authors in each snapshot:");
+		out = new ColumnsOutput();
+		for (String author : names) {
+			List<Double> lines = new ArrayList<Double>();
+			for (String snapshot : snapshots)
+				lines.add(byAuthor.get(snapshot, author));
+			
+			out.appendColumn("   ").appendColumn(author.isEmpty() ? "Unblamable lines" : author).appendColumn(" : ")
+					.appendColumn(Sparkline.getSparkline(lines)).appendColumn(" ")
+					.appendColumn((int) byAuthor.get(last, author)).appendColumn(" lines in the last snapshot");
+			out.newLine();
+		}
+		out.print(System.out);
+		System.out.println();
+		
+		return snapshots;
 	}
 	
-	private static void appendLanguages(ColumnsOutput out, DataTable data) {
-		out.appendColumn(" in ").appendColumn(data.getDistinct(Consts.COL_LANGUAGE).size()).appendColumn(" languages");
+	/**
+	 * @return the number of rows of each value of the first column
+	 */
+	private static Map<String, Integer> countDistinct(ColumnarTable grouped) {
+		Map<String, Integer> result = new HashMap<String, Integer>();
+		for (int row = 0; row < grouped.size(); row++) {
+			String key = grouped.getColumn(row, 0);
+			Integer count = result.get(key);
+			result.put(key, count == null ? 1 : count + 1);
+		}
+		return result;
 	}
 	
-	private static void appendFiles(ColumnsOutput out, DataTable data) {
-		out.appendColumn(" in ").appendColumn(data.getDistinct(Consts.COL_FILE).size()).appendColumn(" files");
+	private static void appendLanguages(ColumnsOutput out, Stats stats) {
+		out.appendColumn(" in ").appendColumn(stats.languages).appendColumn(" languages");
 	}
 	
-	private static void appendLines(ColumnsOutput out, DataTable data) {
-		appendLines(out, data, data.sum());
+	private static void appendFiles(ColumnsOutput out, Stats stats) {
+		out.appendColumn(" in ").appendColumn(stats.files).appendColumn(" files");
 	}
 	
-	private static void appendLines(ColumnsOutput out, DataTable data, double total) {
-		out.appendColumn((int) total).appendColumn(" lines (")
-				.appendColumn((int) data.filter(Consts.COL_LINE_TYPE, Consts.CODE).sum()).appendColumn(" code, ")
-				.appendColumn((int) data.filter(Consts.COL_LINE_TYPE, Consts.COMMENT).sum()).appendColumn(" comment, ")
-				.appendColumn((int) data.filter(Consts.COL_LINE_TYPE, Consts.EMPTY).sum()).appendColumn(" empty)");
+	private static void appendLines(ColumnsOutput out, Stats stats) {
+		out.appendColumn((int) stats.lines).appendColumn(" lines (").appendColumn((int) stats.code)
+				.appendColumn(" code, ").appendColumn((int) stats.comment).appendColumn(" comment, ")
+				.appendColumn((int) stats.empty).appendColumn(" empty)");
 	}
 	
-	private static void appendCommits(ColumnsOutput out, DataTable data) {
-		out.appendColumn(" in ").appendColumn(data.getDistinct(Consts.COL_COMMIT).size()).appendColumn(" commits");
+	private static void appendCommits(ColumnsOutput out, Stats stats) {
+		out.appendColumn(" in ").appendColumn(stats.commits).appendColumn(" commits");
 	}
 	
-	private static void appendAuthors(ColumnsOutput out, DataTable data) {
-		out.appendColumn(" by ").appendColumn(data.getDistinct(Consts.COL_AUTHOR).size()).appendColumn(" authors");
+	private static void appendAuthors(ColumnsOutput out, Stats stats) {
+		out.appendColumn(" by ").appendColumn(stats.authors).appendColumn(" authors");
 	}
 	
-	private static void appendMonths(ColumnsOutput out, DataTable data) {
-		String[] months = getMonthRange(data);
-		
-		out.appendColumn(" from ").appendColumn(months[0]).appendColumn(" to ").appendColumn(months[1]);
+	private static void appendMonths(ColumnsOutput out, Stats stats) {
+		out.appendColumn(" from ").appendColumn(stats.firstMonth).appendColumn(" to ").appendColumn(stats.lastMonth);
 	}
 	
-	private static void appendUnblamable(ColumnsOutput out, DataTable data) {
-		long unblamable = round(data.filter(Consts.COL_AUTHOR, "").sum());
+	private static void appendUnblamable(ColumnsOutput out, Stats stats) {
+		long unblamable = round(stats.unblamable);
 		if (unblamable > 0)
 			out.appendColumn(" (").appendColumn((int) unblamable).appendColumn(" umblamable)");
 	}
@@ -363,54 +470,9 @@ public class Main {
 		return count * 100 / total;
 	}
 	
-	private static String[] getMonthRange(DataTable authorData) {
-		List<String> result = new ArrayList<String>(authorData.getDistinct(Consts.COL_MONTH));
-		result.remove("");
-		Collections.sort(result);
-		
-		if (result.size() < 1)
-			return new String[] { "unknown", "unknown" };
-		else
-			return new String[] { result.get(0), result.get(result.size() - 1) };
-	}
-	
-	private static List<String> sortByText(Collection<String> data) {
-		List<String> result = new ArrayList<String>(data);
-		Collections.sort(result);
-		return result;
-	}
-	
-	private static List<String> sortByLines(DataTable data, int col) {
-		final DataTable authorAndLines = data.groupBy(col);
-		
-		List<String> sorted = new ArrayList<String>(authorAndLines.getColumn(0));
-		Collections.sort(sorted, new Comparator<String>() {
-			@Override
-			public int compare(String o1, String o2) {
-				return (int) (authorAndLines.get(o2) - authorAndLines.get(o1));
-			}
-		});
-		return sorted;
-	}
-	
-	private static List<String> preProcessExcludedPaths(Args args) {
-		List<String> result = new ArrayList<String>();
-		
-		for (String path : args.excludedPaths)
-			result.add(normalizePath(path));
-		
-		return result;
-	}
-	
-	private static String normalizePath(String path) {
-		String result = path.replace('\\', '/');
-		
-		if (result.startsWith("/"))
-			result = result.substring(1);
-		
-		if (!result.endsWith("/"))
-			result += "/";
-		
+	private static List<Stats> sort(List<Stats> stats, Comparator<Stats> comparator) {
+		List<Stats> result = new ArrayList<Stats>(stats);
+		Collections.sort(result, comparator);
 		return result;
 	}
 	
@@ -0,0 +1,323 @@
+package org.pescuma.gitstats;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.pescuma.gitstats.threads.ParallelLists.Utilization;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Collects where the time of a run goes: wall and CPU time of each phase, the time to blame each file, and how busy
+ * the threads were. It is saved as JSON by --metrics.
+ *
+ * When it is disabled all the methods return immediately, without even reading the clock.
+ *
+ * Thread safe.
+ */
+public class Metrics {
+	
+	private static final int SLOWEST_FILES = 20;
+	private static final long[] HISTOGRAM_LIMITS_MILLIS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000,
+			10000, 30000, 60000 };
+	
+	public static final Metrics DISABLED = new Metrics(false);
+	
+	private static final Phase NO_PHASE = new Phase(null) {
+		@Override
+		public void finish() {
+		}
+	};
+	
+	private final boolean enabled;
+	private final long startNanos;
+	private final long startCpuNanos;
+	private final Map<String, PhaseTotal> phases = new LinkedHashMap<String, PhaseTotal>();
+	private final Map<String, Utilization> threads = new LinkedHashMap<String, Utilization>();
+	private final List<FileTimes> files = new ArrayList<FileTimes>();
+	private final int[] histogram = new int[HISTOGRAM_LIMITS_MILLIS.length + 1];
+	private final List<String> truncatedFiles = new ArrayList<String>();
+	private PackCache packCache;
+	private long packCacheOpenBytes;
+	private int packCacheOpenFiles;
+	
+	public Metrics() {
+		this(true);
+	}
+	
+	private Metrics(boolean enabled) {
+		this.enabled = enabled;
+		
+		if (enabled) {
+			startNanos = System.nanoTime();
+			startCpuNanos = getProcessCpuNanos();
+		} else {
+			startNanos = 0;
+			startCpuNanos = 0;
+		}
+	}
+	
+	public boolean isEnabled() {
+		return enabled;
+	}
+	
+	/**
+	 * Starts timing a phase. Phases with the same name are added together.
+	 *
+	 * The CPU time is the one of the whole process, so it includes the other threads, and phases are expected not to
+	 * overlap.
+	 */
+	public Phase startPhase(String name) {
+		if (!enabled)
+			return NO_PHASE;
+		
+		return new Phase(this, name);
+	}
+	
+	public void fileBlamed(String file, long blameNanos, long linesNanos, int lines) {
+		if (!enabled)
+			return;
+		
+		FileTimes times = new FileTimes(file, blameNanos, linesNanos, lines);
+		
+		int bucket = 0;
+		while (bucket < HISTOGRAM_LIMITS_MILLIS.length && blameNanos > HISTOGRAM_LIMITS_MILLIS[bucket] * 1000000L)
+			bucket++;
+		
+		synchronized (this) {
+			files.add(times);
+			histogram[bucket]++;
+		}
+	}
+	
+	public synchronized void filesTruncated(List<String> files) {
+		if (!enabled)
+			return;
+		
+		truncatedFiles.addAll(files);
+	}
+	
+	public synchronized void threadsUsed(String phase, Utilization utilization) {
+		if (!enabled || utilization == null)
+			return;
+		
+		threads.put(phase, utilization);
+	}
+	
+	/**
+	 * @param openBytes bytes of pack windows in the cache at the end or -1 if unknown
+	 * @param openFiles pack files open by the cache at the end or -1 if unknown
+	 */
+	public synchronized void packCacheUsed(PackCache packCache, long openBytes, int openFiles) {
+		if (!enabled)
+			return;
+		
+		this.packCache = packCache;
+		packCacheOpenBytes = openBytes;
+		packCacheOpenFiles = openFiles;
+	}
+	
+	private synchronized void phaseFinished(String name, long wallNanos, long cpuNanos) {
+		PhaseTotal total = phases.get(name);
+		if (total == null) {
+			total = new PhaseTotal();
+			phases.put(name, total);
+		}
+		
+		total.count++;
+		total.wallNanos += wallNanos;
+		total.cpuNanos += cpuNanos;
+	}
+	
+	public synchronized void save(File file) throws IOException {
+		Files.write(toJson(), file, Charsets.UTF_8);
+	}
+	
+	synchronized String toJson() {
+		StringBuilder out = new StringBuilder();
+		
+		out.append("{\n");
+		out.append("  \"wallMillis\": ").append(millis(System.nanoTime() - startNanos)).append(",\n");
+		out.append("  \"cpuMillis\": ").append(cpuMillis(startCpuNanos, getProcessCpuNanos())).append(",\n");
+		
+		out.append("  \"phases\": [");
+		String separator = "\n";
+		for (Map.Entry<String, PhaseTotal> entry : phases.entrySet()) {
+			PhaseTotal total = entry.getValue();
+			out.append(separator).append("    {\"name\": ").append(Json.quote(entry.getKey()));
+			out.append(", \"count\": ").append(total.count);
+			out.append(", \"wallMillis\": ").append(millis(total.wallNanos));
+			out.append(", \"cpuMillis\": ").append(total.cpuNanos < 0 ? "null" : millis(total.cpuNanos));
+			out.append("}");
+			separator = ",\n";
+		}
+		out.append("\n  ],\n");
+		
+		out.append("  \"threads\": [");
+		separator = "\n";
+		for (Map.Entry<String, Utilization> entry : threads.entrySet()) {
+			Utilization utilization = entry.getValue();
+			out.append(separator).append("    {\"phase\": ").append(Json.quote(entry.getKey()));
+			out.append(", \"wallMillis\": ").append(millis(utilization.getWallNanos()));
+			out.append(", \"idleTailMillis\": ").append(millis(utilization.getIdleTailNanos()));
+			out.append(", \"busyMillis\": [");
+			for (int i = 0; i < utilization.getThreadCount(); i++)
+				out.append(i > 0 ? ", " : "").append(millis(utilization.getBusyNanos(i)));
+			out.append("], \"items\": [");
+			for (int i = 0; i < utilization.getThreadCount(); i++)
+				out.append(i > 0 ? ", " : "").append(utilization.getItems(i));
+			out.append("]}");
+			separator = ",\n";
+		}
+		out.append("\n  ],\n");
+		
+		long blameNanos = 0;
+		long linesNanos = 0;
+		long lines = 0;
+		for (FileTimes times : files) {
+			blameNanos += times.blameNanos;
+			linesNanos += times.linesNanos;
+			lines += times.lines;
+		}
+		out.append("  \"blame\": {\"files\": ").append(files.size());
+		out.append(", \"lines\": ").append(lines);
+		out.append(", \"blameMillis\": ").append(millis(blameNanos));
+		out.append(", \"linesMillis\": ").append(millis(linesNanos));
+		out.append(", \"truncatedFiles\": [");
+		for (int i = 0; i < truncatedFiles.size(); i++)
+			out.append(i > 0 ? ", " : "").append(Json.quote(truncatedFiles.get(i)));
+		out.append("]},\n");
+		
+		if (packCache != null) {
+			out.append("  \"packCache\": {\"limitBytes\": ").append(packCache.getLimitBytes());
+			out.append(", \"windowBytes\": ").append(packCache.getWindowBytes());
+			out.append(", \"mmap\": ").append(packCache.isMmap());
+			out.append(", \"deltaBaseBytesPerThread\": ").append(packCache.getDeltaBaseBytes());
+			out.append(", \"packFiles\": ").append(packCache.getPackFiles());
+			out.append(", \"packBytes\": ").append(packCache.getPackBytes());
+			out.append(", \"openBytes\": ").append(packCacheOpenBytes < 0 ? "null" : packCacheOpenBytes);
+			out.append(", \"openFiles\": ").append(packCacheOpenFiles < 0 ? "null" : packCacheOpenFiles);
+			out.append(", \"full\": ").append(packCacheOpenBytes >= 0 && packCache.isFull(packCacheOpenBytes));
+			out.append("},\n");
+		}
+		
+		out.append("  \"blameHistogram\": [");
+		for (int i = 0; i < histogram.length; i++) {
+			out.append(i > 0 ? "," : "").append("\n    {\"upToMillis\": ");
+			out.append(i < HISTOGRAM_LIMITS_MILLIS.length ? String.valueOf(HISTOGRAM_LIMITS_MILLIS[i]) : "null");
+			out.append(", \"files\": ").append(histogram[i]).append("}");
+		}
+		out.append("\n  ],\n");
+		
+		List<FileTimes> sorted = new ArrayList<FileTimes>(files);
+		Collections.sort(sorted, new Comparator<FileTimes>() {
+			@Override
+			public int compare(FileTimes o1, FileTimes o2) {
+				return Long.valueOf(o2.blameNanos).compareTo(o1.blameNanos);
+			}
+		});
+		
+		appendFiles(out, "slowestFiles", sorted.subList(0, Math.min(SLOWEST_FILES, sorted.size())));
+		out.append(",\n");
+		appendFiles(out, "files", sorted);
+		out.append("\n}\n");
+		
+		return out.toString();
+	}
+	
+	private static void appendFiles(StringBuilder out, String name, List<FileTimes> files) {
+		out.append("  ").append(Json.quote(name)).append(": [");
+		String separator = "\n";
+		for (FileTimes times : files) {
+			out.append(separator).append("    {\"file\": ").append(Json.quote(times.file));
+			out.append(", \"lines\": ").append(times.lines);
+			out.append(", \"blameMillis\": ").append(millis(times.blameNanos));
+			out.append(", \"linesMillis\": ").append(millis(times.linesNanos));
+			out.append("}");
+			separator = ",\n";
+		}
+		out.append("\n  ]");
+	}
+	
+	private static String millis(long nanos) {
+		return String.format(Locale.US, "%.3f", nanos / 1000000.);
+	}
+	
+	private static String cpuMillis(long start, long end) {
+		if (start < 0 || end < 0)
+			return "null";
+		return millis(end - start);
+	}
+	
+	/**
+	 * @return the CPU time used by all the threads of the process or -1 if the JVM does not provide it
+	 */
+	private static long getProcessCpuNanos() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+		return -1;
+	}
+	
+	public static class Phase {
+		private final Metrics metrics;
+		private final String name;
+		private final long startNanos;
+		private final long startCpuNanos;
+		
+		private Phase(String name) {
+			this.metrics = null;
+			this.name = name;
+			startNanos = 0;
+			startCpuNanos = 0;
+		}
+		
+		Phase(Metrics metrics, String name) {
+			this.metrics = metrics;
+			this.name = name;
+			startNanos = System.nanoTime();
+			startCpuNanos = getProcessCpuNanos();
+		}
+		
+		public void finish() {
+			long wallNanos = System.nanoTime() - startNanos;
+			
+			long cpuNanos = -1;
+			long endCpuNanos = getProcessCpuNanos();
+			if (startCpuNanos >= 0 && endCpuNanos >= 0)
+				cpuNanos = endCpuNanos - startCpuNanos;
+			
+			metrics.phaseFinished(name, wallNanos, cpuNanos);
+		}
+	}
+	
+	private static class PhaseTotal {
+		int count;
+		long wallNanos;
+		long cpuNanos;
+	}
+	
+	private static class FileTimes {
+		final String file;
+		final long blameNanos;
+		final long linesNanos;
+		final int lines;
+		
+		FileTimes(String file, long blameNanos, long linesNanos, int lines) {
+			this.file = file;
+			this.blameNanos = blameNanos;
+			this.linesNanos = linesNanos;
+			this.lines = lines;
+		}
+	}
+}
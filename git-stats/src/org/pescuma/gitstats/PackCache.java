@@ -0,0 +1,224 @@
+package org.pescuma.gitstats;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.List;
+
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.storage.file.WindowCacheConfig;
+
+/**
+ * Sizes the caches JGit uses to read the pack files. JGit keeps small defaults (10 MB of pack windows shared by all the
+ * threads and 10 MB of delta bases per reader) no matter how big the heap is or how many threads are blaming, so on
+ * big packs the same windows are read and the same deltas are inflated again and again.
+ *
+ * The window cache gets up to a quarter of the max heap, but not more than the size of the packs. When the packs don't
+ * fit in that on a 64 bit JVM they are memory mapped instead, so the windows stay in the page cache of the OS and not
+ * in the heap. The delta base cache is per reader, so per thread, and gets a tenth of the heap divided by the threads.
+ *
+ * JGit has a single cache for the whole process, so the last configuration installed wins.
+ */
+public class PackCache {
+	
+	public static final String MMAP_AUTO = "auto";
+	public static final String MMAP_YES = "yes";
+	public static final String MMAP_NO = "no";
+	
+	private static final long MB = 1024 * 1024;
+	private static final int DEFAULT_WINDOW_BYTES = 8 * 1024;
+	private static final int MMAP_WINDOW_BYTES = 1024 * 1024;
+	private static final int DEFAULT_OPEN_FILES = 128;
+	private static final long MIN_LIMIT_BYTES = 10 * MB;
+	private static final int MIN_DELTA_BASE_BYTES = (int) (10 * MB);
+	private static final int MAX_DELTA_BASE_BYTES = (int) (256 * MB);
+	
+	/** Window caches are considered full above this, because JGit evicts a batch before reaching the limit */
+	private static final double FULL = 0.9;
+	
+	private static String installed;
+	
+	private final int packFiles;
+	private final long packBytes;
+	private final WindowCacheConfig config = new WindowCacheConfig();
+	
+	public PackCache(Args args, List<File> repositories) {
+		long packBytes = 0;
+		int packFiles = 0;
+		for (File path : repositories) {
+			File gitDir = new FileRepositoryBuilder().readEnvironment().findGitDir(path).getGitDir();
+			if (gitDir == null)
+				continue;
+			
+			File[] packs = new File(gitDir, "objects/pack").listFiles();
+			if (packs == null)
+				continue;
+			
+			for (File pack : packs) {
+				if (!pack.getName().endsWith(".pack"))
+					continue;
+				
+				packBytes += pack.length();
+				packFiles++;
+			}
+		}
+		this.packBytes = packBytes;
+		this.packFiles = packFiles;
+		
+		long heap = Runtime.getRuntime().maxMemory();
+		int threads = args.threads > 0 ? args.threads : Runtime.getRuntime().availableProcessors();
+		
+		boolean mmap;
+		if (MMAP_YES.equals(args.packMmap))
+			mmap = true;
+		else if (MMAP_NO.equals(args.packMmap))
+			mmap = false;
+		else
+			mmap = packBytes > heap / 4 && canMmap();
+		config.setPackedGitMMAP(mmap);
+		
+		int windowBytes;
+		if (args.packWindowKB > 0)
+			windowBytes = args.packWindowKB * 1024;
+		else
+			windowBytes = mmap ? MMAP_WINDOW_BYTES : DEFAULT_WINDOW_BYTES;
+		config.setPackedGitWindowSize(windowBytes);
+		
+		long limit;
+		if (args.packCacheMB > 0)
+			limit = args.packCacheMB * MB;
+		else if (mmap)
+			// Mapped windows use address space, not heap, so all the packs can be mapped
+			limit = Math.max(MIN_LIMIT_BYTES, packBytes + (long) packFiles * windowBytes);
+		else
+			limit = Math.max(MIN_LIMIT_BYTES, Math.min(packBytes + (long) packFiles * windowBytes, heap / 4));
+		// JGit needs room for at least one window
+		config.setPackedGitLimit(Math.max(limit, 2L * windowBytes));
+		
+		config.setPackedGitOpenFiles(Math.max(DEFAULT_OPEN_FILES, packFiles + 32));
+		
+		long deltaBases;
+		if (args.deltaCacheMB > 0)
+			deltaBases = args.deltaCacheMB * MB;
+		else
+			deltaBases = Math.max(MIN_DELTA_BASE_BYTES, Math.min(MAX_DELTA_BASE_BYTES, heap / 10 / threads));
+		config.setDeltaBaseCacheLimit((int) Math.min(deltaBases, Integer.MAX_VALUE));
+	}
+	
+	private static boolean canMmap() {
+		String arch = System.getProperty("os.arch", "");
+		String os = System.getProperty("os.name", "");
+		// Windows can't delete or replace mapped files, and git gc does that with the packs
+		return arch.contains("64") && !os.toLowerCase().startsWith("windows");
+	}
+	
+	/**
+	 * Installs the configuration, if it is not the one already installed (that would drop everything in the cache)
+	 *
+	 * @return true if it was installed
+	 */
+	public boolean install() {
+		synchronized (PackCache.class) {
+			String description = getDescription();
+			if (description.equals(installed))
+				return false;
+			
+			config.install();
+			installed = description;
+			return true;
+		}
+	}
+	
+	public long getLimitBytes() {
+		return config.getPackedGitLimit();
+	}
+	
+	public int getWindowBytes() {
+		return config.getPackedGitWindowSize();
+	}
+	
+	public boolean isMmap() {
+		return config.isPackedGitMMAP();
+	}
+	
+	public int getDeltaBaseBytes() {
+		return config.getDeltaBaseCacheLimit();
+	}
+	
+	public int getPackFiles() {
+		return packFiles;
+	}
+	
+	public long getPackBytes() {
+		return packBytes;
+	}
+	
+	/**
+	 * @return something like "512.0 MB in 64 KB windows, 32.0 MB of delta bases per thread, for 3 packs (1200.0 MB)"
+	 */
+	public String getDescription() {
+		return String.format("%.1f MB in %d KB windows%s, %.1f MB of delta bases per thread, for %d packs (%.1f MB)",
+				getLimitBytes() / 1024. / 1024., getWindowBytes() / 1024, isMmap() ? " (mmap)" : "",
+				getDeltaBaseBytes() / 1024. / 1024., packFiles, packBytes / 1024. / 1024.);
+	}
+	
+	/**
+	 * @return the bytes of pack windows in the cache now or -1 if JGit does not tell
+	 */
+	public static long getOpenBytes() {
+		Object result = callWindowCache("getOpenBytes");
+		return result == null ? -1 : ((Number) result).longValue();
+	}
+	
+	/**
+	 * @return the pack files open by the cache now or -1 if JGit does not tell
+	 */
+	public static int getOpenFiles() {
+		Object result = callWindowCache("getOpenFiles");
+		return result == null ? -1 : ((Number) result).intValue();
+	}
+	
+	/**
+	 * JGit 3.7 has no public statistics of the window cache (neither hits nor misses), only these package private
+	 * methods
+	 */
+	private static Object callWindowCache(String name) {
+		try {
+			
+			Class<?> type = Class.forName("org.eclipse.jgit.internal.storage.file.WindowCache");
+			
+			Method getInstance = type.getDeclaredMethod("getInstance");
+			getInstance.setAccessible(true);
+			Object cache = getInstance.invoke(null);
+			
+			Method method = type.getDeclaredMethod(name);
+			method.setAccessible(true);
+			return method.invoke(cache);
+			
+		} catch (Exception e) {
+			return null;
+		}
+	}
+	
+	public boolean isFull(long openBytes) {
+		return openBytes >= getLimitBytes() * FULL;
+	}
+	
+	/**
+	 * @return something like "Pack cache at the end: 498.0 of 512.0 MB in 3 files (full ...)" or null if JGit does not
+	 *         tell
+	 */
+	public String getUsage() {
+		long openBytes = getOpenBytes();
+		int openFiles = getOpenFiles();
+		if (openBytes < 0 || openFiles < 0)
+			return null;
+		
+		String result = String.format("Pack cache at the end: %.1f of %.1f MB in %d files", openBytes / 1024. / 1024.,
+				getLimitBytes() / 1024. / 1024., openFiles);
+		
+		if (isFull(openBytes))
+			result += " (full: windows were dropped and read again, a bigger --pack-cache-mb may help)";
+		
+		return result;
+	}
+}
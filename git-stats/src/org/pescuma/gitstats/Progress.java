@@ -5,12 +5,18 @@ import java.util.concurrent.atomic.AtomicLong;
 
 public class Progress {
 	
+	private final String label;
 	private final long start;
 	private final int total;
 	private final AtomicInteger current = new AtomicInteger();
 	private final AtomicLong lastUpdate = new AtomicLong();
 	
 	public Progress(int total) {
+		this("Processing files", total);
+	}
+	
+	public Progress(String label, int total) {
+		this.label = label;
 		this.total = total;
 		start = System.currentTimeMillis();
 	}
@@ -36,8 +42,8 @@ public class Progress {
 		double avg = dt / (double) c;
 		double eta = avg * (total - c);
 		
-		System.out.print(String.format("\rProcessing files... %.0f %% (%d of %d) | Elapsed %d s | ETA %.0f s", percent,
-				c, total, dt / 1000, eta / 1000));
+		System.out.print(String.format("\r%s... %.0f %% (%d of %d) | Elapsed %d s | ETA %.0f s", label,
+				percent, c, total, dt / 1000, eta / 1000));
 	}
 	
 	public void finish() {
@@ -0,0 +1,247 @@
+package org.pescuma.gitstats;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.pescuma.gitstats.table.ColumnarTable;
+import org.pescuma.gitstats.table.Dictionary;
+import org.pescuma.gitstats.table.LongHashSet;
+
+/**
+ * The totals shown in the reports, computed for all the data and for each author, month and language in a single pass
+ * over the table.
+ */
+public class ReportCube {
+	
+	public static final int[] GROUP_COLUMNS = { Consts.COL_AUTHOR, Consts.COL_MONTH, Consts.COL_LANGUAGE };
+	
+	private static final int[] DISTINCT_COLUMNS = { Consts.COL_FILE, Consts.COL_COMMIT, Consts.COL_LANGUAGE,
+			Consts.COL_AUTHOR };
+	
+	public static class Stats {
+		public final String name;
+		public double lines;
+		public double code;
+		public double comment;
+		public double empty;
+		public double unblamable;
+		public int files;
+		public int commits;
+		public int languages;
+		public int authors;
+		public String firstMonth = "unknown";
+		public String lastMonth = "unknown";
+		
+		private int firstMonthRank = Integer.MAX_VALUE;
+		private int lastMonthRank = -1;
+		
+		Stats(String name) {
+			this.name = name;
+		}
+		
+		private void incDistinct(int distinctColumn) {
+			switch (DISTINCT_COLUMNS[distinctColumn]) {
+				case Consts.COL_FILE:
+					files++;
+					break;
+				case Consts.COL_COMMIT:
+					commits++;
+					break;
+				case Consts.COL_LANGUAGE:
+					languages++;
+					break;
+				case Consts.COL_AUTHOR:
+					authors++;
+					break;
+			}
+		}
+	}
+	
+	private final Stats total = new Stats("");
+	private final Stats[][] groups = new Stats[GROUP_COLUMNS.length][];
+	
+	private ReportCube() {
+	}
+	
+	public Stats getTotal() {
+		return total;
+	}
+	
+	/**
+	 * @return the stats of each distinct value of the column, in no specific order
+	 */
+	public List<Stats> getGroups(int column) {
+		List<Stats> result = new ArrayList<Stats>();
+		for (Stats stats : groups[toGroupIndex(column)])
+			if (stats != null)
+				result.add(stats);
+		return result;
+	}
+	
+	/**
+	 * @return the stats of the value or null if it is not in the data
+	 */
+	public Stats getGroup(int column, String value) {
+		for (Stats stats : groups[toGroupIndex(column)])
+			if (stats != null && stats.name.equals(value))
+				return stats;
+		return null;
+	}
+	
+	private static int toGroupIndex(int column) {
+		for (int i = 0; i < GROUP_COLUMNS.length; i++)
+			if (GROUP_COLUMNS[i] == column)
+				return i;
+		throw new IllegalArgumentException("Not a group column: " + column);
+	}
+	
+	public static ReportCube build(ColumnarTable data) {
+		ReportCube result = new ReportCube();
+		
+		int codeType = data.getDictionary(Consts.COL_LINE_TYPE).find(Consts.CODE);
+		int commentType = data.getDictionary(Consts.COL_LINE_TYPE).find(Consts.COMMENT);
+		int emptyType = data.getDictionary(Consts.COL_LINE_TYPE).find(Consts.EMPTY);
+		int unblamableAuthor = data.getDictionary(Consts.COL_AUTHOR).find("");
+		String[] sortedMonths = sortMonths(data.getDictionary(Consts.COL_MONTH));
+		int[] monthRanks = computeMonthRanks(data.getDictionary(Consts.COL_MONTH), sortedMonths);
+		
+		for (int g = 0; g < GROUP_COLUMNS.length; g++)
+			result.groups[g] = new Stats[data.getDictionary(GROUP_COLUMNS[g]).size()];
+		
+		// For the total a flag per code is enough, for the groups the key is (group code, value code)
+		boolean[][] totalSeen = new boolean[DISTINCT_COLUMNS.length][];
+		for (int d = 0; d < DISTINCT_COLUMNS.length; d++)
+			totalSeen[d] = new boolean[data.getDictionary(DISTINCT_COLUMNS[d]).size()];
+		
+		LongHashSet[][] groupSeen = new LongHashSet[GROUP_COLUMNS.length][DISTINCT_COLUMNS.length];
+		for (int g = 0; g < GROUP_COLUMNS.length; g++)
+			for (int d = 0; d < DISTINCT_COLUMNS.length; d++)
+				groupSeen[g][d] = new LongHashSet();
+		
+		Stats[] rowStats = new Stats[GROUP_COLUMNS.length + 1];
+		rowStats[GROUP_COLUMNS.length] = result.total;
+		
+		for (int row = 0; row < data.size(); row++) {
+			double value = data.getValue(row);
+			int lineType = data.getCode(row, Consts.COL_LINE_TYPE);
+			boolean unblamable = data.getCode(row, Consts.COL_AUTHOR) == unblamableAuthor;
+			int monthRank = monthRanks[data.getCode(row, Consts.COL_MONTH)];
+			
+			for (int g = 0; g < GROUP_COLUMNS.length; g++) {
+				int code = data.getCode(row, GROUP_COLUMNS[g]);
+				
+				Stats stats = result.groups[g][code];
+				if (stats == null) {
+					stats = new Stats(data.getDictionary(GROUP_COLUMNS[g]).decode(code));
+					result.groups[g][code] = stats;
+				}
+				
+				for (int d = 0; d < DISTINCT_COLUMNS.length; d++) {
+					long key = ((long) (code + 1) << 32) | data.getCode(row, DISTINCT_COLUMNS[d]);
+					if (groupSeen[g][d].add(key))
+						stats.incDistinct(d);
+				}
+				
+				rowStats[g] = stats;
+			}
+			
+			for (int d = 0; d < DISTINCT_COLUMNS.length; d++) {
+				int code = data.getCode(row, DISTINCT_COLUMNS[d]);
+				if (!totalSeen[d][code]) {
+					totalSeen[d][code] = true;
+					result.total.incDistinct(d);
+				}
+			}
+			
+			for (Stats stats : rowStats) {
+				stats.lines += value;
+				
+				if (lineType == codeType)
+					stats.code += value;
+				else if (lineType == commentType)
+					stats.comment += value;
+				else if (lineType == emptyType)
+					stats.empty += value;
+				
+				if (unblamable)
+					stats.unblamable += value;
+				
+				if (monthRank >= 0) {
+					stats.firstMonthRank = Math.min(stats.firstMonthRank, monthRank);
+					stats.lastMonthRank = Math.max(stats.lastMonthRank, monthRank);
+				}
+			}
+		}
+		
+		result.fillMonthNames(result.total, sortedMonths);
+		for (Stats[] stats : result.groups)
+			for (Stats s : stats)
+				if (s != null)
+					result.fillMonthNames(s, sortedMonths);
+		
+		return result;
+	}
+	
+	private void fillMonthNames(Stats stats, String[] sortedMonths) {
+		if (stats.lastMonthRank < 0)
+			return;
+		
+		stats.firstMonth = sortedMonths[stats.firstMonthRank];
+		stats.lastMonth = sortedMonths[stats.lastMonthRank];
+	}
+	
+	private static String[] sortMonths(Dictionary months) {
+		List<String> result = new ArrayList<String>();
+		for (int code = 0; code < months.size(); code++)
+			if (isKnownMonth(months.decode(code)))
+				result.add(months.decode(code));
+		
+		String[] sorted = result.toArray(new String[result.size()]);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+	
+	/**
+	 * @return the position of each month code in the sorted months, or -1 for the unknown month and the months before
+	 *         --since
+	 */
+	private static int[] computeMonthRanks(Dictionary months, String[] sorted) {
+		int[] result = new int[months.size()];
+		for (int code = 0; code < months.size(); code++) {
+			String month = months.decode(code);
+			if (!isKnownMonth(month))
+				result[code] = -1;
+			else
+				result[code] = Arrays.binarySearch(sorted, month);
+		}
+		return result;
+	}
+	
+	/**
+	 * The lines older than --since have the month (before &lt;date&gt;), which is not a real month, so as the unknown
+	 * month it is not used for the first and last months
+	 */
+	private static boolean isKnownMonth(String month) {
+		return !month.isEmpty() && !month.startsWith(Consts.BEFORE_PREFIX);
+	}
+	
+	public static Comparator<Stats> byLinesDescending() {
+		return new Comparator<Stats>() {
+			@Override
+			public int compare(Stats o1, Stats o2) {
+				return Double.compare(o2.lines, o1.lines);
+			}
+		};
+	}
+	
+	public static Comparator<Stats> byName() {
+		return new Comparator<Stats>() {
+			@Override
+			public int compare(Stats o1, Stats o2) {
+				return o1.name.compareTo(o2.name);
+			}
+		};
+	}
+}
@@ -2,29 +2,189 @@ package org.pescuma.gitstats;
 
 import java.io.File;
 import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import org.apache.commons.io.FilenameUtils;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.errors.MissingObjectException;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
 import org.eclipse.jgit.treewalk.TreeWalk;
-import org.pescuma.datatable.DataTable;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.pescuma.gitstats.blame.BlameBudget;
+import org.pescuma.gitstats.blame.Blamer;
+import org.pescuma.gitstats.blame.GitBlamer;
+import org.pescuma.gitstats.blame.HistoryBlamer;
+import org.pescuma.gitstats.blame.JGitBlamer;
+import org.pescuma.gitstats.table.ColumnarTable;
+import org.pescuma.gitstats.table.SortedRuns;
 import org.pescuma.gitstats.threads.ParallelLists;
+import org.pescuma.gitstats.threads.ParallelLists.Utilization;
 import org.pescuma.programminglanguagedetector.FilenameToLanguage;
 
 public class RepositoryProcessor {
 	
-	public static void process(DataTable data, Args args, File path) throws IOException, GitAPIException {
+	/**
+	 * The files of all the repositories are blamed by the same threads, so a small repository does not leave threads
+	 * idle and the end of one repository overlaps with the start of the next.
+	 *
+	 * @param spill if not null, the blame results are written to it instead of added to data, and each thread writes
+	 *            its partial results when they get bigger than --spill-mb divided by the number of threads
+	 * @return the utilization of the threads while blaming or null if no file needed to be blamed
+	 */
+	public static Utilization process(ColumnarTable data, Args args, List<File> paths, Snapshot snapshot,
+			Metrics metrics, SortedRuns spill) throws IOException, GitAPIException {
+		if (args.history != null)
+			return HistoryProcessor.process(data, args, paths, metrics, spill);
+		
+		List<RepositoryJob> jobs = new ArrayList<RepositoryJob>();
+		List<RepositoryFile> files = new ArrayList<RepositoryFile>();
+		BlameBudget budget = new BlameBudget(args.blameMaxSeconds * 1000L, args.blameMaxCommits);
+		
+		// Before opening the repositories, because installing it drops what is in the cache
+		PackCache packCache = new PackCache(args, paths);
+		if (packCache.install())
+			System.out.println("Pack cache: " + packCache.getDescription());
+		
+		for (File path : paths) {
+			RepositoryJob job = prepare(data, args, path, snapshot, budget, metrics, spill);
+			if (job == null)
+				continue;
+			
+			jobs.add(job);
+			for (String file : job.files)
+				files.add(new RepositoryFile(job, file));
+		}
+		
+		List<BlameCostEstimator> costs = new ArrayList<BlameCostEstimator>();
+		for (RepositoryJob job : jobs)
+			costs.add(job.costs);
+		BlameCostEstimator.shareMicrosPerByte(costs);
+		
+		try {
+			
+			Utilization result = blame(data, args, files, metrics, spill);
+			
+			reportTruncated(budget, metrics);
+			reportPackCache(packCache, metrics);
+			
+			Metrics.Phase phase = metrics.startPhase("save blame cache");
+			for (RepositoryJob job : jobs)
+				if (job.cache != null)
+					saveCache(job);
+			phase.finish();
+			
+			return result;
+			
+		} finally {
+			for (RepositoryJob job : jobs)
+				job.repository.close();
+		}
+	}
+	
+	private static void reportPackCache(PackCache packCache, Metrics metrics) {
+		metrics.packCacheUsed(packCache, PackCache.getOpenBytes(), PackCache.getOpenFiles());
+		
+		String usage = packCache.getUsage();
+		if (usage != null)
+			System.out.println(usage);
+	}
+	
+	private static Utilization blame(ColumnarTable data, Args args, List<RepositoryFile> files,
+			final Metrics metrics, final SortedRuns spill) {
+		final List<ColumnarTable> tables = Collections.synchronizedList(new ArrayList<ColumnarTable>());
+		final Progress progress = new Progress(files.size());
+		final long spillBytes = args.spillMB * 1024L * 1024L / Math.max(args.threads, 1);
+		
+		Metrics.Phase phase = metrics.startPhase("blame");
+		
+		ParallelLists parallel = new ParallelLists(args.threads);
+		parallel.splitInThreads(files, new ParallelLists.CostEstimator<RepositoryFile>() {
+			@Override
+			public long estimate(RepositoryFile file) {
+				return file.job.costs.estimate(file.path);
+			}
+		}, new ParallelLists.Callback<RepositoryFile>() {
+			@Override
+			public void run(Iterable<RepositoryFile> files) throws Exception {
+				ColumnarTable result = new ColumnarTable(Consts.NUM_COLUMNS);
+				Map<RepositoryJob, AuthorsProcessor> processors = new HashMap<RepositoryJob, AuthorsProcessor>();
+				
+				for (RepositoryFile file : files) {
+					try {
+						
+						AuthorsProcessor processor = processors.get(file.job);
+						if (processor == null) {
+							processor = new AuthorsProcessor(file.job.blamer, file.job.languageMappings, file.job.cache,
+									metrics);
+							processors.put(file.job, processor);
+						}
+						
+						processor.computeAuthors(result, file.path);
+						
+						if (spill != null && result.estimateBytes() > spillBytes) {
+							spill.add(result);
+							result = new ColumnarTable(Consts.NUM_COLUMNS);
+						}
+						
+					} finally {
+						progress.step();
+					}
+				}
+				
+				if (spill != null)
+					spill.add(result);
+				else
+					tables.add(result);
+			}
+		});
+		
+		phase.finish();
+		metrics.threadsUsed("blame", parallel.getUtilization());
+		
+		phase = metrics.startPhase("merge blame results");
+		for (ColumnarTable d : tables)
+			data.inc(d);
+		phase.finish();
+		
+		progress.finish();
+		
+		if (spill != null && !spill.isEmpty())
+			System.out.println(String.format("Partial results: %d rows in %d files (%.1f MB) in %s",
+					spill.getRowCount(), spill.getRunCount(), spill.getBytes() / 1024. / 1024., args.spillDir));
+		
+		if (files.isEmpty())
+			return null;
+		
+		System.out.println(parallel.getUtilization());
+		return parallel.getUtilization();
+	}
+	
+	/**
+	 * Opens the repository and finds the files that need to be blamed. The data of the files in the blame cache is
+	 * added directly, or written to the spill if there is one.
+	 *
+	 * @return null if it is not a repository
+	 */
+	private static RepositoryJob prepare(ColumnarTable data, Args args, File path, Snapshot snapshot,
+			BlameBudget budget, Metrics metrics, SortedRuns spill) throws IOException, GitAPIException {
+		Metrics.Phase phase = metrics.startPhase("list files");
+		
 		FileRepositoryBuilder builder = new FileRepositoryBuilder();
 		
 		final Repository repository;
@@ -37,7 +197,8 @@ public class RepositoryProcessor {
 			
 		} catch (RuntimeException e) {
 			System.out.println(path.getAbsolutePath() + " is not a git repository");
-			return;
+			phase.finish();
+			return null;
 		}
 		
 		System.out.println("Processing " + repository.getWorkTree().getAbsolutePath() + " ...");
@@ -45,15 +206,32 @@ public class RepositoryProcessor {
 		RevWalk walk = new RevWalk(repository);
 		RevCommit head = walk.parseCommit(repository.resolve(Constants.HEAD));
 		
-		final Set<ObjectId> ignored = preProcessIgnored(args, repository);
-		final Map<String, String> authorMappings = args.getAuthorMappings();
-		final Map<String, String> languageMappings = args.getLanguageMappings();
+		snapshot.setCurrentCommit(repository.getWorkTree(), head);
+		Set<String> changed = listChangedFiles(repository, walk, snapshot.getPreviousCommit(repository.getWorkTree()),
+				head);
+		
+		Set<ObjectId> ignored = preProcessIgnored(args, repository);
+		Map<String, String> authorMappings = args.getAuthorMappings();
+		Map<String, String> languageMappings = args.getLanguageMappings();
+		int sinceTime = preProcessSince(args, repository, walk);
+		CommitDictionary commits = new CommitDictionary(ignored, authorMappings, sinceTime, getBeforeLabel(args));
 		List<String> excludedPaths = preProcessExcludedPaths(args);
 		
+		BlameCache cache;
+		if (args.noCache)
+			cache = null;
+		else
+			cache = BlameCache.open(repository, args, getCacheSettings(ignored, authorMappings, languageMappings,
+					sinceTime, args.blameEngine), spill != null);
+		
 		TreeWalk tree = new TreeWalk(repository);
 		tree.addTree(head.getTree());
 		tree.setRecursive(true);
 		
+		ObjectReader reader = repository.newObjectReader();
+		BlobFilter filter = BlobFilter.create(args, reader, head.getTree());
+		BlameCostEstimator costs = new BlameCostEstimator(cache);
+		
 		List<String> files = new ArrayList<String>();
 		while (tree.next()) {
 			String file = tree.getPathString();
@@ -64,27 +242,130 @@ public class RepositoryProcessor {
 			if (!FilenameToLanguage.isKnownFileType(file))
 				continue;
 			
+			if (changed != null && !changed.contains(file))
+				continue;
+			
+			ObjectId blob = tree.getObjectId(0);
+			
+			if (filter.check(file, blob) != null)
+				continue;
+			
+			if (cache != null && cache.load(file, blob, data))
+				continue;
+			
 			files.add(file);
+			costs.addFile(file, reader.getObjectSize(blob, Constants.OBJ_BLOB));
 		}
 		
-		final List<DataTable> tables = Collections.synchronizedList(new ArrayList<DataTable>());
-		final Progress progress = new Progress(files.size());
+		reader.release();
 		
-		new ParallelLists(args.threads).splitInThreads(files, new ParallelLists.Callback<String>() {
-			@Override
-			public void run(Iterable<String> files) throws Exception {
-				tables.add(new AuthorsProcessor(repository, ignored, authorMappings, languageMappings).computeAuthors(
-						files, progress));
-			}
-		});
+		if (cache != null && spill != null)
+			cache.spillHits(spill, args.spillMB * 1024L * 1024L);
 		
-		for (DataTable d : tables)
-			data.inc(d);
+		String skipped = filter.getSummary();
+		if (skipped != null)
+			System.out.println(skipped);
 		
-		progress.finish();
+		// The old data of these files (if any) is replaced by the new one, also when they are skipped
+		if (changed != null)
+			snapshot.addChangedFiles(repository.getWorkTree(), changed);
+		else
+			snapshot.setAllFilesChanged(repository.getWorkTree());
+		
+		phase.finish();
+		
+		phase = metrics.startPhase("prepare blame");
+		Blamer blamer = createBlamer(args, repository, head, commits, files, budget);
+		phase.finish();
+		
+		return new RepositoryJob(repository, blamer, languageMappings, cache, costs, files);
+	}
+	
+	private static Blamer createBlamer(Args args, Repository repository, RevCommit head, CommitDictionary commits,
+			List<String> files, BlameBudget budget) throws IOException {
+		// The walk is over the whole history, so it is only worth it if some file needs to be blamed
+		if (args.blameEngine.equals(Args.BLAME_ENGINE_HISTORY) && !files.isEmpty())
+			return HistoryBlamer.compute(repository, head, commits);
+		
+		if (args.blameEngine.equals(Args.BLAME_ENGINE_GIT))
+			return new GitBlamer(repository, head, commits, budget, args.gitProcesses > 0 ? args.gitProcesses
+					: args.threads);
+		
+		return new JGitBlamer(repository, commits, budget);
+	}
+	
+	private static void reportTruncated(BlameBudget budget, Metrics metrics) {
+		List<String> truncated = budget.getTruncatedFiles();
+		metrics.filesTruncated(truncated);
+		
+		if (truncated.isEmpty())
+			return;
+		
+		Collections.sort(truncated);
+		
+		System.out.println(truncated.size() + " files went over the blame budget:");
+		for (String file : truncated.subList(0, Math.min(10, truncated.size())))
+			System.out.println("   " + file);
+		if (truncated.size() > 10)
+			System.out.println("   ...");
+	}
+	
+	private static Set<String> listChangedFiles(Repository repository, RevWalk walk, ObjectId previous, RevCommit head)
+			throws IOException {
+		if (previous == null)
+			return null;
+		
+		RevCommit previousCommit;
+		try {
+			previousCommit = walk.parseCommit(previous);
+		} catch (MissingObjectException e) {
+			System.out.println("Could not find commit " + previous.getName() + ", processing all files");
+			return null;
+		}
+		
+		// Renames show up as a delete and an add, so both paths are processed again
+		TreeWalk tree = new TreeWalk(repository);
+		tree.addTree(previousCommit.getTree());
+		tree.addTree(head.getTree());
+		tree.setRecursive(true);
+		tree.setFilter(TreeFilter.ANY_DIFF);
+		
+		Set<String> result = new HashSet<String>();
+		while (tree.next())
+			result.add(tree.getPathString());
+		
+		System.out.println(result.size() + " files changed since " + previous.abbreviate(7).name());
+		
+		return result;
 	}
 	
-	private static List<String> preProcessExcludedPaths(Args args) {
+	private static String getCacheSettings(Set<ObjectId> ignored, Map<String, String> authorMappings,
+			Map<String, String> languageMappings, int sinceTime, String blameEngine) {
+		Set<String> ignoredNames = new TreeSet<String>();
+		for (ObjectId id : ignored)
+			if (id != null)
+				ignoredNames.add(id.getName());
+		
+		// Must change if anything that affects the blame results changes
+		return "comparator=WS_IGNORE_ALL;renames=true;ignored=" + ignoredNames + ";authors="
+				+ new TreeMap<String, String>(authorMappings) + ";languages="
+				+ new TreeMap<String, String>(languageMappings) + ";since=" + sinceTime + ";engine=" + blameEngine;
+	}
+	
+	private static void saveCache(RepositoryJob job) {
+		BlameCache cache = job.cache;
+		
+		System.out.println(String.format("Blame cache of %s: %d of %d files reused (%.1f%%)", job.repository
+				.getWorkTree().getName(), cache.getHits(), cache.getHits() + cache.getMisses(), cache.getHitRate()));
+		
+		try {
+			cache.save();
+		} catch (IOException e) {
+			System.out.println("Could not save blame cache: " + e.getMessage());
+		}
+	}
+	
+	static List<String> preProcessExcludedPaths(Args args) {
 		List<String> result = new ArrayList<String>();
 		
 		for (String path : args.excludedPaths) {
@@ -99,7 +380,7 @@ public class RepositoryProcessor {
 		return result;
 	}
 	
-	private static boolean isInExcludedPath(final Repository repository, String file, List<String> excludePaths)
+	static boolean isInExcludedPath(final Repository repository, String file, List<String> excludePaths)
 			throws IOException {
 		if (excludePaths.isEmpty())
 			return false;
@@ -113,7 +394,38 @@ public class RepositoryProcessor {
 		return false;
 	}
 	
-	private static Set<ObjectId> preProcessIgnored(Args args, final Repository repository) throws GitAPIException,
+	/**
+	 * @return the time of the cutoff in seconds or 0 if there is none. For a revision, the lines of the revision itself
+	 *         are before the cutoff
+	 */
+	static int preProcessSince(Args args, Repository repository, RevWalk walk) throws IOException {
+		if (args.since == null)
+			return 0;
+		
+		for (String format : new String[] { "yyyy-MM-dd", "yyyy-MM" }) {
+			SimpleDateFormat parser = new SimpleDateFormat(format);
+			parser.setLenient(false);
+			try {
+				return (int) (parser.parse(args.since).getTime() / 1000);
+			} catch (ParseException e) {
+				// Try the next one
+			}
+		}
+		
+		ObjectId id = repository.resolve(args.since);
+		if (id == null) {
+			System.out.println("Could not find revision " + args.since + ", processing all the history");
+			return 0;
+		}
+		
+		return walk.parseCommit(id).getCommitTime() + 1;
+	}
+	
+	static String getBeforeLabel(Args args) {
+		return Consts.BEFORE_PREFIX + args.since + ")";
+	}
+	
+	static Set<ObjectId> preProcessIgnored(Args args, final Repository repository) throws GitAPIException,
 			IOException {
 		Set<ObjectId> ignored = new HashSet<ObjectId>();
 		
@@ -126,4 +438,33 @@ public class RepositoryProcessor {
 		
 		return ignored;
 	}
+	
+	private static class RepositoryJob {
+		final Repository repository;
+		final Blamer blamer;
+		final Map<String, String> languageMappings;
+		final BlameCache cache;
+		final BlameCostEstimator costs;
+		final List<String> files;
+		
+		RepositoryJob(Repository repository, Blamer blamer, Map<String, String> languageMappings, BlameCache cache,
+				BlameCostEstimator costs, List<String> files) {
+			this.repository = repository;
+			this.blamer = blamer;
+			this.languageMappings = languageMappings;
+			this.cache = cache;
+			this.costs = costs;
+			this.files = files;
+		}
+	}
+	
+	private static class RepositoryFile {
+		final RepositoryJob job;
+		final String path;
+		
+		RepositoryFile(RepositoryJob job, String path) {
+			this.job = job;
+			this.path = path;
+		}
+	}
 }
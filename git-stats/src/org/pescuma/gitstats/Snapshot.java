@@ -0,0 +1,160 @@
+package org.pescuma.gitstats;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Keeps track of the commit each repository was at when a saved file was created. It is stored in a side file, next
+ * to the saved data (data.csv -> data.csv.commits), so an incremental run knows what changed since then.
+ */
+public class Snapshot {
+	
+	private final Map<String, String> previous = new TreeMap<String, String>();
+	private final Map<String, String> current = new TreeMap<String, String>();
+	// By worktree, since different repositories can have files with the same path
+	private final Map<String, Set<String>> changedFiles = new HashMap<String, Set<String>>();
+	private final Set<String> allFilesChanged = new HashSet<String>();
+	
+	/**
+	 * Loads the commits of a previously saved file. They are used as the base for an incremental run and are also
+	 * kept as the commits of the current data, unless the repository is processed again.
+	 */
+	public synchronized void loadPrevious(File dataFile) throws IOException {
+		Map<String, String> commits = read(dataFile);
+		previous.putAll(commits);
+		current.putAll(commits);
+	}
+	
+	/**
+	 * Uses the current commits of the data kept in memory as the base for an incremental run.
+	 */
+	public void loadPrevious(Snapshot other) {
+		Map<String, String> commits = other.getCurrentCommits();
+		
+		synchronized (this) {
+			previous.putAll(commits);
+			current.putAll(commits);
+		}
+	}
+	
+	/**
+	 * Adds the commits of a saved file that was merged into the current data.
+	 */
+	public synchronized void loadMerged(File dataFile) throws IOException {
+		current.putAll(read(dataFile));
+	}
+	
+	public synchronized ObjectId getPreviousCommit(File worktree) {
+		String commit = previous.get(worktree.getAbsolutePath());
+		if (commit == null)
+			return null;
+		return ObjectId.fromString(commit);
+	}
+	
+	public synchronized ObjectId getCurrentCommit(File worktree) {
+		String commit = current.get(worktree.getAbsolutePath());
+		if (commit == null)
+			return null;
+		return ObjectId.fromString(commit);
+	}
+	
+	public synchronized Map<String, String> getCurrentCommits() {
+		return new TreeMap<String, String>(current);
+	}
+	
+	public synchronized void setCurrentCommit(File worktree, ObjectId commit) {
+		current.put(worktree.getAbsolutePath(), commit.getName());
+	}
+	
+	public synchronized void addChangedFiles(File worktree, Collection<String> files) {
+		String key = worktree.getAbsolutePath();
+		Set<String> changed = changedFiles.get(key);
+		if (changed == null) {
+			changed = new HashSet<String>();
+			changedFiles.put(key, changed);
+		}
+		changed.addAll(files);
+	}
+	
+	/**
+	 * All the files of the repository were processed again (there was no base commit to compare with), so all its old
+	 * data is replaced, including the data of files that were deleted since then
+	 */
+	public synchronized void setAllFilesChanged(File worktree) {
+		allFilesChanged.add(worktree.getAbsolutePath());
+	}
+	
+	public synchronized boolean isChanged(File worktree, String file) {
+		String key = worktree.getAbsolutePath();
+		if (allFilesChanged.contains(key))
+			return true;
+		
+		Set<String> changed = changedFiles.get(key);
+		return changed != null && changed.contains(file);
+	}
+	
+	public synchronized boolean isAllFilesChanged(File worktree) {
+		return allFilesChanged.contains(worktree.getAbsolutePath());
+	}
+	
+	/**
+	 * @return the worktrees of the repositories with changed files
+	 */
+	public synchronized List<File> getChangedRepositories() {
+		Set<String> result = new HashSet<String>(allFilesChanged);
+		for (Map.Entry<String, Set<String>> entry : changedFiles.entrySet())
+			if (!entry.getValue().isEmpty())
+				result.add(entry.getKey());
+		
+		List<File> files = new ArrayList<File>();
+		for (String worktree : result)
+			files.add(new File(worktree));
+		return files;
+	}
+	
+	public synchronized void save(File dataFile) throws IOException {
+		if (current.isEmpty())
+			return;
+		
+		StringBuilder out = new StringBuilder();
+		for (Map.Entry<String, String> entry : current.entrySet())
+			out.append(entry.getValue()).append('\t').append(entry.getKey()).append('\n');
+		
+		Files.write(out, getCommitsFile(dataFile), Charsets.UTF_8);
+	}
+	
+	private static Map<String, String> read(File dataFile) throws IOException {
+		Map<String, String> result = new TreeMap<String, String>();
+		
+		File file = getCommitsFile(dataFile);
+		if (!file.exists())
+			return result;
+		
+		for (String line : Files.readLines(file, Charsets.UTF_8)) {
+			int pos = line.indexOf('\t');
+			if (pos < 0)
+				continue;
+			
+			result.put(line.substring(pos + 1), line.substring(0, pos));
+		}
+		
+		return result;
+	}
+	
+	private static File getCommitsFile(File dataFile) {
+		return new File(dataFile.getPath() + ".commits");
+	}
+}
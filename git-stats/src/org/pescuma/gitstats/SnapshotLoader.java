@@ -0,0 +1,190 @@
+package org.pescuma.gitstats;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.pescuma.datatable.DataTable;
+import org.pescuma.datatable.DataTable.Line;
+import org.pescuma.datatable.DataTableSerialization;
+import org.pescuma.datatable.MemoryDataTable;
+import org.pescuma.gitstats.table.ColumnarTable;
+import org.pescuma.gitstats.table.ColumnarTableSerialization;
+import org.pescuma.gitstats.threads.ParallelLists;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+
+/**
+ * Loads snapshot files (CSV or .gstats), applying the filters and mappings from the command line.
+ *
+ * Many files are loaded in parallel. Each thread adds the files it loads to its own table, so only one file per
+ * thread is in memory at a time besides the partial results, and in the end the partial tables are merged in pairs,
+ * also in parallel.
+ */
+public class SnapshotLoader {
+	
+	private final Args args;
+	
+	public SnapshotLoader(Args args) {
+		this.args = args;
+	}
+	
+	public void load(ColumnarTable data, File file) throws IOException {
+		data.inc(load(file));
+	}
+	
+	public void loadAll(ColumnarTable data, List<File> files, final Snapshot snapshot) {
+		if (files.isEmpty())
+			return;
+		
+		final List<ColumnarTable> tables = Collections.synchronizedList(new ArrayList<ColumnarTable>());
+		
+		ParallelLists parallel = new ParallelLists(Math.min(args.loadThreads, files.size()));
+		parallel.splitInThreads(files, new ParallelLists.Callback<File>() {
+			@Override
+			public void run(Iterable<File> files) throws Exception {
+				ColumnarTable partial = new ColumnarTable(Consts.NUM_COLUMNS);
+				
+				for (File file : files) {
+					partial.inc(load(file));
+					snapshot.loadMerged(file);
+				}
+				
+				tables.add(partial);
+			}
+		});
+		
+		data.inc(merge(new ArrayList<ColumnarTable>(tables), parallel));
+	}
+	
+	/**
+	 * Merges the tables in pairs until only one is left. The pairs of each level are independent, so they are merged in
+	 * parallel.
+	 */
+	private static ColumnarTable merge(List<ColumnarTable> tables, ParallelLists parallel) {
+		while (tables.size() > 1) {
+			final List<ColumnarTable> level = tables;
+			
+			List<Integer> pairs = new ArrayList<Integer>();
+			for (int i = 0; i + 1 < level.size(); i += 2)
+				pairs.add(i);
+			
+			parallel.splitInThreads(pairs, new ParallelLists.Callback<Integer>() {
+				@Override
+				public void run(Iterable<Integer> pairs) throws Exception {
+					for (Integer i : pairs)
+						level.get(i).inc(level.get(i + 1));
+				}
+			});
+			
+			tables = new ArrayList<ColumnarTable>();
+			for (int i = 0; i < level.size(); i += 2)
+				tables.add(level.get(i));
+		}
+		
+		return tables.get(0);
+	}
+	
+	public static boolean isSnapshot(File file) {
+		return file.getName().endsWith(".csv") || ColumnarTableSerialization.isGStats(file);
+	}
+	
+	private ColumnarTable load(File file) throws IOException {
+		System.out.println("Loading " + file.getAbsolutePath() + "...");
+		
+		ColumnarTable loaded = new ColumnarTable(Consts.NUM_COLUMNS);
+		if (ColumnarTableSerialization.isGStats(file)) {
+			ColumnarTableSerialization.loadFromGStats(loaded, file);
+		} else {
+			DataTable csv = new MemoryDataTable();
+			DataTableSerialization.loadFromCSV(csv, file);
+			
+			// A --history CSV has an extra column, and adding it here would silently drop it
+			Iterator<Line> lines = csv.getLines().iterator();
+			if (lines.hasNext()) {
+				int numColumns = lines.next().getColumns().length;
+				if (numColumns != loaded.getColumnCount())
+					throw new IOException(file + " has " + numColumns + " columns, expected " + loaded.getColumnCount());
+			}
+			
+			loaded.inc(csv);
+		}
+		
+		if (!args.excludedPaths.isEmpty()) {
+			final List<String> excludedPaths = preProcessExcludedPaths(args);
+			loaded = loaded.filter(Consts.COL_FILE, new Predicate<String>() {
+				@Override
+				public boolean apply(String file) {
+					for (String excluded : excludedPaths) {
+						if (file.startsWith(excluded))
+							return false;
+					}
+					return true;
+				}
+			});
+		}
+		
+		if (!args.ignoredRevisions.isEmpty()) {
+			loaded = loaded.filter(Consts.COL_COMMIT, new Predicate<String>() {
+				@Override
+				public boolean apply(String commit) {
+					for (String rev : args.ignoredRevisions) {
+						if (StringUtils.startsWithIgnoreCase(commit, rev))
+							return false;
+					}
+					return true;
+				}
+			});
+		}
+		
+		if (!args.authors.isEmpty()) {
+			final Map<String, String> authorMappings = args.getAuthorMappings();
+			loaded = loaded.mapColumn(Consts.COL_AUTHOR, new Function<String, String>() {
+				@Override
+				public String apply(String author) {
+					return authorMappings.get(author);
+				}
+			});
+		}
+		
+		if (!args.languages.isEmpty()) {
+			final Map<String, String> languageMappings = args.getLanguageMappings();
+			loaded = loaded.mapColumn(Consts.COL_LANGUAGE, Consts.COL_FILE, new Function<String, String>() {
+				@Override
+				public String apply(String file) {
+					return languageMappings.get(FilenameUtils.getExtension(file));
+				}
+			});
+		}
+		
+		return loaded;
+	}
+	
+	private static List<String> preProcessExcludedPaths(Args args) {
+		List<String> result = new ArrayList<String>();
+		
+		for (String path : args.excludedPaths)
+			result.add(normalizePath(path));
+		
+		return result;
+	}
+	
+	public static String normalizePath(String path) {
+		String result = path.replace('\\', '/');
+		
+		if (result.startsWith("/"))
+			result = result.substring(1);
+		
+		if (!result.endsWith("/"))
+			result += "/";
+		
+		return result;
+	}
+}
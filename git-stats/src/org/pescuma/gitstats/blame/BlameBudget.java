@@ -0,0 +1,65 @@
+package org.pescuma.gitstats.blame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Limits how much work the blame of a single file can take, so a few pathological files (usually generated ones with
+ * thousands of revisions) don't keep a thread busy for the whole run. A limit of 0 means no limit.
+ *
+ * The files that went over the budget are kept to be reported at the end.
+ *
+ * Thread safe.
+ */
+public class BlameBudget {
+	
+	public static final BlameBudget UNLIMITED = new BlameBudget(0, 0);
+	
+	private final long maxNanos;
+	private final int maxCommits;
+	private final List<String> truncatedFiles = new ArrayList<String>();
+	
+	/**
+	 * @param maxMillis wall time spent walking the history of the file
+	 * @param maxCommits number of different commits the lines were found in
+	 */
+	public BlameBudget(long maxMillis, int maxCommits) {
+		this.maxNanos = maxMillis * 1000000L;
+		this.maxCommits = maxCommits;
+	}
+	
+	public boolean isUnlimited() {
+		return maxNanos <= 0 && maxCommits <= 0;
+	}
+	
+	public boolean limitsCommits() {
+		return maxCommits > 0;
+	}
+	
+	public boolean limitsTime() {
+		return maxNanos > 0;
+	}
+	
+	public long getMaxMillis() {
+		return maxNanos / 1000000L;
+	}
+	
+	public boolean isOver(long startNanos, int commits) {
+		if (maxCommits > 0 && commits >= maxCommits)
+			return true;
+		
+		return isOutOfTime(startNanos);
+	}
+	
+	public boolean isOutOfTime(long startNanos) {
+		return maxNanos > 0 && System.nanoTime() - startNanos >= maxNanos;
+	}
+	
+	synchronized void truncated(String file) {
+		truncatedFiles.add(file);
+	}
+	
+	public synchronized List<String> getTruncatedFiles() {
+		return new ArrayList<String>(truncatedFiles);
+	}
+}
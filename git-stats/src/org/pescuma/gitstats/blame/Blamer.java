@@ -0,0 +1,12 @@
+package org.pescuma.gitstats.blame;
+
+import org.eclipse.jgit.api.errors.GitAPIException;
+
+/**
+ * Finds the commit that last changed each line of a file at HEAD.
+ */
+public interface Blamer {
+	
+	FileBlame blame(String file) throws GitAPIException;
+	
+}
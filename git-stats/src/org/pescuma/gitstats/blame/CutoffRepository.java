@@ -0,0 +1,185 @@
+package org.pescuma.gitstats.blame;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.AbbreviatedObjectId;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.BitmapIndex;
+import org.eclipse.jgit.lib.ObjectDatabase;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.ReflogReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.pescuma.gitstats.CommitDictionary;
+
+/**
+ * A view of a repository in which the first commits older than the cutoff (--since) have no parents, as in a shallow
+ * clone. A BlameGenerator can't be told where to stop, but it gives all the lines not found yet to a root commit, so
+ * reading the repository through this view makes it stop at the cutoff instead of walking on to the commits that added
+ * the old lines.
+ *
+ * Only the objects are read through the view, everything else goes to the repository. It must not be closed, since
+ * that would also close the object database of the repository.
+ */
+class CutoffRepository extends Repository {
+	
+	private final Repository repository;
+	private final Set<ObjectId> boundaries;
+	
+	CutoffRepository(Repository repository, Set<ObjectId> boundaries) {
+		super(new FileRepositoryBuilder().setGitDir(repository.getDirectory()).setFS(repository.getFS()));
+		this.repository = repository;
+		this.boundaries = boundaries;
+	}
+	
+	/**
+	 * @return the commits older than the cutoff that are parents of newer commits reachable from head (or head itself
+	 *         if it is older)
+	 */
+	static Set<ObjectId> findBoundaries(Repository repository, ObjectId head, CommitDictionary commits)
+			throws IOException {
+		Set<ObjectId> result = new HashSet<ObjectId>();
+		
+		RevWalk walk = new RevWalk(repository);
+		try {
+			
+			Set<RevCommit> seen = new HashSet<RevCommit>();
+			List<RevCommit> pending = new ArrayList<RevCommit>();
+			
+			RevCommit start = walk.parseCommit(head);
+			seen.add(start);
+			pending.add(start);
+			
+			while (!pending.isEmpty()) {
+				RevCommit commit = pending.remove(pending.size() - 1);
+				
+				if (commits.isBeforeCutoff(commit)) {
+					result.add(commit.copy());
+					continue;
+				}
+				
+				for (RevCommit parent : commit.getParents()) {
+					if (!seen.add(parent))
+						continue;
+					
+					walk.parseHeaders(parent);
+					pending.add(parent);
+				}
+			}
+			
+		} finally {
+			walk.release();
+		}
+		
+		return result;
+	}
+	
+	@Override
+	public ObjectReader newObjectReader() {
+		return new Reader(repository.newObjectReader());
+	}
+	
+	@Override
+	public void create(boolean bare) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+	
+	@Override
+	public ObjectDatabase getObjectDatabase() {
+		return repository.getObjectDatabase();
+	}
+	
+	@Override
+	public RefDatabase getRefDatabase() {
+		return repository.getRefDatabase();
+	}
+	
+	@Override
+	public StoredConfig getConfig() {
+		return repository.getConfig();
+	}
+	
+	@Override
+	public void scanForRepoChanges() throws IOException {
+		repository.scanForRepoChanges();
+	}
+	
+	@Override
+	public void notifyIndexChanged() {
+		repository.notifyIndexChanged();
+	}
+	
+	@Override
+	public ReflogReader getReflogReader(String refName) throws IOException {
+		return repository.getReflogReader(refName);
+	}
+	
+	/**
+	 * Reads the objects with the reader of the repository and adds the boundaries to its shallow commits, which a
+	 * RevWalk parses without parents
+	 */
+	private class Reader extends ObjectReader {
+		private final ObjectReader reader;
+		
+		Reader(ObjectReader reader) {
+			this.reader = reader;
+		}
+		
+		@Override
+		public ObjectReader newReader() {
+			return new Reader(reader.newReader());
+		}
+		
+		@Override
+		public Collection<ObjectId> resolve(AbbreviatedObjectId id) throws IOException {
+			return reader.resolve(id);
+		}
+		
+		@Override
+		public boolean has(AnyObjectId objectId) throws IOException {
+			return reader.has(objectId);
+		}
+		
+		@Override
+		public ObjectLoader open(AnyObjectId objectId, int typeHint) throws MissingObjectException,
+				IncorrectObjectTypeException, IOException {
+			return reader.open(objectId, typeHint);
+		}
+		
+		@Override
+		public long getObjectSize(AnyObjectId objectId, int typeHint) throws MissingObjectException,
+				IncorrectObjectTypeException, IOException {
+			return reader.getObjectSize(objectId, typeHint);
+		}
+		
+		@Override
+		public Set<ObjectId> getShallowCommits() throws IOException {
+			Set<ObjectId> result = new HashSet<ObjectId>(reader.getShallowCommits());
+			result.addAll(boundaries);
+			return result;
+		}
+		
+		@Override
+		public BitmapIndex getBitmapIndex() throws IOException {
+			return reader.getBitmapIndex();
+		}
+		
+		@Override
+		public void release() {
+			reader.release();
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package org.pescuma.gitstats.blame;
+
+import org.eclipse.jgit.diff.RawText;
+import org.pescuma.gitstats.CommitDictionary.CommitInfo;
+
+public interface FileBlame {
+	
+	RawText getContents();
+	
+	/**
+	 * @return the commit that last changed the line or null if it could not be found
+	 */
+	CommitInfo getCommit(int line);
+	
+	/**
+	 * @return true if the blame was stopped by the {@link BlameBudget} before finding all the lines
+	 */
+	boolean isTruncated();
+	
+}
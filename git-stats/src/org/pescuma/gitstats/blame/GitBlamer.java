@@ -0,0 +1,316 @@
+package org.pescuma.gitstats.blame;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.api.errors.JGitInternalException;
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.pescuma.gitstats.CommitDictionary;
+import org.pescuma.gitstats.CommitDictionary.CommitInfo;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Blames each file running the git command line (git blame --incremental), that can use the commit-graph and bitmap
+ * files of the repository, and is much faster than JGit's BlameGenerator on some repositories. It needs git in the
+ * PATH.
+ *
+ * The output is read while git runs, one region at a time, so the {@link BlameBudget} works as in {@link JGitBlamer}:
+ * when it is over the process is killed and the lines that were not found yet are given to the oldest commit reached.
+ * Git can walk for a long time without writing anything, so with a time limit the process is also killed by a timer
+ * when the time is over.
+ *
+ * At most maxProcesses git processes run at the same time, the other threads wait for one of them to finish.
+ */
+public class GitBlamer implements Blamer {
+	
+	private final Repository repository;
+	private final RevCommit head;
+	private final CommitDictionary commits;
+	private final BlameBudget budget;
+	private final Semaphore processes;
+	private final ScheduledExecutorService deadlines;
+	
+	public GitBlamer(Repository repository, RevCommit head, CommitDictionary commits, BlameBudget budget,
+			int maxProcesses) {
+		this.repository = repository;
+		this.head = head;
+		this.commits = commits;
+		this.budget = budget;
+		this.processes = new Semaphore(Math.max(maxProcesses, 1), true);
+		this.deadlines = budget.limitsTime() ? Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread result = new Thread(runnable, "git blame deadlines");
+				result.setDaemon(true);
+				return result;
+			}
+		}) : null;
+	}
+	
+	@Override
+	public FileBlame blame(String file) throws GitAPIException {
+		try {
+			
+			byte[] bytes = load(file);
+			RawText contents = new RawText(bytes);
+			CommitInfo[] lines = new CommitInfo[contents.size()];
+			
+			processes.acquireUninterruptibly();
+			try {
+				
+				boolean truncated = run(file, lines);
+				return new Result(contents, lines, truncated);
+				
+			} finally {
+				processes.release();
+			}
+			
+		} catch (IOException e) {
+			throw new JGitInternalException(e.getMessage(), e);
+		}
+	}
+	
+	private byte[] load(String file) throws IOException {
+		ObjectReader reader = repository.newObjectReader();
+		try {
+			
+			TreeWalk tree = TreeWalk.forPath(reader, file, head.getTree());
+			if (tree == null)
+				throw new IOException("Could not find " + file + " in " + head.getName());
+			
+			return reader.open(tree.getObjectId(0), Constants.OBJ_BLOB).getCachedBytes(Integer.MAX_VALUE);
+			
+		} finally {
+			reader.release();
+		}
+	}
+	
+	/**
+	 * @return true if the blame was stopped by the budget
+	 */
+	private boolean run(String file, CommitInfo[] lines) throws IOException {
+		// -w and the histogram diff are what the other engines use
+		List<String> command = new ArrayList<String>();
+		command.addAll(Arrays.asList("git", "--git-dir=" + repository.getDirectory().getAbsolutePath(), "blame",
+				"--incremental", "-w", "--diff-algorithm=histogram"));
+		
+		// Git gives the older lines to a boundary commit, that is older than the cutoff too
+		if (commits.getBeforeCutoff() != null)
+			command.add("--since=@" + commits.getSinceTime());
+		
+		command.addAll(Arrays.asList(head.getName(), "--", file));
+		
+		final Process process = new ProcessBuilder(command).start();
+		ErrorReader errors = new ErrorReader(process.getErrorStream());
+		errors.start();
+		final AtomicBoolean killed = new AtomicBoolean();
+		ScheduledFuture<?> deadline = null;
+		try {
+			
+			if (deadlines != null)
+				deadline = deadlines.schedule(new Runnable() {
+					@Override
+					public void run() {
+						killed.set(true);
+						process.destroy();
+					}
+				}, budget.getMaxMillis(), TimeUnit.MILLISECONDS);
+			
+			process.getOutputStream().close();
+			
+			boolean truncated = parse(file, process.getInputStream(), lines, killed);
+			if (truncated)
+				return true;
+			
+			// Killed after it wrote all the lines, so the exit code is not the one of git
+			if (killed.get())
+				return false;
+			
+			int exitCode = process.waitFor();
+			if (exitCode != 0)
+				throw new IOException("git blame failed for " + file + " (exit code " + exitCode + "): "
+						+ errors.get().trim());
+			
+			for (int i = 0; i < lines.length; i++)
+				if (lines[i] == null)
+					throw new IOException("git blame did not return all the lines of " + file);
+			
+			return false;
+			
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for git blame of " + file, e);
+			
+		} finally {
+			if (deadline != null)
+				deadline.cancel(false);
+			process.destroy();
+		}
+	}
+	
+	/**
+	 * The output has one entry per region: "&lt;sha&gt; &lt;source line&gt; &lt;result line&gt; &lt;lines&gt;", the
+	 * headers of the commit (only the first time it shows up) and "filename &lt;source file&gt;".
+	 *
+	 * @param killed set when the process was killed because the time was over
+	 * @return true if the blame was stopped by the budget
+	 */
+	private boolean parse(String file, InputStream output, CommitInfo[] lines, AtomicBoolean killed)
+			throws IOException {
+		boolean checkBudget = !budget.isUnlimited();
+		long start = checkBudget ? System.nanoTime() : 0;
+		int remaining = lines.length;
+		
+		RevWalk walk = new RevWalk(repository);
+		Map<String, CommitInfo> found = new HashMap<String, CommitInfo>();
+		CommitInfo lastInfo = null;
+		
+		BufferedReader reader = new BufferedReader(new InputStreamReader(output, Charsets.UTF_8));
+		try {
+			
+			boolean expectRegion = true;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				// The last line may have been cut when the process was killed
+				if (killed.get())
+					break;
+				
+				if (!expectRegion) {
+					expectRegion = line.startsWith("filename ");
+					continue;
+				}
+				expectRegion = false;
+				
+				String[] fields = line.split(" ");
+				if (fields.length != 4)
+					throw new IOException("Unexpected output from git blame of " + file + ": " + line);
+				
+				String sha = fields[0];
+				int first = Integer.parseInt(fields[2]) - 1;
+				int count = Integer.parseInt(fields[3]);
+				
+				CommitInfo info = found.get(sha);
+				if (info == null) {
+					info = commits.get(walk.parseCommit(ObjectId.fromString(sha)));
+					found.put(sha, info);
+				}
+				lastInfo = info;
+				
+				for (int i = first; i < first + count; i++) {
+					if (lines[i] == null)
+						remaining--;
+					lines[i] = info;
+				}
+				
+				if (checkBudget && remaining > 0 && budget.isOver(start, found.size())) {
+					truncate(file, lines, lastInfo);
+					return true;
+				}
+			}
+			
+		} catch (IOException e) {
+			// The output ends early, maybe in the middle of a line, when the process is killed
+			if (!killed.get())
+				throw e;
+			
+		} finally {
+			walk.release();
+			reader.close();
+		}
+		
+		if (killed.get() && remaining > 0) {
+			truncate(file, lines, lastInfo);
+			return true;
+		}
+		
+		return false;
+	}
+	
+	private void truncate(String file, CommitInfo[] lines, CommitInfo lastInfo) {
+		CommitInfo boundary = lastInfo != null ? lastInfo : CommitDictionary.TRUNCATED;
+		for (int i = 0; i < lines.length; i++)
+			if (lines[i] == null)
+				lines[i] = boundary;
+		
+		budget.truncated(file);
+	}
+	
+	/**
+	 * Reads the stderr of git while its stdout is parsed, so git never blocks writing to a full stderr pipe.
+	 */
+	private static class ErrorReader extends Thread {
+		private final InputStream input;
+		private String errors = "";
+		
+		ErrorReader(InputStream input) {
+			super("git blame errors");
+			setDaemon(true);
+			this.input = input;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				errors = IOUtils.toString(input, Charsets.UTF_8);
+			} catch (IOException e) {
+				// The process was destroyed
+			}
+		}
+		
+		String get() throws InterruptedException {
+			join();
+			return errors;
+		}
+	}
+	
+	private static class Result implements FileBlame {
+		private final RawText contents;
+		private final CommitInfo[] lines;
+		private final boolean truncated;
+		
+		Result(RawText contents, CommitInfo[] lines, boolean truncated) {
+			this.contents = contents;
+			this.lines = lines;
+			this.truncated = truncated;
+		}
+		
+		@Override
+		public RawText getContents() {
+			return contents;
+		}
+		
+		@Override
+		public CommitInfo getCommit(int line) {
+			return lines[line];
+		}
+		
+		@Override
+		public boolean isTruncated() {
+			return truncated;
+		}
+	}
+}
@@ -0,0 +1,421 @@
+package org.pescuma.gitstats.blame;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.api.errors.JGitInternalException;
+import org.eclipse.jgit.diff.DiffAlgorithm;
+import org.eclipse.jgit.diff.DiffAlgorithm.SupportedAlgorithm;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.DiffEntry.ChangeType;
+import org.eclipse.jgit.diff.Edit;
+import org.eclipse.jgit.diff.EditList;
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.diff.RawTextComparator;
+import org.eclipse.jgit.diff.RenameDetector;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.pescuma.gitstats.CommitDictionary;
+import org.pescuma.gitstats.CommitDictionary.CommitInfo;
+import org.pescuma.gitstats.Progress;
+import org.pescuma.programminglanguagedetector.FilenameToLanguage;
+
+/**
+ * Blames all the files with a single walk over the history, from the oldest commit to HEAD.
+ *
+ * For each version of a file (path + blob) it keeps the commit that introduced each line. When a commit changes a
+ * file, the lines that are the same as in the parent keep the owner from the parent and the others get the commit.
+ * Merges try each parent in order, so a line only belongs to the merge if it is not in any of them. This gives the
+ * same results as a BlameGenerator per file, with whitespace ignored and renames followed, but each diff is computed
+ * only once for all files. The exception is reverts: when a file goes back to a previous version, its lines keep the
+ * owners they had in that version, while BlameGenerator gives the lines that came back to the revert commit.
+ *
+ * With a cutoff (--since) the commits older than it are not diffed: the versions of their files are added as if they
+ * were root commits, with all the lines belonging to the commit that replaces the ones before the cutoff.
+ *
+ * The walk is done in {@link #compute}, after that {@link #blame} can be called by any thread. {@link #computeAll}
+ * keeps the owners of all the versions of the files, not only the ones in HEAD, so the files of any commit in the
+ * history can be blamed without walking it again.
+ */
+public class HistoryBlamer implements Blamer {
+	
+	private static final DiffAlgorithm DIFF = DiffAlgorithm.getAlgorithm(SupportedAlgorithm.HISTOGRAM);
+	private static final RawTextComparator COMPARATOR = RawTextComparator.WS_IGNORE_ALL;
+	
+	private final Repository repository;
+	private final CommitDictionary commits;
+	private final Map<String, ObjectId> headBlobs = new HashMap<String, ObjectId>();
+	private Map<Version, int[]> owners = new HashMap<Version, int[]>();
+	
+	private HistoryBlamer(Repository repository, CommitDictionary commits) {
+		this.repository = repository;
+		this.commits = commits;
+	}
+	
+	public static HistoryBlamer compute(Repository repository, RevCommit head, CommitDictionary commits)
+			throws IOException {
+		HistoryBlamer result = new HistoryBlamer(repository, commits);
+		
+		ObjectReader reader = repository.newObjectReader();
+		try {
+			
+			new Walk(repository, reader, commits).run(Collections.singletonList(head), result, false);
+			
+		} finally {
+			reader.release();
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Walks the history of all the heads and keeps the owners of all the versions of the files found, so
+	 * {@link #blame(Version)} works for the files of any commit in it. {@link #blame(String)} can't be used.
+	 */
+	public static HistoryBlamer computeAll(Repository repository, Collection<RevCommit> heads, CommitDictionary commits)
+			throws IOException {
+		HistoryBlamer result = new HistoryBlamer(repository, commits);
+		
+		ObjectReader reader = repository.newObjectReader();
+		try {
+			
+			new Walk(repository, reader, commits).run(heads, result, true);
+			
+		} finally {
+			reader.release();
+		}
+		
+		return result;
+	}
+	
+	@Override
+	public FileBlame blame(String file) throws GitAPIException {
+		ObjectId blob = headBlobs.get(file);
+		if (blob == null)
+			throw new IllegalArgumentException("File not in HEAD: " + file);
+		
+		return blame(new Version(file, blob));
+	}
+	
+	/**
+	 * @param version of a file in one of the commits walked
+	 */
+	public FileBlame blame(Version version) throws GitAPIException {
+		try {
+			
+			RawText contents = new RawText(repository.open(version.blob, Constants.OBJ_BLOB).getCachedBytes(
+					Integer.MAX_VALUE));
+			return new Result(contents, Owners.decode(owners.get(version), contents.size()));
+			
+		} catch (IOException e) {
+			throw new JGitInternalException(e.getMessage(), e);
+		}
+	}
+	
+	private class Result implements FileBlame {
+		private final RawText contents;
+		private final int[] owners;
+		
+		Result(RawText contents, int[] owners) {
+			this.contents = contents;
+			this.owners = owners;
+		}
+		
+		@Override
+		public RawText getContents() {
+			return contents;
+		}
+		
+		@Override
+		public CommitInfo getCommit(int line) {
+			if (owners == null || owners[line] < 0)
+				return null;
+			return commits.get(owners[line]);
+		}
+		
+		@Override
+		public boolean isTruncated() {
+			return false;
+		}
+	}
+	
+	private static class Walk {
+		private final Repository repository;
+		private final ObjectReader reader;
+		private final CommitDictionary commits;
+		// All the versions are kept until the end of the walk, even when only HEAD is needed: a version that comes back
+		// after a revert must get the owners it had the first time, so no version can be dropped before that
+		private final Map<Version, int[]> versions = new HashMap<Version, int[]>();
+		
+		Walk(Repository repository, ObjectReader reader, CommitDictionary commits) {
+			this.repository = repository;
+			this.reader = reader;
+			this.commits = commits;
+		}
+		
+		/**
+		 * @param keepAll keep the owners of all the versions, not only the ones of the first head
+		 */
+		void run(Collection<RevCommit> heads, HistoryBlamer result, boolean keepAll) throws IOException {
+			RevWalk walk = new RevWalk(reader);
+			walk.sort(RevSort.TOPO);
+			walk.sort(RevSort.REVERSE, true);
+			for (RevCommit head : heads)
+				walk.markStart(walk.parseCommit(head));
+			
+			List<RevCommit> all = new ArrayList<RevCommit>();
+			for (RevCommit commit : walk)
+				all.add(commit);
+			
+			Progress progress = new Progress("Walking history", all.size());
+			
+			Set<RevCommit> boundaries = new HashSet<RevCommit>();
+			
+			for (RevCommit commit : all) {
+				if (commits.isBeforeCutoff(commit)) {
+					progress.step();
+					continue;
+				}
+				
+				int owner = commits.get(commit).id;
+				
+				for (RevCommit parent : commit.getParents())
+					if (commits.isBeforeCutoff(parent) && boundaries.add(parent))
+						addRoot(parent, commits.getBeforeCutoff().id);
+				
+				if (commit.getParentCount() == 0)
+					addRoot(commit, owner);
+				else
+					addChanges(commit, owner);
+				
+				progress.step();
+			}
+			
+			progress.finish();
+			
+			for (RevCommit head : heads)
+				if (commits.isBeforeCutoff(head))
+					addRoot(walk.parseCommit(head), commits.getBeforeCutoff().id);
+			
+			if (keepAll) {
+				result.owners = versions;
+				
+			} else {
+				TreeWalk tree = new TreeWalk(reader);
+				tree.addTree(walk.parseCommit(heads.iterator().next()).getTree());
+				tree.setRecursive(true);
+				while (tree.next()) {
+					Version version = new Version(tree.getPathString(), tree.getObjectId(0));
+					result.headBlobs.put(version.path, version.blob);
+					result.owners.put(version, versions.get(version));
+				}
+			}
+			
+			walk.release();
+		}
+		
+		private void addRoot(RevCommit commit, int owner) throws IOException {
+			TreeWalk tree = new TreeWalk(reader);
+			tree.addTree(commit.getTree());
+			tree.setRecursive(true);
+			
+			while (tree.next()) {
+				String path = tree.getPathString();
+				if (!isBlamed(path, tree.getFileMode(0)))
+					continue;
+				
+				ObjectId blob = tree.getObjectId(0);
+				Version version = new Version(path, blob);
+				if (versions.containsKey(version))
+					continue;
+				
+				versions.put(version, Owners.encode(fill(load(blob).size(), owner)));
+			}
+		}
+		
+		private void addChanges(RevCommit commit, int owner) throws IOException {
+			TreeWalk tree = new TreeWalk(reader);
+			tree.addTree(commit.getParent(0).getTree());
+			tree.addTree(commit.getTree());
+			tree.setRecursive(true);
+			tree.setFilter(TreeFilter.ANY_DIFF);
+			
+			RenameDetector renames = new RenameDetector(repository);
+			renames.addAll(DiffEntry.scan(tree));
+			List<DiffEntry> entries = renames.compute(reader, NullProgressMonitor.INSTANCE);
+			
+			for (DiffEntry entry : entries) {
+				if (entry.getChangeType() == ChangeType.DELETE)
+					continue;
+				
+				String path = entry.getNewPath();
+				if (!isBlamed(path, entry.getNewMode()))
+					continue;
+				
+				ObjectId blob = entry.getNewId().toObjectId();
+				Version version = new Version(path, blob);
+				// The owners are kept by version, not by commit, so a version that appears again (after a revert) keeps
+				// the owners it got first, which are the right ones for the older commits that have it
+				if (versions.containsKey(version))
+					continue;
+				
+				RawText text = load(blob);
+				int[] owners = fill(text.size(), owner);
+				
+				if (entry.getChangeType() != ChangeType.ADD)
+					passBlame(owners, owner, text, blob, new Version(entry.getOldPath(), entry.getOldId().toObjectId()));
+				
+				for (int i = 1; i < commit.getParentCount(); i++) {
+					ObjectId parentBlob = findBlob(commit.getParent(i).getTree(), path);
+					if (parentBlob != null)
+						passBlame(owners, owner, text, blob, new Version(path, parentBlob));
+				}
+				
+				versions.put(version, Owners.encode(owners));
+			}
+		}
+		
+		/**
+		 * The lines still owned by the commit that are unchanged in the parent version get the owner from it.
+		 */
+		private void passBlame(int[] owners, int owner, RawText text, ObjectId blob, Version parent) throws IOException {
+			int[] encoded = versions.get(parent);
+			if (encoded == null)
+				// Unknown version (for example, a shallow clone): the commit keeps the lines
+				return;
+			
+			RawText parentText;
+			EditList edits;
+			if (parent.blob.equals(blob)) {
+				parentText = text;
+				edits = new EditList();
+			} else {
+				parentText = load(parent.blob);
+				edits = DIFF.diff(COMPARATOR, parentText, text);
+			}
+			
+			int[] parentOwners = Owners.decode(encoded, parentText.size());
+			
+			int a = 0;
+			int b = 0;
+			for (Edit edit : edits) {
+				for (; b < edit.getBeginB(); a++, b++)
+					if (owners[b] == owner)
+						owners[b] = parentOwners[a];
+				
+				a = edit.getEndA();
+				b = edit.getEndB();
+			}
+			for (; b < owners.length; a++, b++)
+				if (owners[b] == owner)
+					owners[b] = parentOwners[a];
+		}
+		
+		private ObjectId findBlob(RevTree tree, String path) throws IOException {
+			TreeWalk walk = TreeWalk.forPath(reader, path, tree);
+			if (walk == null)
+				return null;
+			if (walk.getFileMode(0).getObjectType() != Constants.OBJ_BLOB)
+				return null;
+			return walk.getObjectId(0);
+		}
+		
+		private RawText load(ObjectId blob) throws IOException {
+			return new RawText(reader.open(blob, Constants.OBJ_BLOB).getCachedBytes(Integer.MAX_VALUE));
+		}
+		
+		private static boolean isBlamed(String path, FileMode mode) {
+			return mode.getObjectType() == Constants.OBJ_BLOB && FilenameToLanguage.isKnownFileType(path);
+		}
+		
+		private static int[] fill(int size, int owner) {
+			int[] result = new int[size];
+			Arrays.fill(result, owner);
+			return result;
+		}
+	}
+	
+	/**
+	 * A file as it is in a commit: its path and its blob
+	 */
+	public static class Version {
+		public final String path;
+		public final ObjectId blob;
+		
+		public Version(String path, ObjectId blob) {
+			this.path = path;
+			this.blob = blob;
+		}
+		
+		@Override
+		public int hashCode() {
+			return 31 * path.hashCode() + blob.hashCode();
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Version))
+				return false;
+			
+			Version other = (Version) obj;
+			return path.equals(other.path) && blob.equals(other.blob);
+		}
+	}
+	
+	/**
+	 * Run length encoding of the owners of the lines: pairs of (owner, count). Files usually have big blocks of lines
+	 * from the same commit, so this keeps all the versions in memory at a fraction of the size.
+	 */
+	static class Owners {
+		
+		static int[] encode(int[] owners) {
+			int runs = 0;
+			for (int i = 0; i < owners.length; i++)
+				if (i == 0 || owners[i] != owners[i - 1])
+					runs++;
+			
+			int[] result = new int[runs * 2];
+			int pos = -2;
+			for (int i = 0; i < owners.length; i++) {
+				if (i == 0 || owners[i] != owners[i - 1]) {
+					pos += 2;
+					result[pos] = owners[i];
+				}
+				result[pos + 1]++;
+			}
+			return result;
+		}
+		
+		static int[] decode(int[] encoded, int size) {
+			if (encoded == null)
+				return null;
+			
+			int[] result = new int[size];
+			int pos = 0;
+			for (int i = 0; i < encoded.length; i += 2) {
+				Arrays.fill(result, pos, pos + encoded[i + 1], encoded[i]);
+				pos += encoded[i + 1];
+			}
+			return result;
+		}
+	}
+}
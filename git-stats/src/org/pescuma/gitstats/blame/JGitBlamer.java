@@ -0,0 +1,222 @@
+package org.pescuma.gitstats.blame;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.api.errors.JGitInternalException;
+import org.eclipse.jgit.blame.BlameGenerator;
+import org.eclipse.jgit.diff.DiffAlgorithm;
+import org.eclipse.jgit.diff.EditList;
+import org.eclipse.jgit.diff.HistogramDiff;
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.diff.RawTextComparator;
+import org.eclipse.jgit.diff.Sequence;
+import org.eclipse.jgit.diff.SequenceComparator;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.pescuma.gitstats.CommitDictionary;
+import org.pescuma.gitstats.CommitDictionary.CommitInfo;
+
+/**
+ * Blames each file using its own {@link BlameGenerator}.
+ *
+ * The generator is stepped one region at a time, so the {@link BlameBudget} can stop it. When that happens the lines
+ * that were not found yet are given to the oldest commit reached (the boundary, as git blame --since does) or, if no
+ * commit was reached, to {@link CommitDictionary#TRUNCATED}. The generator can walk many commits before it returns a
+ * region, so the time is also checked before each diff of a version of the file inside the walk. The commits that
+ * don't change the file are not diffed, so the time can still go over the limit while walking a long run of them.
+ *
+ * With a cutoff (--since) the generator reads the repository through a {@link CutoffRepository}, in which the first
+ * commits older than the cutoff have no parents, so its walk ends there and they get all the lines not found yet. The
+ * generator goes from the newest commits to the oldest, so the blame stops at the first region from one of them: all
+ * the lines not found yet are older too.
+ */
+public class JGitBlamer implements Blamer {
+	
+	private final Repository repository;
+	private final CommitDictionary commits;
+	private final BlameBudget budget;
+	private Repository cutoffRepository;
+	
+	public JGitBlamer(Repository repository, CommitDictionary commits) {
+		this(repository, commits, BlameBudget.UNLIMITED);
+	}
+	
+	public JGitBlamer(Repository repository, CommitDictionary commits, BlameBudget budget) {
+		this.repository = repository;
+		this.commits = commits;
+		this.budget = budget;
+	}
+	
+	@Override
+	public FileBlame blame(String file) throws GitAPIException {
+		try {
+			
+			ObjectId head = repository.resolve(Constants.HEAD);
+			long start = System.nanoTime();
+			
+			BlameGenerator blame = new BlameGenerator(getBlamedRepository(head), file);
+			try {
+				
+				blame.setTextComparator(RawTextComparator.WS_IGNORE_ALL);
+				blame.setFollowFileRenames(true);
+				if (budget.limitsTime())
+					blame.setDiffAlgorithm(new DeadlineDiff(budget, start));
+				blame.push(null, head);
+				return compute(file, blame, start);
+				
+			} finally {
+				blame.release();
+			}
+			
+		} catch (IOException e) {
+			throw new JGitInternalException(e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * The boundaries of the cutoff are found with the first blame and used by all the others
+	 */
+	private synchronized Repository getBlamedRepository(ObjectId head) throws IOException {
+		if (commits.getBeforeCutoff() == null)
+			return repository;
+		
+		if (cutoffRepository == null)
+			cutoffRepository = new CutoffRepository(repository, CutoffRepository.findBoundaries(repository, head,
+					commits));
+		
+		return cutoffRepository;
+	}
+	
+	private Result compute(String file, BlameGenerator blame, long start) throws IOException {
+		RawText contents = blame.getResultContents();
+		CommitInfo[] lines = new CommitInfo[contents.size()];
+		boolean[] found = new boolean[lines.length];
+		int remaining = lines.length;
+		
+		boolean checkBudget = !budget.isUnlimited();
+		Set<RevCommit> seen = budget.limitsCommits() ? new HashSet<RevCommit>() : null;
+		
+		RevCommit lastCommit = null;
+		CommitInfo lastInfo = null;
+		boolean truncated = false;
+		
+		while (remaining > 0) {
+			try {
+				if (!blame.next())
+					break;
+			} catch (OutOfTimeException e) {
+				// The generator is left in the middle of a diff, but it is not used again
+				truncate(file, lines, found, lastInfo);
+				truncated = true;
+				break;
+			}
+			
+			RevCommit commit = blame.getSourceCommit();
+			
+			// Consecutive regions usually come from the same commit
+			if (commit != lastCommit) {
+				lastInfo = commit == null ? null : commits.get(commit);
+				lastCommit = commit;
+				
+				if (seen != null && commit != null)
+					seen.add(commit);
+			}
+			
+			for (int i = blame.getResultStart(); i < blame.getResultEnd(); i++) {
+				if (found[i])
+					continue;
+				
+				lines[i] = lastInfo;
+				found[i] = true;
+				remaining--;
+			}
+			
+			if (lastInfo != null && lastInfo == commits.getBeforeCutoff()) {
+				for (int i = 0; i < lines.length; i++)
+					if (!found[i])
+						lines[i] = lastInfo;
+				break;
+			}
+			
+			if (checkBudget && remaining > 0 && budget.isOver(start, seen == null ? 0 : seen.size())) {
+				truncate(file, lines, found, lastInfo);
+				truncated = true;
+				break;
+			}
+		}
+		
+		return new Result(contents, lines, truncated);
+	}
+	
+	private void truncate(String file, CommitInfo[] lines, boolean[] found, CommitInfo lastInfo) {
+		CommitInfo boundary = lastInfo != null ? lastInfo : CommitDictionary.TRUNCATED;
+		for (int i = 0; i < lines.length; i++)
+			if (!found[i])
+				lines[i] = boundary;
+		
+		budget.truncated(file);
+	}
+	
+	/**
+	 * The histogram diff that BlameGenerator uses by default, but it stops the walk when the time of the budget is over
+	 */
+	private static class DeadlineDiff extends DiffAlgorithm {
+		private final DiffAlgorithm diff = new HistogramDiff();
+		private final BlameBudget budget;
+		private final long start;
+		
+		DeadlineDiff(BlameBudget budget, long start) {
+			this.budget = budget;
+			this.start = start;
+		}
+		
+		@Override
+		public <S extends Sequence> EditList diff(SequenceComparator<? super S> cmp, S a, S b) {
+			if (budget.isOutOfTime(start))
+				throw new OutOfTimeException();
+			
+			return diff.diff(cmp, a, b);
+		}
+		
+		@Override
+		public <S extends Sequence> EditList diffNonCommon(SequenceComparator<? super S> cmp, S a, S b) {
+			return diff.diffNonCommon(cmp, a, b);
+		}
+	}
+	
+	private static class OutOfTimeException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+	
+	private static class Result implements FileBlame {
+		private final RawText contents;
+		private final CommitInfo[] lines;
+		private final boolean truncated;
+		
+		Result(RawText contents, CommitInfo[] lines, boolean truncated) {
+			this.contents = contents;
+			this.lines = lines;
+			this.truncated = truncated;
+		}
+		
+		@Override
+		public RawText getContents() {
+			return contents;
+		}
+		
+		@Override
+		public CommitInfo getCommit(int line) {
+			return lines[line];
+		}
+		
+		@Override
+		public boolean isTruncated() {
+			return truncated;
+		}
+	}
+}
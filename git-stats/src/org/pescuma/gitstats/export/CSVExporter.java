@@ -0,0 +1,78 @@
+package org.pescuma.gitstats.export;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+
+import org.pescuma.gitstats.table.ColumnarTable;
+import org.pescuma.gitstats.table.SortedRuns;
+
+import au.com.bytecode.opencsv.CSVWriter;
+
+/**
+ * Writes the table in the same layout as DataTableSerialization.saveAsCSV (the value followed by the columns), one
+ * row at a time, so the memory used does not depend on the size of the table.
+ */
+public class CSVExporter {
+	
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	public static void export(ColumnarTable data, File output) throws IOException {
+		CSVWriter writer = open(output);
+		try {
+			
+			String[] line = new String[data.getColumnCount() + 1];
+			for (int row = 0; row < data.size(); row++) {
+				line[0] = formatValue(data.getValue(row));
+				for (int col = 0; col < data.getColumnCount(); col++)
+					line[col + 1] = data.getColumn(row, col);
+				
+				writer.writeNext(line);
+			}
+			
+		} finally {
+			writer.close();
+		}
+	}
+	
+	/**
+	 * Writes the rows while they are merged, without loading them in memory.
+	 */
+	public static void export(SortedRuns runs, File output) throws IOException {
+		final CSVWriter writer = open(output);
+		try {
+			
+			runs.merge(new SortedRuns.Sink() {
+				String[] line;
+				
+				@Override
+				public void add(double value, String[] columns) {
+					if (line == null)
+						line = new String[columns.length + 1];
+					
+					line[0] = formatValue(value);
+					System.arraycopy(columns, 0, line, 1, columns.length);
+					
+					writer.writeNext(line);
+				}
+			});
+			
+		} finally {
+			writer.close();
+		}
+	}
+	
+	private static CSVWriter open(File output) throws IOException {
+		return new CSVWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output),
+				Charset.forName("UTF-8")), BUFFER_SIZE));
+	}
+	
+	static String formatValue(double value) {
+		if (value == Math.rint(value) && Math.abs(value) < Long.MAX_VALUE)
+			return Long.toString((long) value);
+		return Double.toString(value);
+	}
+}
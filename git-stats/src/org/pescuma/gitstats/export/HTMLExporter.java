@@ -0,0 +1,203 @@
+package org.pescuma.gitstats.export;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.pescuma.gitstats.Consts;
+import org.pescuma.gitstats.Json;
+import org.pescuma.gitstats.table.ColumnarTable;
+import org.pescuma.gitstats.table.Dictionary;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Fills the index.html template, writing the data directly to the file instead of building the whole page in memory.
+ *
+ * The data is written as JSON, by column: the distinct values of each column, the code of each row in each column (an
+ * index in the values of the column) and the value of each row. The page parses it with JSON.parse, which is much
+ * faster than running a statement per row, and the repeated strings are written only once. It can also be compressed
+ * with deflate and written as base64, to be inflated by the page.
+ */
+public class HTMLExporter {
+	
+	private static final String MARKER = "$$$";
+	private static final String DATA = "data";
+	private static final String HAS_SNAPSHOTS = "hasSnapshots";
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	/**
+	 * @param variables values of the other placeholders in the template ($$$name$$$)
+	 */
+	public static void export(ColumnarTable data, Map<String, String> variables, File output) throws IOException {
+		export(data, variables, output, false);
+	}
+	
+	/**
+	 * @param variables values of the other placeholders in the template ($$$name$$$)
+	 * @param compress if the data should be compressed
+	 */
+	public static void export(ColumnarTable data, Map<String, String> variables, File output, boolean compress)
+			throws IOException {
+		String template = readTemplate();
+		
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), Charset.forName("UTF-8")),
+				BUFFER_SIZE);
+		try {
+			
+			int pos = 0;
+			while (true) {
+				int start = template.indexOf(MARKER, pos);
+				if (start < 0)
+					break;
+				
+				int end = template.indexOf(MARKER, start + MARKER.length());
+				if (end < 0)
+					break;
+				
+				out.write(template, pos, start - pos);
+				
+				String name = template.substring(start + MARKER.length(), end);
+				if (name.equals(DATA) && compress)
+					writeCompressedData(out, data);
+				else if (name.equals(DATA))
+					writeData(out, data);
+				else if (name.equals(HAS_SNAPSHOTS))
+					out.write(Boolean.toString(data.getColumnCount() > Consts.NUM_COLUMNS));
+				else if (variables.containsKey(name))
+					out.write(variables.get(name));
+				else
+					out.write(template, start, end + MARKER.length() - start);
+				
+				pos = end + MARKER.length();
+			}
+			
+			out.write(template, pos, template.length() - pos);
+			
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Writes something like {"columns":[["Java","XML"],["Code"]],"codes":[[0,1,0],[0,0,0]],"values":[10,2,5.5]}
+	 */
+	private static void writeData(Writer out, ColumnarTable data) throws IOException {
+		int numColumns = data.getColumnCount();
+		int[][] codes = new int[numColumns][];
+		
+		out.write("{\"columns\":[");
+		for (int col = 0; col < numColumns; col++) {
+			if (col > 0)
+				out.write(",");
+			codes[col] = writeValues(out, data, col);
+		}
+		
+		out.write("],\n\"codes\":[");
+		for (int col = 0; col < numColumns; col++) {
+			if (col > 0)
+				out.write(",\n");
+			out.write("[");
+			for (int row = 0; row < data.size(); row++) {
+				if (row > 0)
+					out.write(",");
+				out.write(Integer.toString(codes[col][data.getCode(row, col)]));
+			}
+			out.write("]");
+		}
+		
+		out.write("],\n\"values\":[");
+		for (int row = 0; row < data.size(); row++) {
+			if (row > 0)
+				out.write(",");
+			double value = data.getValue(row);
+			if (value == Math.rint(value) && Math.abs(value) < Long.MAX_VALUE)
+				out.write(Long.toString((long) value));
+			else
+				out.write(Double.toString(value));
+		}
+		out.write("]}");
+	}
+	
+	/**
+	 * Writes the values of the column that are used by the rows, in the order they are first used, as a JSON array
+	 *
+	 * @return the new code of each code of the column
+	 */
+	private static int[] writeValues(Writer out, ColumnarTable data, int col) throws IOException {
+		// The dictionary may be shared with other tables, so it can have values that are not used here
+		Dictionary dictionary = data.getDictionary(col);
+		int[] codes = new int[dictionary.size()];
+		Arrays.fill(codes, -1);
+		
+		int size = 0;
+		out.write("[");
+		for (int row = 0; row < data.size(); row++) {
+			int code = data.getCode(row, col);
+			if (codes[code] >= 0)
+				continue;
+			
+			codes[code] = size;
+			if (size > 0)
+				out.write(",");
+			// </script> would end the script tag the data is in
+			out.write(Json.quote(dictionary.decode(code)).replace("</", "<\\/"));
+			size++;
+		}
+		out.write("]");
+		
+		return codes;
+	}
+	
+	/**
+	 * Writes {"compressed":"<base64 of the deflated data>"}
+	 */
+	private static void writeCompressedData(Writer out, ColumnarTable data) throws IOException {
+		out.write("{\"compressed\":\"");
+		
+		// Closing the base64 stream writes its padding, but must not close the file
+		Writer shield = new FilterWriter(out) {
+			@Override
+			public void close() throws IOException {
+				flush();
+			}
+		};
+		
+		// A Deflater given to the stream is not ended by it, and its native memory is only freed by the GC otherwise
+		Deflater deflater = new Deflater();
+		try {
+			
+			OutputStream compressed = new DeflaterOutputStream(BaseEncoding.base64().encodingStream(shield), deflater,
+					BUFFER_SIZE);
+			Writer json = new BufferedWriter(new OutputStreamWriter(compressed, Charset.forName("UTF-8")), BUFFER_SIZE);
+			writeData(json, data);
+			json.close();
+			
+		} finally {
+			deflater.end();
+		}
+		
+		out.write("\"}");
+	}
+	
+	private static String readTemplate() throws IOException {
+		InputStream in = HTMLExporter.class.getResourceAsStream("/org/pescuma/gitstats/export/index.html");
+		try {
+			return IOUtils.toString(in, "UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+}
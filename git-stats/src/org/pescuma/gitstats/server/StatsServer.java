@@ -0,0 +1,379 @@
+package org.pescuma.gitstats.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.pescuma.gitstats.Args;
+import org.pescuma.gitstats.Consts;
+import org.pescuma.gitstats.IncrementalFilter;
+import org.pescuma.gitstats.Json;
+import org.pescuma.gitstats.Metrics;
+import org.pescuma.gitstats.ReportCube;
+import org.pescuma.gitstats.ReportCube.Stats;
+import org.pescuma.gitstats.RepositoryProcessor;
+import org.pescuma.gitstats.Snapshot;
+import org.pescuma.gitstats.SnapshotLoader;
+import org.pescuma.gitstats.table.ColumnarTable;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Predicate;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Keeps the data in memory and answers queries over HTTP, only on the loopback interface.
+ *
+ * GET /api/stats returns the same totals shown in the console, as JSON. It accepts the parameters author, language
+ * and exclude-path, each one can be used multiple times.
+ *
+ * The repositories are checked periodically and, when HEAD moves, only the files that changed are processed again.
+ * POST /api/refresh does the same check immediately.
+ *
+ * The published tables are never changed after they are created, so the queries don't need locks.
+ */
+public class StatsServer {
+	
+	private final Args args;
+	private final List<File> repositories;
+	private final ColumnarTable snapshotData;
+	private final Map<File, Repository> opened = new HashMap<File, Repository>();
+	private volatile State state;
+	
+	private static class State {
+		final ColumnarTable repositoryData;
+		final ColumnarTable data;
+		final Snapshot snapshot;
+		final Date updated = new Date();
+		
+		State(ColumnarTable repositoryData, ColumnarTable data, Snapshot snapshot) {
+			this.repositoryData = repositoryData;
+			this.data = data;
+			this.snapshot = snapshot;
+		}
+	}
+	
+	private StatsServer(Args args, List<File> repositories, ColumnarTable snapshotData) {
+		this.args = args;
+		this.repositories = repositories;
+		this.snapshotData = snapshotData;
+	}
+	
+	public static int serve(Args args, List<File> repositories, List<File> snapshotFiles) throws IOException {
+		ColumnarTable snapshotData = new ColumnarTable(Consts.NUM_COLUMNS);
+		new SnapshotLoader(args).loadAll(snapshotData, snapshotFiles, new Snapshot());
+		
+		StatsServer server = new StatsServer(args, repositories, snapshotData);
+		server.refresh(true);
+		server.start();
+		
+		return 0;
+	}
+	
+	private void start() throws IOException {
+		HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), args.port), 0);
+		http.createContext("/api/stats", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				handleStats(exchange);
+			}
+		});
+		http.createContext("/api/refresh", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				handleRefresh(exchange);
+			}
+		});
+		http.setExecutor(Executors.newFixedThreadPool(4, daemonThreads("git-stats http")));
+		
+		final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(daemonThreads(
+				"git-stats refresh"));
+		refresher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				refreshLoggingErrors();
+			}
+		}, args.refreshInterval, args.refreshInterval, TimeUnit.SECONDS);
+		
+		http.start();
+		
+		System.out.println();
+		System.out.println("Serving on http://127.0.0.1:" + args.port + "/api/stats");
+		
+		// The other threads are daemons, so keep the main one alive
+		while (true) {
+			try {
+				Thread.sleep(Long.MAX_VALUE);
+			} catch (InterruptedException e) {
+				refresher.shutdownNow();
+				http.stop(0);
+				return;
+			}
+		}
+	}
+	
+	private void refreshLoggingErrors() {
+		try {
+			refresh(false);
+		} catch (Exception e) {
+			System.out.println("Error refreshing the data: " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Processes the repositories again if the HEAD of any of them moved. Files that did not change keep the data from
+	 * the last run.
+	 */
+	private synchronized boolean refresh(boolean force) throws IOException {
+		State old = state;
+		
+		if (!force && old != null && !headsMoved(old.snapshot))
+			return false;
+		
+		Snapshot snapshot = new Snapshot();
+		if (old != null)
+			snapshot.loadPrevious(old.snapshot);
+		
+		ColumnarTable repositoryData = new ColumnarTable(Consts.NUM_COLUMNS);
+		try {
+			RepositoryProcessor.process(repositoryData, args, repositories, snapshot, Metrics.DISABLED, null);
+		} catch (GitAPIException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+		
+		if (old != null)
+			repositoryData.inc(IncrementalFilter.removeChanged(old.repositoryData, snapshot));
+		
+		ColumnarTable data = new ColumnarTable(Consts.NUM_COLUMNS);
+		data.inc(snapshotData);
+		data.inc(repositoryData);
+		
+		state = new State(repositoryData, data, snapshot);
+		return true;
+	}
+	
+	private boolean headsMoved(Snapshot snapshot) throws IOException {
+		for (File path : repositories) {
+			Repository repository = open(path);
+			if (repository == null)
+				continue;
+			
+			ObjectId head = repository.resolve(Constants.HEAD);
+			if (head != null && !head.equals(snapshot.getCurrentCommit(repository.getWorkTree())))
+				return true;
+		}
+		return false;
+	}
+	
+	private Repository open(File path) {
+		if (opened.containsKey(path))
+			return opened.get(path);
+		
+		Repository result;
+		try {
+			result = new FileRepositoryBuilder().readEnvironment().findGitDir(path).build();
+		} catch (Exception e) {
+			result = null;
+		}
+		
+		opened.put(path, result);
+		return result;
+	}
+	
+	private void handleRefresh(HttpExchange exchange) throws IOException {
+		if (!exchange.getRequestMethod().equals("POST")) {
+			send(exchange, 405, "{\"error\":\"Use POST\"}");
+			return;
+		}
+		
+		boolean refreshed;
+		try {
+			refreshed = refresh(false);
+		} catch (Exception e) {
+			send(exchange, 500, "{\"error\":" + Json.quote(String.valueOf(e.getMessage())) + "}");
+			return;
+		}
+		
+		send(exchange, 200, "{\"refreshed\":" + refreshed + "}");
+	}
+	
+	private void handleStats(HttpExchange exchange) throws IOException {
+		if (!exchange.getRequestMethod().equals("GET")) {
+			send(exchange, 405, "{\"error\":\"Use GET\"}");
+			return;
+		}
+		
+		State current = state;
+		Map<String, List<String>> params = parseQuery(exchange.getRequestURI().getRawQuery());
+		
+		ReportCube cube = ReportCube.build(filter(current.data, params));
+		
+		StringBuilder out = new StringBuilder();
+		out.append("{\"updated\":").append(current.updated.getTime());
+		out.append(",\"commits\":{");
+		boolean first = true;
+		for (Map.Entry<String, String> commit : current.snapshot.getCurrentCommits().entrySet()) {
+			if (!first)
+				out.append(',');
+			first = false;
+			out.append(Json.quote(commit.getKey())).append(':').append(Json.quote(commit.getValue()));
+		}
+		out.append("},\"total\":");
+		appendStats(out, cube.getTotal());
+		appendGroups(out, "authors", sort(cube.getGroups(Consts.COL_AUTHOR), ReportCube.byLinesDescending()));
+		appendGroups(out, "languages", sort(cube.getGroups(Consts.COL_LANGUAGE), ReportCube.byLinesDescending()));
+		appendGroups(out, "months", sort(cube.getGroups(Consts.COL_MONTH), ReportCube.byName()));
+		out.append('}');
+		
+		send(exchange, 200, out.toString());
+	}
+	
+	private static ColumnarTable filter(ColumnarTable data, Map<String, List<String>> params) {
+		final List<String> authors = get(params, "author");
+		if (!authors.isEmpty()) {
+			data = data.filter(Consts.COL_AUTHOR, new Predicate<String>() {
+				@Override
+				public boolean apply(String author) {
+					return authors.contains(author);
+				}
+			});
+		}
+		
+		final List<String> languages = get(params, "language");
+		if (!languages.isEmpty()) {
+			data = data.filter(Consts.COL_LANGUAGE, new Predicate<String>() {
+				@Override
+				public boolean apply(String language) {
+					return languages.contains(language);
+				}
+			});
+		}
+		
+		final List<String> excludedPaths = new ArrayList<String>();
+		for (String path : get(params, "exclude-path"))
+			excludedPaths.add(SnapshotLoader.normalizePath(path));
+		if (!excludedPaths.isEmpty()) {
+			data = data.filter(Consts.COL_FILE, new Predicate<String>() {
+				@Override
+				public boolean apply(String file) {
+					for (String excluded : excludedPaths) {
+						if (file.startsWith(excluded))
+							return false;
+					}
+					return true;
+				}
+			});
+		}
+		
+		return data;
+	}
+	
+	private static void appendGroups(StringBuilder out, String name, List<Stats> groups) {
+		out.append(',').append(Json.quote(name)).append(":[");
+		for (int i = 0; i < groups.size(); i++) {
+			if (i > 0)
+				out.append(',');
+			appendStats(out, groups.get(i));
+		}
+		out.append(']');
+	}
+	
+	private static void appendStats(StringBuilder out, Stats stats) {
+		out.append("{\"name\":").append(Json.quote(stats.name));
+		out.append(",\"lines\":").append((long) stats.lines);
+		out.append(",\"code\":").append((long) stats.code);
+		out.append(",\"comment\":").append((long) stats.comment);
+		out.append(",\"empty\":").append((long) stats.empty);
+		out.append(",\"unblamable\":").append((long) stats.unblamable);
+		out.append(",\"files\":").append(stats.files);
+		out.append(",\"commits\":").append(stats.commits);
+		out.append(",\"languages\":").append(stats.languages);
+		out.append(",\"authors\":").append(stats.authors);
+		out.append(",\"firstMonth\":").append(Json.quote(stats.firstMonth));
+		out.append(",\"lastMonth\":").append(Json.quote(stats.lastMonth));
+		out.append('}');
+	}
+	
+	private static List<Stats> sort(List<Stats> stats, Comparator<Stats> comparator) {
+		Collections.sort(stats, comparator);
+		return stats;
+	}
+	
+	private static List<String> get(Map<String, List<String>> params, String name) {
+		List<String> result = params.get(name);
+		if (result == null)
+			return Collections.emptyList();
+		return result;
+	}
+	
+	private static Map<String, List<String>> parseQuery(String query) throws UnsupportedEncodingException {
+		Map<String, List<String>> result = new HashMap<String, List<String>>();
+		if (query == null)
+			return result;
+		
+		for (String param : query.split("&")) {
+			if (param.isEmpty())
+				continue;
+			
+			int pos = param.indexOf('=');
+			String name = URLDecoder.decode(pos < 0 ? param : param.substring(0, pos), "UTF-8");
+			String value = (pos < 0 ? "" : URLDecoder.decode(param.substring(pos + 1), "UTF-8"));
+			
+			List<String> values = result.get(name);
+			if (values == null) {
+				values = new ArrayList<String>();
+				result.put(name, values);
+			}
+			values.add(value);
+		}
+		
+		return result;
+	}
+	
+	private static void send(HttpExchange exchange, int status, String json) throws IOException {
+		byte[] body = json.getBytes(Charsets.UTF_8);
+		
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(body);
+		} finally {
+			out.close();
+		}
+	}
+	
+	private static ThreadFactory daemonThreads(final String name) {
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread result = new Thread(runnable, name);
+				result.setDaemon(true);
+				return result;
+			}
+		};
+	}
+}
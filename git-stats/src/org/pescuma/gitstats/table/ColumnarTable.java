@@ -0,0 +1,394 @@
+package org.pescuma.gitstats.table;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.pescuma.datatable.DataTable;
+import org.pescuma.datatable.DataTable.Line;
+import org.pescuma.datatable.MemoryDataTable;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+
+/**
+ * A table of values indexed by a fixed number of string columns, like {@link MemoryDataTable}, but that stores each
+ * column value only once (in a {@link Dictionary}) and keeps the rows in primitive arrays.
+ *
+ * Tables created by {@link #filter}, {@link #mapColumn} and {@link #groupBy} share the dictionaries with the original
+ * table, so they must be used from the same thread. Not thread safe.
+ */
+public class ColumnarTable implements RowSink {
+	
+	private static final int INITIAL_CAPACITY = 16;
+	
+	private final Dictionary[] dictionaries;
+	private final int numColumns;
+	private int[] codes;
+	private double[] values;
+	private int size;
+	
+	// Open addressing hash of the rows: holds row + 1, 0 means empty
+	private int[] index;
+	private final int[] key;
+	
+	public ColumnarTable(int numColumns) {
+		this(createDictionaries(numColumns));
+	}
+	
+	private ColumnarTable(Dictionary[] dictionaries) {
+		this.dictionaries = dictionaries;
+		numColumns = dictionaries.length;
+		codes = new int[INITIAL_CAPACITY * numColumns];
+		values = new double[INITIAL_CAPACITY];
+		index = new int[INITIAL_CAPACITY * 2];
+		key = new int[numColumns];
+	}
+	
+	private static Dictionary[] createDictionaries(int numColumns) {
+		Dictionary[] result = new Dictionary[numColumns];
+		for (int i = 0; i < numColumns; i++)
+			result[i] = new Dictionary();
+		return result;
+	}
+	
+	public int getColumnCount() {
+		return numColumns;
+	}
+	
+	public Dictionary getDictionary(int column) {
+		return dictionaries[column];
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public double getValue(int row) {
+		return values[row];
+	}
+	
+	public int getCode(int row, int column) {
+		return codes[row * numColumns + column];
+	}
+	
+	public String getColumn(int row, int column) {
+		return dictionaries[column].decode(codes[row * numColumns + column]);
+	}
+	
+	public String[] getColumns(int row) {
+		String[] result = new String[numColumns];
+		for (int i = 0; i < numColumns; i++)
+			result[i] = getColumn(row, i);
+		return result;
+	}
+	
+	@Override
+	public void inc(double value, String... columns) {
+		if (columns.length != numColumns)
+			throw new IllegalArgumentException("Expected " + numColumns + " columns, got " + columns.length);
+		
+		for (int i = 0; i < numColumns; i++)
+			key[i] = dictionaries[i].encode(columns[i]);
+		
+		incCodes(value, key);
+	}
+	
+	/**
+	 * @param rowCodes the codes of the columns, from the dictionaries of this table
+	 */
+	public void incCodes(double value, int[] rowCodes) {
+		int row = findRow(rowCodes, true);
+		values[row] += value;
+	}
+	
+	public void inc(ColumnarTable other) {
+		if (other.numColumns != numColumns)
+			throw new IllegalArgumentException("Expected " + numColumns + " columns, got " + other.numColumns);
+		
+		if (Arrays.equals(other.dictionaries, dictionaries)) {
+			for (int row = 0; row < other.size; row++) {
+				System.arraycopy(other.codes, row * numColumns, key, 0, numColumns);
+				incCodes(other.values[row], key);
+			}
+			return;
+		}
+		
+		int[][] translation = new int[numColumns][];
+		for (int i = 0; i < numColumns; i++) {
+			translation[i] = new int[other.dictionaries[i].size()];
+			Arrays.fill(translation[i], -1);
+		}
+		
+		for (int row = 0; row < other.size; row++) {
+			for (int i = 0; i < numColumns; i++) {
+				int code = other.codes[row * numColumns + i];
+				
+				int translated = translation[i][code];
+				if (translated < 0) {
+					translated = dictionaries[i].encode(other.dictionaries[i].decode(code));
+					translation[i][code] = translated;
+				}
+				
+				key[i] = translated;
+			}
+			
+			incCodes(other.values[row], key);
+		}
+	}
+	
+	public void inc(DataTable other) {
+		String[] columns = new String[numColumns];
+		for (Line line : other.getLines()) {
+			for (int i = 0; i < numColumns; i++)
+				columns[i] = line.getColumn(i);
+			
+			inc(line.getValue(), columns);
+		}
+	}
+	
+	/**
+	 * @return a rough estimate of the heap used by the table, including its dictionaries
+	 */
+	public long estimateBytes() {
+		long result = codes.length * 4L + values.length * 8L + index.length * 4L;
+		for (Dictionary dictionary : dictionaries)
+			result += dictionary.estimateBytes();
+		return result;
+	}
+	
+	public double get(String... columns) {
+		for (int i = 0; i < numColumns; i++) {
+			key[i] = dictionaries[i].find(columns[i]);
+			if (key[i] < 0)
+				return 0;
+		}
+		
+		int row = findRow(key, false);
+		if (row < 0)
+			return 0;
+		
+		return values[row];
+	}
+	
+	public double sum() {
+		double result = 0;
+		for (int row = 0; row < size; row++)
+			result += values[row];
+		return result;
+	}
+	
+	public Set<String> getDistinct(int column) {
+		Dictionary dictionary = dictionaries[column];
+		boolean[] seen = new boolean[dictionary.size()];
+		
+		Set<String> result = new HashSet<String>();
+		for (int row = 0; row < size; row++) {
+			int code = codes[row * numColumns + column];
+			if (!seen[code]) {
+				seen[code] = true;
+				result.add(dictionary.decode(code));
+			}
+		}
+		return result;
+	}
+	
+	public ColumnarTable filter(int column, String value) {
+		ColumnarTable result = new ColumnarTable(dictionaries);
+		
+		int code = dictionaries[column].find(value);
+		if (code < 0)
+			return result;
+		
+		for (int row = 0; row < size; row++)
+			if (codes[row * numColumns + column] == code)
+				result.copyRow(this, row);
+		
+		return result;
+	}
+	
+	public ColumnarTable filter(int column, Predicate<String> predicate) {
+		Dictionary dictionary = dictionaries[column];
+		
+		// Evaluate the predicate only once per distinct value
+		boolean[] accepted = new boolean[dictionary.size()];
+		for (int code = 0; code < accepted.length; code++)
+			accepted[code] = predicate.apply(dictionary.decode(code));
+		
+		ColumnarTable result = new ColumnarTable(dictionaries);
+		for (int row = 0; row < size; row++)
+			if (accepted[codes[row * numColumns + column]])
+				result.copyRow(this, row);
+		
+		return result;
+	}
+	
+	/**
+	 * @return a table with only the rows whose bits are set
+	 */
+	public ColumnarTable filterRows(BitSet rows) {
+		ColumnarTable result = new ColumnarTable(dictionaries);
+		for (int row = rows.nextSetBit(0); row >= 0 && row < size; row = rows.nextSetBit(row + 1))
+			result.copyRow(this, row);
+		return result;
+	}
+	
+	/**
+	 * Changes the values of the column. The function is evaluated only once per distinct value and, when it returns
+	 * null, the value is not changed.
+	 */
+	public ColumnarTable mapColumn(int column, Function<String, String> function) {
+		return mapColumn(column, column, function);
+	}
+	
+	/**
+	 * Changes the values of the column based on the values of another column (for example, the language based on the
+	 * file name). The function is evaluated only once per distinct value of the source column and, when it returns
+	 * null, the value is not changed.
+	 */
+	public ColumnarTable mapColumn(int column, int sourceColumn, Function<String, String> function) {
+		Dictionary source = dictionaries[sourceColumn];
+		
+		int[] mapped = new int[source.size()];
+		for (int code = 0; code < mapped.length; code++) {
+			String value = function.apply(source.decode(code));
+			mapped[code] = (value == null ? -1 : dictionaries[column].encode(value));
+		}
+		
+		ColumnarTable result = new ColumnarTable(dictionaries);
+		for (int row = 0; row < size; row++) {
+			System.arraycopy(codes, row * numColumns, key, 0, numColumns);
+			
+			int code = mapped[key[sourceColumn]];
+			if (code >= 0)
+				key[column] = code;
+			
+			result.incCodes(values[row], key);
+		}
+		
+		return result;
+	}
+	
+	public ColumnarTable groupBy(int... columns) {
+		Dictionary[] groupDictionaries = new Dictionary[columns.length];
+		for (int i = 0; i < columns.length; i++)
+			groupDictionaries[i] = dictionaries[columns[i]];
+		
+		ColumnarTable result = new ColumnarTable(groupDictionaries);
+		int[] groupKey = new int[columns.length];
+		for (int row = 0; row < size; row++) {
+			for (int i = 0; i < columns.length; i++)
+				groupKey[i] = codes[row * numColumns + columns[i]];
+			
+			result.incCodes(values[row], groupKey);
+		}
+		
+		return result;
+	}
+	
+	public DataTable toDataTable() {
+		DataTable result = new MemoryDataTable();
+		for (int row = 0; row < size; row++)
+			result.inc(values[row], getColumns(row));
+		return result;
+	}
+	
+	public static ColumnarTable fromDataTable(DataTable table, int numColumns) {
+		ColumnarTable result = new ColumnarTable(numColumns);
+		result.inc(table);
+		return result;
+	}
+	
+	private void copyRow(ColumnarTable other, int row) {
+		System.arraycopy(other.codes, row * numColumns, key, 0, numColumns);
+		incCodes(other.values[row], key);
+	}
+	
+	private int findRow(int[] rowKey, boolean create) {
+		int mask = index.length - 1;
+		int pos = hash(rowKey) & mask;
+		
+		while (true) {
+			int entry = index[pos];
+			if (entry == 0)
+				break;
+			
+			int row = entry - 1;
+			if (sameKey(row, rowKey))
+				return row;
+			
+			pos = (pos + 1) & mask;
+		}
+		
+		if (!create)
+			return -1;
+		
+		if (size == values.length)
+			grow();
+		
+		int row = size++;
+		System.arraycopy(rowKey, 0, codes, row * numColumns, numColumns);
+		values[row] = 0;
+		
+		if (size * 2 > index.length)
+			rehash();
+		else
+			index[pos] = row + 1;
+		
+		return row;
+	}
+	
+	private boolean sameKey(int row, int[] rowKey) {
+		int offset = row * numColumns;
+		for (int i = 0; i < numColumns; i++)
+			if (codes[offset + i] != rowKey[i])
+				return false;
+		return true;
+	}
+	
+	private int hash(int[] rowKey) {
+		int result = 1;
+		for (int i = 0; i < numColumns; i++)
+			result = 31 * result + rowKey[i];
+		return mix(result);
+	}
+	
+	private int hashRow(int row) {
+		int result = 1;
+		int offset = row * numColumns;
+		for (int i = 0; i < numColumns; i++)
+			result = 31 * result + codes[offset + i];
+		return mix(result);
+	}
+	
+	// Spread the bits, because the codes are small sequential numbers
+	private static int mix(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		return hash;
+	}
+	
+	private void grow() {
+		int capacity = values.length * 2;
+		codes = Arrays.copyOf(codes, capacity * numColumns);
+		values = Arrays.copyOf(values, capacity);
+	}
+	
+	private void rehash() {
+		index = new int[index.length * 2];
+		int mask = index.length - 1;
+		
+		for (int row = 0; row < size; row++) {
+			int pos = hashRow(row) & mask;
+			while (index[pos] != 0)
+				pos = (pos + 1) & mask;
+			index[pos] = row + 1;
+		}
+	}
+}
@@ -0,0 +1,245 @@
+package org.pescuma.gitstats.table;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Saves and loads a {@link ColumnarTable} in the .gstats binary format.
+ *
+ * The file starts with a header (magic, version and flags) followed by the dictionary of each column (the strings in
+ * UTF-8) and then the rows, each one with the codes of its columns and its value as varints. Integer values, the
+ * common case, take one or two bytes. If the file is compressed everything after the header is deflated.
+ *
+ * Uncompressed files are memory mapped when loaded and the strings are only decoded the first time a row uses them.
+ */
+public class ColumnarTableSerialization {
+	
+	private static final byte[] MAGIC = { 'G', 'S', 'T', 'A', 'T', 'S' };
+	private static final int VERSION = 1;
+	private static final int FLAG_COMPRESSED = 1;
+	private static final int VALUES_AS_LONGS = 0;
+	private static final int VALUES_AS_DOUBLES = 1;
+	private static final int HEADER_SIZE = MAGIC.length + 2;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	public static boolean isGStats(File file) {
+		return file.getName().endsWith(".gstats");
+	}
+	
+	public static void saveAsGStats(ColumnarTable table, File file, boolean compress) throws IOException {
+		// The streams don't end a Deflater they are given, so its native memory must be freed here
+		Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+		OutputStream stream = new FileOutputStream(file);
+		try {
+			
+			stream.write(MAGIC);
+			stream.write(VERSION);
+			stream.write(compress ? FLAG_COMPRESSED : 0);
+			
+			if (compress)
+				stream = new DeflaterOutputStream(stream, deflater, BUFFER_SIZE);
+			
+			// Closing the outer stream flushes the buffer and finishes the compression
+			stream = new DataOutputStream(new BufferedOutputStream(stream, BUFFER_SIZE));
+			writeTable((DataOutputStream) stream, table);
+			
+		} finally {
+			try {
+				stream.close();
+			} finally {
+				if (deflater != null)
+					deflater.end();
+			}
+		}
+	}
+	
+	private static void writeTable(DataOutputStream out, ColumnarTable table) throws IOException {
+		int numColumns = table.getColumnCount();
+		
+		writeVarint(out, numColumns);
+		for (int col = 0; col < numColumns; col++) {
+			Dictionary dictionary = table.getDictionary(col);
+			
+			writeVarint(out, dictionary.size());
+			for (int code = 0; code < dictionary.size(); code++) {
+				byte[] bytes = dictionary.decode(code).getBytes(UTF8);
+				writeVarint(out, bytes.length);
+				out.write(bytes);
+			}
+		}
+		
+		boolean longs = true;
+		for (int row = 0; row < table.size() && longs; row++)
+			longs = isLong(table.getValue(row));
+		
+		writeVarint(out, table.size());
+		out.write(longs ? VALUES_AS_LONGS : VALUES_AS_DOUBLES);
+		
+		for (int row = 0; row < table.size(); row++) {
+			for (int col = 0; col < numColumns; col++)
+				writeVarint(out, table.getCode(row, col));
+			
+			double value = table.getValue(row);
+			if (longs)
+				writeVarLong(out, zigZag((long) value));
+			else
+				out.writeDouble(value);
+		}
+	}
+	
+	private static boolean isLong(double value) {
+		return value == Math.rint(value) && Math.abs(value) < (1L << 53);
+	}
+	
+	/**
+	 * Adds the rows in the file to the table.
+	 */
+	public static void loadFromGStats(ColumnarTable table, File file) throws IOException {
+		ByteBuffer buffer = open(file);
+		
+		int numColumns = readVarint(buffer);
+		if (numColumns != table.getColumnCount())
+			throw new IOException(file + " has " + numColumns + " columns, expected " + table.getColumnCount());
+		
+		// Only the positions of the strings are read now, they are decoded when first used
+		int[][] offsets = new int[numColumns][];
+		int[][] translation = new int[numColumns][];
+		for (int col = 0; col < numColumns; col++) {
+			int count = readVarint(buffer);
+			offsets[col] = new int[count];
+			for (int code = 0; code < count; code++) {
+				offsets[col][code] = buffer.position();
+				int length = readVarint(buffer);
+				buffer.position(buffer.position() + length);
+			}
+			
+			translation[col] = new int[count];
+			Arrays.fill(translation[col], -1);
+		}
+		
+		int rows = readVarint(buffer);
+		boolean longs = (buffer.get() == VALUES_AS_LONGS);
+		
+		int[] key = new int[numColumns];
+		for (int row = 0; row < rows; row++) {
+			for (int col = 0; col < numColumns; col++) {
+				int code = readVarint(buffer);
+				
+				int translated = translation[col][code];
+				if (translated < 0) {
+					translated = table.getDictionary(col).encode(readString(buffer, offsets[col][code]));
+					translation[col][code] = translated;
+				}
+				
+				key[col] = translated;
+			}
+			
+			double value;
+			if (longs)
+				value = unZigZag(readVarLong(buffer));
+			else
+				value = buffer.getDouble();
+			
+			table.incCodes(value, key);
+		}
+	}
+	
+	private static ByteBuffer open(File file) throws IOException {
+		byte[] header = new byte[HEADER_SIZE];
+		int flags;
+		
+		InputStream in = new FileInputStream(file);
+		try {
+			ByteStreams.readFully(in, header);
+			
+			if (!Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC))
+				throw new IOException(file + " is not a .gstats file");
+			if (header[MAGIC.length] != VERSION)
+				throw new IOException(file + " has an unknown version: " + header[MAGIC.length]);
+			
+			flags = header[MAGIC.length + 1];
+			
+			if ((flags & FLAG_COMPRESSED) != 0) {
+				Inflater inflater = new Inflater();
+				try {
+					return ByteBuffer.wrap(ByteStreams.toByteArray(new InflaterInputStream(in, inflater, BUFFER_SIZE)));
+				} finally {
+					inflater.end();
+				}
+			}
+			
+		} finally {
+			in.close();
+		}
+		
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, channel.size() - HEADER_SIZE);
+		} finally {
+			raf.close();
+		}
+	}
+	
+	private static String readString(ByteBuffer buffer, int offset) {
+		ByteBuffer string = buffer.duplicate();
+		string.position(offset);
+		int length = readVarint(string);
+		
+		byte[] bytes = new byte[length];
+		string.get(bytes);
+		return new String(bytes, UTF8);
+	}
+	
+	static void writeVarint(DataOutputStream out, int value) throws IOException {
+		writeVarLong(out, value & 0xFFFFFFFFL);
+	}
+	
+	private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+	
+	private static int readVarint(ByteBuffer buffer) {
+		return (int) readVarLong(buffer);
+	}
+	
+	private static long readVarLong(ByteBuffer buffer) {
+		long result = 0;
+		for (int shift = 0;; shift += 7) {
+			byte b = buffer.get();
+			result |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return result;
+		}
+	}
+	
+	private static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+	
+	private static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
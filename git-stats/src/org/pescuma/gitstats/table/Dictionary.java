@@ -0,0 +1,60 @@
+package org.pescuma.gitstats.table;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps the values of a column to sequential int codes. Each distinct value is stored only once.
+ *
+ * Not thread safe.
+ */
+public class Dictionary {
+	
+	private final Map<String, Integer> codes = new HashMap<String, Integer>();
+	private final List<String> values = new ArrayList<String>();
+	private long chars;
+	
+	public int encode(String value) {
+		if (value == null)
+			value = "";
+		
+		Integer code = codes.get(value);
+		if (code == null) {
+			code = values.size();
+			codes.put(value, code);
+			values.add(value);
+			chars += value.length();
+		}
+		return code;
+	}
+	
+	/**
+	 * @return the code of the value or -1 if it is not in the dictionary
+	 */
+	public int find(String value) {
+		if (value == null)
+			value = "";
+		
+		Integer code = codes.get(value);
+		if (code == null)
+			return -1;
+		return code;
+	}
+	
+	public String decode(int code) {
+		return values.get(code);
+	}
+	
+	public int size() {
+		return values.size();
+	}
+	
+	/**
+	 * @return a rough estimate of the heap used, counting the string, the map entry and the list slot of each value
+	 */
+	public long estimateBytes() {
+		return values.size() * 100L + chars * 2;
+	}
+}
@@ -0,0 +1,68 @@
+package org.pescuma.gitstats.table;
+
+/**
+ * Minimal open addressing set of non zero longs.
+ *
+ * Not thread safe.
+ */
+public class LongHashSet {
+	
+	private long[] keys;
+	private int size;
+	
+	public LongHashSet() {
+		keys = new long[64];
+	}
+	
+	/**
+	 * @return true if the key was not in the set
+	 */
+	public boolean add(long key) {
+		if (key == 0)
+			throw new IllegalArgumentException("0 can't be stored");
+		
+		int mask = keys.length - 1;
+		int pos = mix(key) & mask;
+		
+		while (keys[pos] != 0) {
+			if (keys[pos] == key)
+				return false;
+			pos = (pos + 1) & mask;
+		}
+		
+		keys[pos] = key;
+		size++;
+		
+		if (size * 2 > keys.length)
+			rehash();
+		
+		return true;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	private void rehash() {
+		long[] old = keys;
+		keys = new long[old.length * 2];
+		int mask = keys.length - 1;
+		
+		for (long key : old) {
+			if (key == 0)
+				continue;
+			
+			int pos = mix(key) & mask;
+			while (keys[pos] != 0)
+				pos = (pos + 1) & mask;
+			keys[pos] = key;
+		}
+	}
+	
+	private static int mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+}
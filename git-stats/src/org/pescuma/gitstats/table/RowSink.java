@@ -0,0 +1,10 @@
+package org.pescuma.gitstats.table;
+
+/**
+ * Something that rows can be added to, like a table. Adding the same columns again adds to the value.
+ */
+public interface RowSink {
+	
+	void inc(double value, String... columns);
+	
+}
@@ -0,0 +1,341 @@
+package org.pescuma.gitstats.table;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps rows on disk, so tables bigger than the memory can be aggregated. Each call to {@link #add} writes the table
+ * to a new file (a run) with the rows sorted by their columns, and {@link #merge} reads all the runs at the same time,
+ * in order, adding the values of the rows that are in more than one run. Only one row per run is in memory while
+ * merging.
+ *
+ * Inside a run, a column with the same value as in the previous row is written as a single byte, so the sorted rows
+ * (that share the language, file, etc.) take little space.
+ *
+ * {@link #add} can be called by any thread. {@link #merge} must be called after all the runs were added.
+ */
+public class SortedRuns {
+	
+	private static final int MAX_OPEN_RUNS = 64;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private final File dir;
+	private final int numColumns;
+	private final List<File> runs = new ArrayList<File>();
+	private long rows;
+	
+	public interface Sink {
+		/**
+		 * The columns array is reused, so it must not be kept.
+		 */
+		void add(double value, String[] columns) throws IOException;
+	}
+	
+	public SortedRuns(File dir, int numColumns) {
+		this.dir = dir;
+		this.numColumns = numColumns;
+	}
+	
+	public synchronized boolean isEmpty() {
+		return runs.isEmpty();
+	}
+	
+	public synchronized int getRunCount() {
+		return runs.size();
+	}
+	
+	public synchronized long getRowCount() {
+		return rows;
+	}
+	
+	public synchronized long getBytes() {
+		long result = 0;
+		for (File run : runs)
+			result += run.length();
+		return result;
+	}
+	
+	/**
+	 * Writes the table to a new run. Empty tables are ignored.
+	 */
+	public void add(ColumnarTable table) throws IOException {
+		if (table.getColumnCount() != numColumns)
+			throw new IllegalArgumentException("Expected " + numColumns + " columns, got " + table.getColumnCount());
+		
+		if (table.isEmpty())
+			return;
+		
+		File file = createRunFile();
+		
+		RunWriter writer = new RunWriter(file, numColumns);
+		try {
+			
+			String[] columns = new String[numColumns];
+			for (int row : sortRows(table)) {
+				for (int col = 0; col < numColumns; col++)
+					columns[col] = table.getColumn(row, col);
+				
+				writer.add(table.getValue(row), columns);
+			}
+			
+		} finally {
+			writer.close();
+		}
+		
+		synchronized (this) {
+			runs.add(file);
+			rows += table.size();
+		}
+	}
+	
+	public void mergeInto(final ColumnarTable table) throws IOException {
+		merge(new Sink() {
+			@Override
+			public void add(double value, String[] columns) {
+				table.inc(value, columns);
+			}
+		});
+	}
+	
+	/**
+	 * Sends all the rows, sorted by their columns and with the values of the same columns added, to the sink. If there
+	 * are too many runs to open at the same time, some of them are first merged into bigger runs.
+	 */
+	public void merge(Sink sink) throws IOException {
+		List<File> files;
+		synchronized (this) {
+			files = new ArrayList<File>(runs);
+		}
+		
+		while (files.size() > MAX_OPEN_RUNS) {
+			List<File> group = files.subList(0, MAX_OPEN_RUNS);
+			File merged = createRunFile();
+			
+			RunWriter writer = new RunWriter(merged, numColumns);
+			try {
+				mergeFiles(group, writer);
+			} finally {
+				writer.close();
+			}
+			
+			synchronized (this) {
+				runs.removeAll(group);
+				runs.add(merged);
+			}
+			for (File file : group)
+				file.delete();
+			
+			List<File> remaining = new ArrayList<File>(files.subList(MAX_OPEN_RUNS, files.size()));
+			remaining.add(merged);
+			files = remaining;
+		}
+		
+		mergeFiles(files, sink);
+	}
+	
+	private void mergeFiles(List<File> files, Sink sink) throws IOException {
+		PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(Math.max(files.size(), 1),
+				new Comparator<RunReader>() {
+					@Override
+					public int compare(RunReader o1, RunReader o2) {
+						return compareColumns(o1.columns, o2.columns);
+					}
+				});
+		
+		List<RunReader> readers = new ArrayList<RunReader>();
+		try {
+			
+			for (File file : files) {
+				RunReader reader = new RunReader(file, numColumns);
+				readers.add(reader);
+				if (reader.next())
+					queue.add(reader);
+			}
+			
+			String[] current = null;
+			double value = 0;
+			
+			while (!queue.isEmpty()) {
+				RunReader reader = queue.poll();
+				
+				if (current != null && Arrays.equals(current, reader.columns)) {
+					value += reader.value;
+				} else {
+					if (current != null)
+						sink.add(value, current);
+					current = reader.columns.clone();
+					value = reader.value;
+				}
+				
+				if (reader.next())
+					queue.add(reader);
+			}
+			
+			if (current != null)
+				sink.add(value, current);
+			
+		} finally {
+			for (RunReader reader : readers)
+				reader.close();
+		}
+	}
+	
+	public synchronized void delete() {
+		for (File run : runs)
+			run.delete();
+		runs.clear();
+		rows = 0;
+	}
+	
+	private File createRunFile() throws IOException {
+		File file = File.createTempFile("git-stats-", ".run", dir);
+		file.deleteOnExit();
+		return file;
+	}
+	
+	private static int compareColumns(String[] a, String[] b) {
+		for (int i = 0; i < a.length; i++) {
+			int result = a[i].compareTo(b[i]);
+			if (result != 0)
+				return result;
+		}
+		return 0;
+	}
+	
+	/**
+	 * @return the rows of the table in the order of their column values
+	 */
+	private static Integer[] sortRows(final ColumnarTable table) {
+		final int numColumns = table.getColumnCount();
+		
+		// Compare the rank of the codes instead of the strings
+		final int[][] ranks = new int[numColumns][];
+		for (int col = 0; col < numColumns; col++) {
+			final Dictionary dictionary = table.getDictionary(col);
+			
+			Integer[] codes = new Integer[dictionary.size()];
+			for (int code = 0; code < codes.length; code++)
+				codes[code] = code;
+			
+			Arrays.sort(codes, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer o1, Integer o2) {
+					return dictionary.decode(o1).compareTo(dictionary.decode(o2));
+				}
+			});
+			
+			ranks[col] = new int[codes.length];
+			for (int rank = 0; rank < codes.length; rank++)
+				ranks[col][codes[rank]] = rank;
+		}
+		
+		Integer[] rows = new Integer[table.size()];
+		for (int row = 0; row < rows.length; row++)
+			rows[row] = row;
+		
+		Arrays.sort(rows, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				for (int col = 0; col < numColumns; col++) {
+					int r1 = ranks[col][table.getCode(o1, col)];
+					int r2 = ranks[col][table.getCode(o2, col)];
+					if (r1 != r2)
+						return r1 < r2 ? -1 : 1;
+				}
+				return 0;
+			}
+		});
+		
+		return rows;
+	}
+	
+	private static class RunWriter implements Sink {
+		private final DataOutputStream out;
+		private final String[] previous;
+		
+		RunWriter(File file, int numColumns) throws IOException {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+			previous = new String[numColumns];
+		}
+		
+		@Override
+		public void add(double value, String[] columns) throws IOException {
+			out.writeBoolean(true);
+			
+			for (int col = 0; col < columns.length; col++) {
+				if (columns[col].equals(previous[col])) {
+					ColumnarTableSerialization.writeVarint(out, 0);
+					continue;
+				}
+				
+				byte[] bytes = columns[col].getBytes(UTF8);
+				ColumnarTableSerialization.writeVarint(out, bytes.length + 1);
+				out.write(bytes);
+				previous[col] = columns[col];
+			}
+			
+			out.writeDouble(value);
+		}
+		
+		void close() throws IOException {
+			out.writeBoolean(false);
+			out.close();
+		}
+	}
+	
+	private static class RunReader {
+		private final DataInputStream in;
+		final String[] columns;
+		double value;
+		
+		RunReader(File file, int numColumns) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+			columns = new String[numColumns];
+		}
+		
+		boolean next() throws IOException {
+			if (!in.readBoolean())
+				return false;
+			
+			for (int col = 0; col < columns.length; col++) {
+				int length = readVarint(in);
+				if (length == 0)
+					continue;
+				
+				byte[] bytes = new byte[length - 1];
+				in.readFully(bytes);
+				columns[col] = new String(bytes, UTF8);
+			}
+			
+			value = in.readDouble();
+			return true;
+		}
+		
+		void close() throws IOException {
+			in.close();
+		}
+		
+		private static int readVarint(DataInputStream in) throws IOException {
+			int result = 0;
+			for (int shift = 0;; shift += 7) {
+				byte b = in.readByte();
+				result |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return result;
+			}
+		}
+	}
+}
@@ -1,76 +1,140 @@
 package org.pescuma.gitstats.threads;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.base.Throwables;
 
 public class ParallelLists {
 	
-	private final Thread[] threads;
+	private final int threadCount;
+	private Utilization utilization;
 	
 	public ParallelLists(int threadCount) {
-		threads = new Thread[threadCount];
+		this.threadCount = Math.max(threadCount, 1);
 	}
 	
 	public <T> void splitInThreads(List<T> items, final Callback<T> cb) {
-		if (threads.length == 1) {
-			try {
-				
-				cb.run(items);
-				
-			} catch (Exception e) {
-				throw new RuntimeException(e);
-			}
-			return;
-		}
+		splitInThreads(items, null, cb);
+	}
+	
+	/**
+	 * Process the items in parallel. If a cost is given, the most expensive items are processed first, so the cheap
+	 * ones fill the gaps at the end and the threads finish at about the same time.
+	 *
+	 * If any thread fails, the others stop getting new items and the first exception is thrown.
+	 */
+	public <T> void splitInThreads(List<T> items, final CostEstimator<T> cost, final Callback<T> cb) {
+		if (cost != null)
+			items = sortByCostDescending(items, cost);
 		
 		final ConcurrentLinkedQueue<T> queue = new ConcurrentLinkedQueue<T>(items);
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
 		
-		final Exception[] exceptions = new Exception[threads.length];
-		
-		for (int i = 0; i < threads.length; i++) {
-			final int index = i;
-			
-			threads[i] = new Thread() {
+		final Worker[] workers = new Worker[threadCount];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Worker() {
 				@Override
-				public void run() {
-					try {
-						
-						Iterable<T> iterable = createIterable(queue);
-						cb.run(iterable);
-						
-					} catch (Exception e) {
+				protected void process() throws Exception {
+					cb.run(createIterable(queue, stop, this));
+				}
+				
+				@Override
+				protected void onError(Throwable e) {
+					stop.set(true);
+					if (!error.compareAndSet(null, e))
+						// Only the first one is thrown, but the others shouldn't get lost
 						e.printStackTrace();
-						exceptions[index] = e;
-					}
 				}
 			};
 		}
 		
-		for (int i = 0; i < threads.length; i++)
-			threads[i].start();
+		long start = System.nanoTime();
+		
+		if (workers.length == 1)
+			workers[0].run();
+		else
+			runInThreads(workers, stop);
 		
+		utilization = new Utilization(System.nanoTime() - start, workers);
+		
+		if (error.get() != null)
+			throw Throwables.propagate(error.get());
+	}
+	
+	private void runInThreads(Worker[] workers, AtomicBoolean stop) {
+		Thread[] threads = new Thread[workers.length];
 		for (int i = 0; i < threads.length; i++) {
-			try {
-				threads[i].join();
-			} catch (InterruptedException e) {
-				// TODO
-				e.printStackTrace();
+			threads[i] = new Thread(workers[i], "git-stats worker " + (i + 1));
+			threads[i].start();
+		}
+		
+		try {
+			
+			for (Thread thread : threads)
+				thread.join();
+			
+		} catch (InterruptedException e) {
+			stop.set(true);
+			for (Thread thread : threads)
+				thread.interrupt();
+			
+			joinUninterruptibly(threads);
+			
+			Thread.currentThread().interrupt();
+			throw new CancellationException("Interrupted while waiting for the threads to finish");
+		}
+	}
+	
+	private static void joinUninterruptibly(Thread[] threads) {
+		boolean interrupted = false;
+		
+		for (Thread thread : threads) {
+			while (true) {
+				try {
+					thread.join();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
 			}
 		}
 		
-		List<Exception> exs = new ArrayList<Exception>();
-		for (int i = 0; i < threads.length; i++)
-			if (exceptions[i] != null)
-				exs.add(exceptions[i]);
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+	
+	private static <T> List<T> sortByCostDescending(List<T> items, final CostEstimator<T> cost) {
+		final List<Long> costs = new ArrayList<Long>(items.size());
+		List<Integer> order = new ArrayList<Integer>(items.size());
+		for (int i = 0; i < items.size(); i++) {
+			costs.add(cost.estimate(items.get(i)));
+			order.add(i);
+		}
+		
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return costs.get(o2).compareTo(costs.get(o1));
+			}
+		});
 		
-		if (exs.size() > 0)
-			// TODO
-			throw new RuntimeException(exs.get(0));
+		List<T> result = new ArrayList<T>(items.size());
+		for (Integer i : order)
+			result.add(items.get(i));
+		return result;
 	}
 	
-	private <T> Iterable<T> createIterable(final ConcurrentLinkedQueue<T> queue) {
+	private <T> Iterable<T> createIterable(final ConcurrentLinkedQueue<T> queue, final AtomicBoolean stop,
+			final Worker worker) {
 		return new Iterable<T>() {
 			@Override
 			public Iterator<T> iterator() {
@@ -79,7 +143,10 @@ public class ParallelLists {
 					
 					@Override
 					public boolean hasNext() {
-						if (next == null)
+						// Asking for the next one means the last one was processed
+						worker.itemFinished();
+						
+						if (next == null && !stop.get() && !Thread.currentThread().isInterrupted())
 							next = queue.poll();
 						
 						return next != null;
@@ -88,6 +155,7 @@ public class ParallelLists {
 					@Override
 					public T next() {
 						try {
+							worker.itemStarted();
 							return next;
 						} finally {
 							next = null;
@@ -102,7 +170,128 @@ public class ParallelLists {
 		};
 	}
 	
+	/**
+	 * @return the utilization of the threads in the last call to splitInThreads
+	 */
+	public Utilization getUtilization() {
+		return utilization;
+	}
+	
 	public interface Callback<T> {
 		void run(Iterable<T> t) throws Exception;
 	}
+	
+	public interface CostEstimator<T> {
+		/**
+		 * @return the estimated cost to process the item, in any unit, as long as it is the same for all items
+		 */
+		long estimate(T item);
+	}
+	
+	private static abstract class Worker implements Runnable {
+		long busyNanos;
+		int items;
+		long finishedAt;
+		private long itemStart = -1;
+		
+		@Override
+		public void run() {
+			try {
+				
+				process();
+				
+			} catch (Throwable e) {
+				onError(e);
+			} finally {
+				itemFinished();
+				finishedAt = System.nanoTime();
+			}
+		}
+		
+		void itemStarted() {
+			itemStart = System.nanoTime();
+			items++;
+		}
+		
+		void itemFinished() {
+			if (itemStart < 0)
+				return;
+			
+			busyNanos += System.nanoTime() - itemStart;
+			itemStart = -1;
+		}
+		
+		protected abstract void process() throws Exception;
+		
+		protected abstract void onError(Throwable e);
+	}
+	
+	public static class Utilization {
+		private final long wallNanos;
+		private final long[] busyNanos;
+		private final int[] items;
+		private final long idleTailNanos;
+		
+		Utilization(long wallNanos, Worker[] workers) {
+			this.wallNanos = wallNanos;
+			
+			busyNanos = new long[workers.length];
+			items = new int[workers.length];
+			long firstFinish = Long.MAX_VALUE;
+			long lastFinish = Long.MIN_VALUE;
+			for (int i = 0; i < workers.length; i++) {
+				busyNanos[i] = workers[i].busyNanos;
+				items[i] = workers[i].items;
+				firstFinish = Math.min(firstFinish, workers[i].finishedAt);
+				lastFinish = Math.max(lastFinish, workers[i].finishedAt);
+			}
+			idleTailNanos = lastFinish - firstFinish;
+		}
+		
+		public int getThreadCount() {
+			return busyNanos.length;
+		}
+		
+		public long getWallNanos() {
+			return wallNanos;
+		}
+		
+		public long getBusyNanos(int thread) {
+			return busyNanos[thread];
+		}
+		
+		public int getItems(int thread) {
+			return items[thread];
+		}
+		
+		/**
+		 * @return the time between the first and the last thread finishing, when some threads were idle
+		 */
+		public long getIdleTailNanos() {
+			return idleTailNanos;
+		}
+		
+		/**
+		 * @return the busy time of all threads divided by the time they were available, from 0 to 1
+		 */
+		public double getAverage() {
+			if (wallNanos <= 0)
+				return 1;
+			
+			long total = 0;
+			for (long busy : busyNanos)
+				total += busy;
+			return total / (double) (wallNanos * busyNanos.length);
+		}
+		
+		@Override
+		public String toString() {
+			StringBuilder result = new StringBuilder();
+			result.append(String.format("Threads utilization: %.0f%% | Idle tail %d s |", getAverage() * 100,
+					idleTailNanos / 1000000000L));
+			for (int i = 0; i < busyNanos.length; i++)
+				result.append(String.format(" %.0f%%", wallNanos <= 0 ? 100 : busyNanos[i] * 100. / wallNanos));
+			return result.toString();
+		}
+	}
 }